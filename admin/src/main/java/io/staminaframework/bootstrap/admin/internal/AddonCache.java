@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Local cache of addon artifacts.
+ * <p>
+ * Addons are stored using their SHA-256 digest as file name. For each addon URL,
+ * the digest of the last fetched content is recorded with HTTP validators
+ * (<code>ETag</code> and <code>Last-Modified</code>): HTTP addons are revalidated
+ * using conditional requests, and are only downloaded again if they were modified.
+ * Failed fetches are retried a few times.
+ * <p>
+ * Addons may be fetched concurrently, but not while the cache is being pruned.
+ * Files fetched or reused after pruning has started are kept, even if another
+ * instance shares the same cache directory.
+ *
+ * @author Stamina Framework developers
+ */
+class AddonCache {
+    private static final String ADDON_SUFFIX = ".esa";
+    private static final String INFO_SUFFIX = ".properties";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 1000;
+    /**
+     * Margin for file systems storing modification times with a coarse granularity.
+     */
+    private static final long MTIME_GRANULARITY = 2000;
+    private final Path cacheDir;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public AddonCache(final Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Get an addon, fetching it if it is not available or if it was modified.
+     *
+     * @param addonUrl addon URL
+     * @return cached addon
+     * @throws IOException if the addon could not be fetched
+     */
+    public CachedAddon fetch(String addonUrl) throws IOException {
+        Files.createDirectories(cacheDir);
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; ++attempt) {
+            if (attempt > 1) {
+                try {
+                    Thread.sleep(RETRY_DELAY << (attempt - 2));
+                } catch (InterruptedException e) {
+                    throw new IOException("Addon fetch interrupted: " + addonUrl, e);
+                }
+            }
+            final Lock fetchLock = lock.readLock();
+            fetchLock.lock();
+            try {
+                return doFetch(addonUrl);
+            } catch (IOException e) {
+                lastError = e;
+            } finally {
+                fetchLock.unlock();
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Remove cached addons which are no longer used.
+     *
+     * @param addonUrls addon URLs to keep
+     * @throws IOException if cached addons could not be removed
+     */
+    public void prune(Collection<String> addonUrls) throws IOException {
+        final Lock pruneLock = lock.writeLock();
+        pruneLock.lock();
+        try {
+            doPrune(addonUrls, System.currentTimeMillis() - MTIME_GRANULARITY);
+        } finally {
+            pruneLock.unlock();
+        }
+    }
+
+    private void doPrune(Collection<String> addonUrls, long pruneStart) throws IOException {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        final Set<String> infoFiles = new HashSet<>(addonUrls.size());
+        for (final String addonUrl : addonUrls) {
+            infoFiles.add(infoFileName(addonUrl));
+        }
+        final Set<String> addonFiles = new HashSet<>(addonUrls.size());
+        try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(cacheDir, "*" + INFO_SUFFIX)) {
+            for (final Path infoFile : dirStream) {
+                if (!infoFiles.contains(infoFile.getFileName().toString())) {
+                    if (!isModifiedSince(infoFile, pruneStart)) {
+                        Files.deleteIfExists(infoFile);
+                    }
+                    continue;
+                }
+                final Properties info = loadInfo(infoFile);
+                if (info != null) {
+                    addonFiles.add(info.getProperty("sha256") + ADDON_SUFFIX);
+                }
+            }
+        }
+        try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(cacheDir, "*" + ADDON_SUFFIX)) {
+            for (final Path addonFile : dirStream) {
+                if (!addonFiles.contains(addonFile.getFileName().toString())
+                        && !isModifiedSince(addonFile, pruneStart)) {
+                    Files.deleteIfExists(addonFile);
+                }
+            }
+        }
+    }
+
+    private CachedAddon doFetch(String addonUrl) throws IOException {
+        final Path infoFile = cacheDir.resolve(infoFileName(addonUrl));
+        final Properties info = loadInfo(infoFile);
+        CachedAddon cached = null;
+        if (info != null) {
+            final CachedAddon c = new CachedAddon(
+                    cacheDir.resolve(info.getProperty("sha256") + ADDON_SUFFIX), info.getProperty("sha256"));
+            if (Files.exists(c.file)) {
+                cached = c;
+            }
+        }
+
+        final URLConnection conn = new URL(addonUrl).openConnection();
+        conn.setConnectTimeout(1000 * 10);
+        conn.setReadTimeout(1000 * 60);
+        if (conn instanceof HttpURLConnection) {
+            final HttpURLConnection httpConn = (HttpURLConnection) conn;
+            if (cached != null) {
+                if (info.getProperty("etag") != null) {
+                    httpConn.setRequestProperty("If-None-Match", info.getProperty("etag"));
+                }
+                if (info.getProperty("lastModified") != null) {
+                    httpConn.setRequestProperty("If-Modified-Since", info.getProperty("lastModified"));
+                }
+            }
+            final int code = httpConn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                httpConn.disconnect();
+                // Files are touched so that they are not pruned while they are being used.
+                touch(cached.file);
+                touch(infoFile);
+                return cached;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                httpConn.disconnect();
+                throw new IOException("Unexpected HTTP response code " + code + " for addon: " + addonUrl);
+            }
+        }
+
+        // Addon content is written to a temporary file, and then moved to its final location.
+        final Path tmpFile = Files.createTempFile(cacheDir, "addon-", ".tmp");
+        try {
+            final MessageDigest md = Digests.newSha256();
+            final byte[] buf = new byte[1024 * 64];
+            try (final InputStream in = conn.getInputStream();
+                 final OutputStream out = Files.newOutputStream(tmpFile)) {
+                for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                    md.update(buf, 0, bytesRead);
+                    out.write(buf, 0, bytesRead);
+                }
+            }
+            final String sha256 = Digests.toHex(md.digest());
+            final Path addonFile = cacheDir.resolve(sha256 + ADDON_SUFFIX);
+            if (!Files.exists(addonFile)) {
+                Files.move(tmpFile, addonFile, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                touch(addonFile);
+            }
+
+            final Properties newInfo = new Properties();
+            newInfo.setProperty("url", addonUrl);
+            newInfo.setProperty("sha256", sha256);
+            if (conn.getHeaderField("ETag") != null) {
+                newInfo.setProperty("etag", conn.getHeaderField("ETag"));
+            }
+            if (conn.getHeaderField("Last-Modified") != null) {
+                newInfo.setProperty("lastModified", conn.getHeaderField("Last-Modified"));
+            }
+            final Path tmpInfoFile = Files.createTempFile(cacheDir, "addon-", ".tmp");
+            try (final OutputStream out = Files.newOutputStream(tmpInfoFile)) {
+                newInfo.store(out, null);
+            }
+            Files.move(tmpInfoFile, infoFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new CachedAddon(addonFile, sha256);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private static void touch(Path file) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    private static boolean isModifiedSince(Path file, long time) throws IOException {
+        return Files.getLastModifiedTime(file).toMillis() >= time;
+    }
+
+    private static Properties loadInfo(Path infoFile) {
+        if (!Files.exists(infoFile)) {
+            return null;
+        }
+        final Properties info = new Properties();
+        try (final InputStream in = Files.newInputStream(infoFile)) {
+            info.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        return info.getProperty("sha256") == null ? null : info;
+    }
+
+    private static String infoFileName(String addonUrl) {
+        final MessageDigest md = Digests.newSha256();
+        try {
+            md.update(addonUrl.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error", e);
+        }
+        return Digests.toHex(md.digest()) + INFO_SUFFIX;
+    }
+
+    /**
+     * Addon available in the cache.
+     */
+    public static class CachedAddon {
+        private final Path file;
+        private final String sha256;
+
+        CachedAddon(final Path file, final String sha256) {
+            this.file = file;
+            this.sha256 = sha256;
+        }
+
+        /**
+         * Get addon file.
+         */
+        public Path file() {
+            return file;
+        }
+
+        /**
+         * Get addon digest.
+         *
+         * @return hex-encoded SHA-256 digest
+         */
+        public String sha256() {
+            return sha256;
+        }
+    }
+}
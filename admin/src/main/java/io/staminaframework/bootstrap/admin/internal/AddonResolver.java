@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import org.osgi.framework.Version;
+import org.osgi.service.log.LogService;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Addon resolver, using OBR repositories.
+ * <p>
+ * Addon references (<code>addon.symbolic.name/addon.version</code> or
+ * <code>addon.symbolic.name</code>) are resolved to artifact URLs using an in-memory
+ * index of repository resources. Both OBR (<code>repository.xml</code>) and
+ * OSGi R5 repository formats are supported.
+ * <p>
+ * Repositories are revalidated using conditional requests: a repository is only
+ * parsed again if it was modified. The index is persisted, so that addons can be
+ * resolved when the admin restarts, even if repositories are unavailable.
+ * References which are already URLs are left unchanged.
+ *
+ * @author Stamina Framework developers
+ */
+class AddonResolver {
+    private static final String R5_NAMESPACE = "http://www.osgi.org/xmlns/repository/v1.0.0";
+    private final LogService logService;
+    private final Path indexFile;
+    private final Object refreshLock = new Object();
+    private volatile Map<String, Repository> repositories = Collections.emptyMap();
+    private volatile Map<String, NavigableMap<Version, String>> index = Collections.emptyMap();
+
+    public AddonResolver(final LogService logService, final Path indexFile) {
+        this.logService = logService;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Load the index persisted by a previous instance.
+     */
+    public void load() {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        final Map<String, Repository> loaded = new LinkedHashMap<>(4);
+        try (final BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            Repository repo = null;
+            for (String line; (line = reader.readLine()) != null; ) {
+                // Line format: "repository<TAB>url<TAB>etag<TAB>lastModified"
+                // or "resource<TAB>symbolicName<TAB>version<TAB>url".
+                final String[] fields = line.split("\t", -1);
+                if (fields.length != 4) {
+                    throw new IOException("Invalid index line: " + line);
+                }
+                if ("repository".equals(fields[0])) {
+                    repo = new Repository(fields[1], emptyToNull(fields[2]), emptyToNull(fields[3]));
+                    loaded.put(repo.url, repo);
+                } else if ("resource".equals(fields[0]) && repo != null) {
+                    repo.add(fields[1], Version.parseVersion(fields[2]), fields[3]);
+                } else {
+                    throw new IOException("Invalid index line: " + line);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to load addon index: " + indexFile, e);
+            return;
+        }
+        synchronized (refreshLock) {
+            repositories = loaded;
+            index = merge(loaded);
+        }
+    }
+
+    /**
+     * Refresh the index using these repositories.
+     * Repositories which were not modified are not parsed again.
+     *
+     * @param repositoryUrls repository URLs
+     */
+    public void refresh(List<String> repositoryUrls) {
+        synchronized (refreshLock) {
+            final Set<String> urls = new LinkedHashSet<>(repositoryUrls.size());
+            for (final String repositoryUrl : repositoryUrls) {
+                if (!repositoryUrl.trim().isEmpty()) {
+                    urls.add(repositoryUrl.trim());
+                }
+            }
+            final Map<String, Repository> current = repositories;
+            final Map<String, Repository> updated = new LinkedHashMap<>(urls.size());
+            boolean modified = !current.keySet().equals(urls);
+            for (final String repositoryUrl : urls) {
+                final Repository previous = current.get(repositoryUrl);
+                try {
+                    final Repository repo = fetch(repositoryUrl, previous);
+                    updated.put(repositoryUrl, repo);
+                    modified |= repo != previous;
+                } catch (IOException | XMLStreamException | IllegalArgumentException e) {
+                    logService.log(LogService.LOG_WARNING, "Failed to refresh OBR repository: " + repositoryUrl, e);
+                    if (previous != null) {
+                        // Keep using the last known repository content.
+                        updated.put(repositoryUrl, previous);
+                    }
+                }
+            }
+            if (!modified) {
+                return;
+            }
+            repositories = updated;
+            index = merge(updated);
+            try {
+                store(updated);
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to store addon index: " + indexFile, e);
+            }
+        }
+    }
+
+    /**
+     * Resolve addon references.
+     *
+     * @param references addon references or URLs
+     * @return addon URLs
+     * @throws IllegalArgumentException if a reference could not be resolved
+     */
+    public List<String> resolve(List<String> references) {
+        final List<String> urls = new ArrayList<>(references.size());
+        for (final String reference : references) {
+            final String ref = reference.trim();
+            if (!ref.isEmpty()) {
+                urls.add(resolve(ref));
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Resolve an addon reference.
+     * The highest version is selected if no version is set.
+     *
+     * @param reference addon reference or URL
+     * @return addon URL
+     * @throws IllegalArgumentException if this reference could not be resolved
+     */
+    public String resolve(String reference) {
+        if (reference.indexOf(':') != -1) {
+            // This is already a URL.
+            return reference;
+        }
+        final int i = reference.indexOf('/');
+        final String symbolicName = i == -1 ? reference : reference.substring(0, i);
+        final NavigableMap<Version, String> versions = index.get(symbolicName);
+        if (versions != null) {
+            if (i == -1) {
+                return versions.lastEntry().getValue();
+            }
+            final String url = versions.get(Version.parseVersion(reference.substring(i + 1)));
+            if (url != null) {
+                return url;
+            }
+        }
+        throw new IllegalArgumentException("Addon not found in OBR repositories: " + reference);
+    }
+
+    private Repository fetch(String repositoryUrl, Repository previous) throws IOException, XMLStreamException {
+        final URLConnection conn = new URL(repositoryUrl).openConnection();
+        conn.setConnectTimeout(1000 * 10);
+        conn.setReadTimeout(1000 * 30);
+        if (conn instanceof HttpURLConnection && previous != null) {
+            final HttpURLConnection httpConn = (HttpURLConnection) conn;
+            if (previous.etag != null) {
+                httpConn.setRequestProperty("If-None-Match", previous.etag);
+            }
+            if (previous.lastModified != null) {
+                httpConn.setRequestProperty("If-Modified-Since", previous.lastModified);
+            }
+            if (httpConn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                httpConn.disconnect();
+                logService.log(LogService.LOG_DEBUG, "OBR repository not modified: " + repositoryUrl);
+                return previous;
+            }
+        }
+
+        final Repository repo = new Repository(repositoryUrl,
+                conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+        final long start = System.nanoTime();
+        try (final InputStream in = repositoryUrl.endsWith(".gz")
+                ? new GZIPInputStream(conn.getInputStream(), 1024 * 64) : conn.getInputStream()) {
+            parse(repo, in);
+        }
+        if (repo.invalidResources > 0) {
+            logService.log(LogService.LOG_WARNING, "Skipped " + repo.invalidResources
+                    + " resources with an invalid version in OBR repository: " + repositoryUrl);
+        }
+        logService.log(LogService.LOG_INFO, "Indexed OBR repository " + repositoryUrl + " ("
+                + repo.resources.size() + " resources) in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return repo;
+    }
+
+    /**
+     * Parse a repository, only reading resource identities.
+     */
+    private static void parse(Repository repo, InputStream in) throws XMLStreamException {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        // Repositories are not trusted: external entities are not resolved.
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        final XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try {
+            // R5 resource state.
+            String namespace = null;
+            String identity = null;
+            String version = null;
+            String url = null;
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String element = reader.getLocalName();
+                    if ("resource".equals(element)) {
+                        identity = null;
+                        version = null;
+                        url = null;
+                        // OBR resources hold their identity as attributes.
+                        final String symbolicName = reader.getAttributeValue(null, "symbolicname");
+                        final String uri = reader.getAttributeValue(null, "uri");
+                        if (symbolicName != null && uri != null) {
+                            repo.add(symbolicName, reader.getAttributeValue(null, "version"), repo.resolveUri(uri));
+                        }
+                    } else if ("capability".equals(element) && R5_NAMESPACE.equals(reader.getNamespaceURI())) {
+                        namespace = reader.getAttributeValue(null, "namespace");
+                    } else if ("attribute".equals(element) && namespace != null) {
+                        final String name = reader.getAttributeValue(null, "name");
+                        final String value = reader.getAttributeValue(null, "value");
+                        if ("osgi.identity".equals(namespace) && "osgi.identity".equals(name)) {
+                            identity = value;
+                        } else if ("osgi.identity".equals(namespace) && "version".equals(name)) {
+                            version = value;
+                        } else if ("osgi.content".equals(namespace) && "url".equals(name)) {
+                            url = value;
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    final String element = reader.getLocalName();
+                    if ("capability".equals(element)) {
+                        namespace = null;
+                    } else if ("resource".equals(element) && identity != null && url != null) {
+                        repo.add(identity, version, repo.resolveUri(url));
+                        identity = null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void store(Map<String, Repository> repos) throws IOException {
+        Files.createDirectories(indexFile.getParent());
+        final Path tmpFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (final BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            for (final Repository repo : repos.values()) {
+                writer.write("repository\t" + repo.url + "\t" + nullToEmpty(repo.etag)
+                        + "\t" + nullToEmpty(repo.lastModified) + "\n");
+                for (final Resource r : repo.resources) {
+                    writer.write("resource\t" + r.symbolicName + "\t" + r.version + "\t" + r.url + "\n");
+                }
+            }
+        }
+        Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Merge repository resources into a single index.
+     * When a resource is available in several repositories, the first repository wins.
+     */
+    private static Map<String, NavigableMap<Version, String>> merge(Map<String, Repository> repos) {
+        final Map<String, NavigableMap<Version, String>> merged = new HashMap<>(256);
+        for (final Repository repo : repos.values()) {
+            for (final Resource r : repo.resources) {
+                merged.computeIfAbsent(r.symbolicName, k -> new TreeMap<>()).putIfAbsent(r.version, r.url);
+            }
+        }
+        return merged;
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * Repository content, with HTTP validators.
+     */
+    private static class Repository {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final List<Resource> resources = new ArrayList<>(64);
+        int invalidResources;
+
+        Repository(final String url, final String etag, final String lastModified) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Add a resource read from a repository.
+         * Repositories are not trusted: resources with an invalid version are skipped.
+         */
+        void add(String symbolicName, String version, String resourceUrl) {
+            final Version v;
+            try {
+                v = Version.parseVersion(version);
+            } catch (IllegalArgumentException e) {
+                ++invalidResources;
+                return;
+            }
+            add(symbolicName, v, resourceUrl);
+        }
+
+        void add(String symbolicName, Version version, String resourceUrl) {
+            // Index file uses tabs and new lines as separators.
+            if (symbolicName.matches("[^\\s]+") && resourceUrl.matches("[^\\t\\r\\n]+")) {
+                resources.add(new Resource(symbolicName, version, resourceUrl));
+            }
+        }
+
+        String resolveUri(String uri) {
+            try {
+                return new URL(new URL(url), uri).toExternalForm();
+            } catch (IOException e) {
+                return uri;
+            }
+        }
+    }
+
+    /**
+     * Addon available in a repository.
+     */
+    private static class Resource {
+        final String symbolicName;
+        final Version version;
+        final String url;
+
+        Resource(final String symbolicName, final Version version, final String url) {
+            this.symbolicName = symbolicName;
+            this.version = version;
+            this.url = url;
+        }
+    }
+}
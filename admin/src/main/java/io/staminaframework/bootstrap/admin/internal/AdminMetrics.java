@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bootstrap admin metrics, kept in memory.
+ *
+ * @author Stamina Framework developers
+ */
+class AdminMetrics implements BootstrapAdminMetrics {
+    public static final String BUILDS = "stamina_bootstrap_builds_total";
+    public static final String BUILD_FAILURES = "stamina_bootstrap_build_failures_total";
+    public static final String BUILD_DURATION = "stamina_bootstrap_build_duration_ms";
+    public static final String REQUESTS = "stamina_bootstrap_package_requests_total";
+    public static final String REQUEST_DURATION = "stamina_bootstrap_package_request_duration_ms";
+    public static final String NOT_MODIFIED = "stamina_bootstrap_package_not_modified_total";
+    public static final String DOWNLOADS = "stamina_bootstrap_package_downloads_total";
+    public static final String DOWNLOADS_IN_FLIGHT = "stamina_bootstrap_package_downloads_in_flight";
+    public static final String DOWNLOADS_REJECTED = "stamina_bootstrap_package_downloads_rejected_total";
+    public static final String BYTES_SERVED = "stamina_bootstrap_package_bytes_served_total";
+    public static final String LAUNCHER_PACKAGE_BUILDS = "stamina_bootstrap_launcher_package_builds_total";
+    public static final String LAUNCHER_PACKAGE_BUILD_FAILURES =
+            "stamina_bootstrap_launcher_package_build_failures_total";
+    public static final String LAUNCHER_PACKAGE_CACHE_HITS = "stamina_bootstrap_launcher_package_cache_hits_total";
+    public static final String LAUNCHER_PACKAGE_CACHE_EVICTIONS =
+            "stamina_bootstrap_launcher_package_cache_evictions_total";
+    public static final String ADVERTS_SENT = "stamina_bootstrap_adverts_sent_total";
+    public static final String ADVERT_ERRORS = "stamina_bootstrap_advert_errors_total";
+    private final ConcurrentMap<String, AtomicLong> values = new ConcurrentHashMap<>(32);
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>(16);
+
+    /**
+     * Get a metric name with a label.
+     *
+     * @param name       metric name
+     * @param label      label name
+     * @param labelValue label value
+     * @return metric name including this label
+     */
+    public static String withLabel(String name, String label, String labelValue) {
+        return name + "{" + label + "=\"" + labelValue.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    @Override
+    public void add(String name, long delta) {
+        AtomicLong value = values.get(name);
+        if (value == null) {
+            value = values.computeIfAbsent(name, k -> new AtomicLong());
+        }
+        value.addAndGet(delta);
+    }
+
+    @Override
+    public void record(String name, long millis) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+        }
+        histogram.record(millis);
+    }
+
+    @Override
+    public Map<String, Number> snapshot() {
+        final Map<String, Number> snapshot = new TreeMap<>();
+        for (final Map.Entry<String, AtomicLong> e : values.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().get());
+        }
+        for (final Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            final LatencyHistogram h = e.getValue();
+            snapshot.put(suffix(e.getKey(), "_count"), h.count());
+            snapshot.put(suffix(e.getKey(), "_sum"), h.sum());
+            snapshot.put(suffix(e.getKey(), "_max"), h.max());
+            snapshot.put(suffix(e.getKey(), "_p50"), h.quantile(0.5));
+            snapshot.put(suffix(e.getKey(), "_p99"), h.quantile(0.99));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Get a JSON representation of these metrics.
+     */
+    public JsonObject toJson() {
+        final JsonObject jsonValues = Json.object();
+        for (final Map.Entry<String, AtomicLong> e : new TreeMap<>(values).entrySet()) {
+            jsonValues.add(e.getKey(), e.getValue().get());
+        }
+        final JsonObject jsonHistograms = Json.object();
+        for (final Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+            jsonHistograms.add(e.getKey(), e.getValue().toJson());
+        }
+        return Json.object()
+                .add("values", jsonValues)
+                .add("histograms", jsonHistograms);
+    }
+
+    /**
+     * Get these metrics using the Prometheus text format.
+     */
+    public String toPrometheus() {
+        final StringBuilder buf = new StringBuilder(4096);
+        String lastName = null;
+        for (final Map.Entry<String, AtomicLong> e : new TreeMap<>(values).entrySet()) {
+            final String name = baseName(e.getKey());
+            if (!name.equals(lastName)) {
+                buf.append("# TYPE ").append(name).append(name.endsWith("_total") ? " counter" : " gauge").append('\n');
+                lastName = name;
+            }
+            buf.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+        }
+        for (final Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+            final String name = baseName(e.getKey());
+            if (!name.equals(lastName)) {
+                buf.append("# TYPE ").append(name).append(" histogram\n");
+                lastName = name;
+            }
+            final String labels = labels(e.getKey());
+            final LatencyHistogram h = e.getValue();
+            long cumulativeCount = 0;
+            for (int i = 0; i < LatencyHistogram.bucketCount(); ++i) {
+                cumulativeCount += h.bucket(i);
+                final String le = i == LatencyHistogram.bucketCount() - 1
+                        ? "+Inf" : String.valueOf(LatencyHistogram.upperBound(i));
+                buf.append(name).append("_bucket{").append(labels.isEmpty() ? "" : labels + ",")
+                        .append("le=\"").append(le).append("\"} ").append(cumulativeCount).append('\n');
+            }
+            final String suffixLabels = labels.isEmpty() ? "" : "{" + labels + "}";
+            buf.append(name).append("_sum").append(suffixLabels).append(' ').append(h.sum()).append('\n');
+            buf.append(name).append("_count").append(suffixLabels).append(' ').append(h.count()).append('\n');
+        }
+        return buf.toString();
+    }
+
+    private static String baseName(String name) {
+        final int i = name.indexOf('{');
+        return i == -1 ? name : name.substring(0, i);
+    }
+
+    private static String labels(String name) {
+        final int i = name.indexOf('{');
+        return i == -1 ? "" : name.substring(i + 1, name.length() - 1);
+    }
+
+    private static String suffix(String name, String suffix) {
+        final int i = name.indexOf('{');
+        return i == -1 ? name + suffix : name.substring(0, i) + suffix + name.substring(i);
+    }
+}
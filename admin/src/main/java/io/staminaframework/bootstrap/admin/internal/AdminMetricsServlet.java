@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Servlet returning bootstrap admin metrics.
+ * <p>
+ * Metrics are returned as JSON, or using the Prometheus text format
+ * if <code>format=prometheus</code> is set, or if plain text is accepted
+ * but JSON is not.
+ *
+ * @author Stamina Framework developers
+ */
+class AdminMetricsServlet extends HttpServlet {
+    private final AdminMetrics metrics;
+
+    public AdminMetricsServlet(final AdminMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final byte[] content;
+        if (isPrometheus(req)) {
+            content = metrics.toPrometheus().getBytes("UTF-8");
+            resp.setContentType("text/plain; version=0.0.4");
+        } else {
+            content = metrics.toJson().toString().getBytes("UTF-8");
+            resp.setContentType("application/json");
+        }
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setContentLength(content.length);
+        resp.getOutputStream().write(content);
+    }
+
+    private static boolean isPrometheus(HttpServletRequest req) {
+        final String format = req.getParameter("format");
+        if (format != null) {
+            return "prometheus".equalsIgnoreCase(format);
+        }
+        final String accept = req.getHeader("Accept");
+        return accept != null && accept.contains("text/plain") && !accept.contains("application/json");
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import org.osgi.service.log.LogService;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Servlet collecting boot timings sent by bootstrap agents.
+ * <p>
+ * Reports are form-encoded: <code>id=launcher-uuid&amp;phase=millis&amp;...</code>.
+ * Timings are aggregated into per-phase latency histograms,
+ * which are returned as JSON on <code>GET</code> requests.
+ *
+ * @author Stamina Framework developers
+ */
+class BootTimingsServlet extends HttpServlet {
+    private static final int MAX_REPORT_SIZE = 4096;
+    private static final int MAX_PHASES = 64;
+    private final LogService logService;
+    private final ConcurrentMap<String, LatencyHistogram> phases = new ConcurrentHashMap<>(16);
+    private final AtomicLong reports = new AtomicLong();
+
+    public BootTimingsServlet(final LogService logService) {
+        this.logService = logService;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final String report = readReport(req);
+        if (report == null) {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        String launcherId = null;
+        final Map<String, Long> timings = new TreeMap<>();
+        for (final String pair : report.split("&")) {
+            final int i = pair.indexOf('=');
+            if (i == -1) {
+                continue;
+            }
+            final String key = URLDecoder.decode(pair.substring(0, i), "UTF-8");
+            final String value = URLDecoder.decode(pair.substring(i + 1), "UTF-8");
+            if ("id".equals(key)) {
+                launcherId = value;
+            } else {
+                try {
+                    timings.put(key, Long.parseLong(value));
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        if (launcherId == null || timings.isEmpty()) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        logService.log(LogService.LOG_DEBUG, "Boot timings from launcher " + launcherId + ": " + timings);
+        reports.incrementAndGet();
+        for (final Map.Entry<String, Long> e : timings.entrySet()) {
+            LatencyHistogram histogram = phases.get(e.getKey());
+            if (histogram == null) {
+                if (phases.size() >= MAX_PHASES) {
+                    // Do not let launchers create an unbounded number of phases.
+                    continue;
+                }
+                histogram = phases.computeIfAbsent(e.getKey(), k -> new LatencyHistogram());
+            }
+            histogram.record(e.getValue());
+        }
+        resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final JsonObject jsonPhases = Json.object();
+        for (final Map.Entry<String, LatencyHistogram> e : new TreeMap<>(phases).entrySet()) {
+            jsonPhases.add(e.getKey(), e.getValue().toJson());
+        }
+        final JsonObject json = Json.object()
+                .add("reports", reports.get())
+                .add("phases", jsonPhases);
+
+        final byte[] content = json.toString().getBytes("UTF-8");
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setContentLength(content.length);
+        resp.getOutputStream().write(content);
+    }
+
+    private String readReport(HttpServletRequest req) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+        try (final InputStream in = req.getInputStream()) {
+            final byte[] tmp = new byte[512];
+            for (int bytesRead; (bytesRead = in.read(tmp)) != -1; ) {
+                buf.write(tmp, 0, bytesRead);
+                if (buf.size() > MAX_REPORT_SIZE) {
+                    return null;
+                }
+            }
+        }
+        return new String(buf.toByteArray(), "UTF-8");
+    }
+}
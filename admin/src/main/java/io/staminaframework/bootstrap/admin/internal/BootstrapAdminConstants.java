@@ -30,6 +30,34 @@ class BootstrapAdminConstants {
      * Path to bootstrap package.
      */
     public static final String BOOTSTRAP_PACKAGE_PATH = "/bootstrap.pkg";
+    /**
+     * Path to bootstrap package SHA-256 digest.
+     */
+    public static final String BOOTSTRAP_PACKAGE_DIGEST_PATH = BOOTSTRAP_PACKAGE_PATH + ".sha256";
+    /**
+     * Path to bootstrap package deltas.
+     */
+    public static final String BOOTSTRAP_PACKAGE_DELTA_PATH = BOOTSTRAP_PACKAGE_PATH + ".delta";
+    /**
+     * MIME-type designating a Bootstrap Package delta file.
+     */
+    public static final String BOOTSTRAP_PACKAGE_DELTA_MIME_TYPE = "application/vnd.stamina.package-delta";
+    /**
+     * HTTP header holding the digest of the bootstrap package a launcher already has.
+     */
+    public static final String BOOTSTRAP_PACKAGE_BASE_HEADER = "StaminaBootstrap-Base";
+    /**
+     * HTTP header holding the persistent identifier of a launcher.
+     */
+    public static final String LAUNCHER_ID_HEADER = "StaminaBootstrap-Id";
+    /**
+     * Path where bootstrap agents report boot timings.
+     */
+    public static final String BOOT_TIMINGS_PATH = "/bootstrap.timings";
+    /**
+     * Path to bootstrap admin metrics.
+     */
+    public static final String BOOTSTRAP_METRICS_PATH = "/bootstrap.metrics";
 
     private BootstrapAdminConstants() {
     }
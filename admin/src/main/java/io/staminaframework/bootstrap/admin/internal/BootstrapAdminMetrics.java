@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import java.util.Map;
+
+/**
+ * Internal service collecting bootstrap admin metrics.
+ * <p>
+ * Metric names follow Prometheus conventions, and may include labels:
+ * <code>stamina_bootstrap_build_duration_ms{stage="runtime"}</code>.
+ * Metrics whose name ends with <code>_total</code> are counters,
+ * other values are gauges.
+ *
+ * @author Stamina Framework developers
+ */
+public interface BootstrapAdminMetrics {
+    /**
+     * Add a value to a counter or a gauge.
+     *
+     * @param name  metric name
+     * @param delta value to add (may be negative for a gauge)
+     */
+    void add(String name, long delta);
+
+    /**
+     * Increment a counter.
+     *
+     * @param name metric name
+     */
+    default void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Record a duration in a histogram.
+     *
+     * @param name   metric name
+     * @param millis duration in milliseconds
+     */
+    void record(String name, long millis);
+
+    /**
+     * Get current metric values.
+     * Histograms are flattened into <code>_count</code>, <code>_sum</code>,
+     * <code>_max</code>, <code>_p50</code> and <code>_p99</code> values.
+     *
+     * @return metric values, sorted by name
+     */
+    Map<String, Number> snapshot();
+}
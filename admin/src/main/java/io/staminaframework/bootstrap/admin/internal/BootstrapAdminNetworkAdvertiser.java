@@ -43,6 +43,8 @@ public class BootstrapAdminNetworkAdvertiser {
     private LogService logService;
     @Reference
     private BootstrapPackage bootstrapPackage;
+    @Reference
+    private BootstrapAdminMetrics metrics;
     private final Set<InetAddress> broadcastAddresses = new HashSet<>(1);
     private Thread worker;
     private volatile boolean running;
@@ -113,8 +115,10 @@ public class BootstrapAdminNetworkAdvertiser {
                 try (final DatagramSocket so = new DatagramSocket()) {
                     for (final InetAddress addr : broadcastAddresses) {
                         sendUdp(so, addr, payload);
+                        metrics.increment(AdminMetrics.ADVERTS_SENT);
                     }
                 } catch (Exception e) {
+                    metrics.increment(AdminMetrics.ADVERT_ERRORS);
                     logService.log(LogService.LOG_WARNING,
                             "Error while publishing bootstrap advert", e);
                 }
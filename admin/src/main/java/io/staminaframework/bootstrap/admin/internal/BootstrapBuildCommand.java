@@ -49,6 +49,14 @@ public class BootstrapBuildCommand implements Command {
         @CommandLine.Option(paramLabel = "<overlay>", description = "Set overlay to apply (ZIP archive or directory)",
                 names = {"-o", "--overlay"})
         public File overlayFile = new File("bootstrap.overlay.zip");
+        @CommandLine.Option(paramLabel = "<codec>",
+                description = "Set codec for the runtime archive (gz, zstd or lz4)",
+                names = {"-c", "--codec"})
+        public String codec = "gz";
+        @CommandLine.Option(paramLabel = "<os>",
+                description = "Only include the runtime for this OS (windows, unix or any)",
+                names = {"--os"})
+        public String targetOs = "any";
         @CommandLine.Option(description = "Show command usage", names = {"-h", "--help"}, usageHelp = true)
         public boolean showHelp = false;
     }
@@ -80,12 +88,29 @@ public class BootstrapBuildCommand implements Command {
             return false;
         }
 
+        final FramedArchive.Codec runtimeCodec;
+        try {
+            runtimeCodec = FramedArchive.Codec.fromName(opts.codec);
+        } catch (IllegalArgumentException e) {
+            context.out().println(e.getMessage());
+            return false;
+        }
+        final TargetOs targetOs;
+        try {
+            targetOs = TargetOs.fromName(opts.targetOs);
+        } catch (IllegalArgumentException e) {
+            context.out().println(e.getMessage());
+            return false;
+        }
+
         final Path bootstrapPackageFile = opts.outputFile.toPath();
         final List<String> addonUrls = Arrays.asList(opts.addonUrls);
 
         context.out().println("Generating bootstrap package: " + bootstrapPackageFile);
         final Path overlay = opts.overlayFile == null ? null : opts.overlayFile.toPath();
-        new BootstrapPackageBuilder(bundleContext).build(bootstrapPackageFile, overlay, addonUrls);
+        final AddonCache addonCache = new AddonCache(bundleContext.getDataFile("addons").toPath());
+        new BootstrapPackageBuilder(bundleContext, null, addonCache)
+                .build(bootstrapPackageFile, overlay, addonUrls, runtimeCodec, targetOs);
 
         return false;
     }
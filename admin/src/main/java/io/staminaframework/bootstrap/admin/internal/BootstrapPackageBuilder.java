@@ -16,20 +16,38 @@
 
 package io.staminaframework.bootstrap.admin.internal;
 
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.provisioning.ProvisioningService;
 
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 /**
@@ -38,14 +56,57 @@ import java.util.zip.ZipOutputStream;
  * @author Stamina Framework developers
  */
 class BootstrapPackageBuilder {
+    private static final int MAX_CONCURRENT_FETCHES = 8;
     private final BundleContext bundleContext;
+    private final BootstrapAdminMetrics metrics;
+    private final AddonCache addonCache;
 
     public BootstrapPackageBuilder(final BundleContext bundleContext) {
+        this(bundleContext, null, null);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param bundleContext bundle context
+     * @param metrics       where build stage durations are recorded, may be <code>null</code>
+     * @param addonCache    where addons are cached between builds, may be <code>null</code>
+     */
+    public BootstrapPackageBuilder(final BundleContext bundleContext, final BootstrapAdminMetrics metrics,
+                                   final AddonCache addonCache) {
         this.bundleContext = bundleContext;
+        this.metrics = metrics;
+        this.addonCache = addonCache;
+    }
+
+    public void build(Path bootstrapPackageFile, Path overlay, List<String> addonUrls,
+                      FramedArchive.Codec runtimeCodec) throws Exception {
+        build(bootstrapPackageFile, overlay, addonUrls, runtimeCodec, TargetOs.ANY);
+    }
+
+    /**
+     * Build a bootstrap package.
+     *
+     * @param bootstrapPackageFile where the bootstrap package is written
+     * @param overlay              runtime overlay, may be <code>null</code>
+     * @param addonUrls            addons to include
+     * @param runtimeCodec         codec used to compress the runtime archive
+     * @param targetOs             operating system running launchers: only the matching
+     *                             runtime archive is included
+     * @throws Exception if the bootstrap package could not be built
+     */
+    public void build(Path bootstrapPackageFile, Path overlay, List<String> addonUrls,
+                      FramedArchive.Codec runtimeCodec, TargetOs targetOs) throws Exception {
+        // Addons are fetched in the background, while runtime entries are being written.
+        try (final AddonFetcher addons = new AddonFetcher(addonUrls)) {
+            build(bootstrapPackageFile, overlay, addons, runtimeCodec, targetOs);
+        }
     }
 
-    public void build(Path bootstrapPackageFile, Path overlay, List<String> addonUrls) throws Exception {
-        final byte[] buffer = new byte[4096];
+    private void build(Path bootstrapPackageFile, Path overlay, AddonFetcher addons,
+                       FramedArchive.Codec runtimeCodec, TargetOs targetOs) throws Exception {
+        final byte[] buffer = new byte[1024 * 64];
+        final long buildStart = System.nanoTime();
 
         Path overlayFile = null;
         if (overlay != null) {
@@ -73,41 +134,285 @@ class BootstrapPackageBuilder {
             }
         }
 
+        final long overlayNanos = System.nanoTime() - buildStart;
+
+        // Payloads which are already compressed are stored as is:
+        // launchers may then read these entries without decompressing them.
         try (final ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(bootstrapPackageFile))) {
-            ZipEntry ze = new ZipEntry("stamina.bootstrap.agent.jar");
-            zip.putNextEntry(ze);
-            copyResource(getBootstrapPackageEntry("stamina.bootstrap.agent.jar"), zip, buffer);
-            zip.closeEntry();
+            long stageStart = System.nanoTime();
+            putStoredEntry(zip, "stamina.bootstrap.agent.jar",
+                    out -> copyResource(getBootstrapPackageEntry("stamina.bootstrap.agent.jar"), out, buffer));
 
-            ze = new ZipEntry(ProvisioningService.PROVISIONING_START_BUNDLE);
+            ZipEntry ze = new ZipEntry(ProvisioningService.PROVISIONING_START_BUNDLE);
             zip.putNextEntry(ze);
             zip.write("stamina.bootstrap.agent.jar".getBytes("UTF-8"));
             zip.closeEntry();
 
-            ze = new ZipEntry("stamina.runtime.zip");
-            zip.putNextEntry(ze);
-            copyResource(getBootstrapPackageEntry("stamina.runtime.zip"), zip, buffer);
-            zip.closeEntry();
+            stageStart = recordStage("agent", stageStart);
 
-            ze = new ZipEntry("stamina.runtime.tar.gz");
-            zip.putNextEntry(ze);
-            copyResource(getBootstrapPackageEntry("stamina.runtime.tar.gz"), zip, buffer);
-            zip.closeEntry();
+            // The bootstrap agent only installs the runtime archive matching its OS.
+            if (targetOs.includesZipRuntime()) {
+                putStoredEntry(zip, "stamina.runtime.zip",
+                        out -> copyResource(getBootstrapPackageEntry("stamina.runtime.zip"), out, buffer));
 
-            if (overlayFile != null) {
-                ze = new ZipEntry("stamina.runtime.overlay.zip");
+                // Runtime manifests are used by the bootstrap agent to upgrade runtime files incrementally.
+                ze = new ZipEntry("stamina.runtime.zip.manifest");
                 zip.putNextEntry(ze);
-                Files.copy(overlayFile, zip);
+                try (final InputStream in = getBootstrapPackageEntry("stamina.runtime.zip").openStream()) {
+                    RuntimeManifest.fromZip(in).write(zip);
+                }
+                zip.closeEntry();
+
+                stageStart = recordStage("runtime-zip", stageStart);
             }
 
-            int addonCounter = 0;
-            for (final String addonUrl : addonUrls) {
-                final URL u = new URL(addonUrl);
-                ze = new ZipEntry("stamina.addon." + addonCounter++ + ".esa");
+            if (targetOs.includesTarRuntime()) {
+                if (FramedArchive.Codec.GZIP.equals(runtimeCodec)) {
+                    putStoredEntry(zip, "stamina.runtime.tar.gz",
+                            out -> copyResource(getBootstrapPackageEntry("stamina.runtime.tar.gz"), out, buffer));
+                } else {
+                    // Runtime archive is compressed again using independent frames:
+                    // the bootstrap agent decompresses these frames in parallel.
+                    putSpooledEntry(zip, "stamina.runtime.tar." + runtimeCodec.extension(), out -> {
+                        try (final InputStream in = new GZIPInputStream(
+                                getBootstrapPackageEntry("stamina.runtime.tar.gz").openStream(), 1024 * 64)) {
+                            FramedArchive.write(in, out, runtimeCodec);
+                        }
+                    });
+                }
+
+                ze = new ZipEntry("stamina.runtime.tar." + runtimeCodec.extension() + ".manifest");
                 zip.putNextEntry(ze);
-                copyResource(u, zip, buffer);
+                try (final InputStream in = new GZIPInputStream(
+                        getBootstrapPackageEntry("stamina.runtime.tar.gz").openStream(), 1024 * 64)) {
+                    RuntimeManifest.fromTar(in).write(zip);
+                }
                 zip.closeEntry();
+
+                stageStart = recordStage("runtime-tar", stageStart);
+            }
+
+            if (overlayFile != null) {
+                final Path overlayZip = overlayFile;
+                putStoredEntry(zip, "stamina.runtime.overlay.zip", out -> copyResource(overlayZip, out, buffer));
+                // Overlay archive was created before the bootstrap package.
+                stageStart = recordStage("overlay", stageStart - overlayNanos);
+            }
+
+            // Addons are listed with their subsystem symbolic name,
+            // so that the bootstrap agent does not need to open addons before installing them.
+            final StringBuilder addonList = new StringBuilder(64);
+            for (int i = 0; i < addons.size(); ++i) {
+                // Addons are written in order, as soon as they are available.
+                final Path addonFile = addons.get(i).file();
+                final String addonEntryName = "stamina.addon." + i + ".esa";
+                final String[] addonName = new String[1];
+                putStoredEntry(zip, addonEntryName, out -> copyResource(addonFile, out, buffer),
+                        out -> addonName[0] = copyAddon(addonFile, out, buffer));
+                addonList.append(addonEntryName);
+                if (addonName[0] != null) {
+                    addonList.append(' ').append(addonName[0]);
+                }
+                addonList.append('\n');
+            }
+            ze = new ZipEntry("stamina.addons.list");
+            zip.putNextEntry(ze);
+            zip.write(addonList.toString().getBytes("UTF-8"));
+            zip.closeEntry();
+            recordStage("addons", stageStart);
+        }
+        recordStage("total", buildStart);
+    }
+
+    /**
+     * Compute a fingerprint of build inputs.
+     * <p>
+     * Two builds with the same fingerprint produce equivalent bootstrap packages:
+     * the fingerprint covers this bundle version, embedded runtime entries, addon URLs
+     * and addon content, the overlay, the runtime codec and the target OS.
+     *
+     * @param overlay      runtime overlay, may be <code>null</code>
+     * @param addonUrls    addons to include
+     * @param runtimeCodec codec used to compress the runtime archive
+     * @param targetOs     operating system running launchers
+     * @return hex-encoded fingerprint
+     * @throws IOException if build inputs could not be read
+     */
+    public String fingerprint(Path overlay, List<String> addonUrls,
+                              FramedArchive.Codec runtimeCodec, TargetOs targetOs) throws IOException {
+        return fingerprint(fingerprint(overlay, addonUrls, runtimeCodec), targetOs);
+    }
+
+    /**
+     * Compute the fingerprint of a build for a target OS,
+     * from the fingerprint of inputs shared by all targets.
+     * Build inputs are only read once when packages are built for several targets.
+     *
+     * @param inputsFingerprint fingerprint returned by {@link #fingerprint(Path, List, FramedArchive.Codec)}
+     *                          or by {@link #fingerprint(String, Path, List)}
+     * @param targetOs          operating system running launchers
+     * @return hex-encoded fingerprint
+     */
+    public static String fingerprint(String inputsFingerprint, TargetOs targetOs) {
+        final MessageDigest md = Digests.newSha256();
+        md.update(("inputs " + inputsFingerprint + "\nos " + targetOs.id() + "\n").getBytes(StandardCharsets.UTF_8));
+        return Digests.toHex(md.digest());
+    }
+
+    /**
+     * Compute a fingerprint of build inputs shared by all target OS.
+     *
+     * @param overlay      runtime overlay, may be <code>null</code>
+     * @param addonUrls    addons to include
+     * @param runtimeCodec codec used to compress the runtime archive
+     * @return hex-encoded fingerprint
+     * @throws IOException if build inputs could not be read
+     */
+    public String fingerprint(Path overlay, List<String> addonUrls,
+                              FramedArchive.Codec runtimeCodec) throws IOException {
+        final MessageDigest md = Digests.newSha256();
+        final byte[] buffer = new byte[1024 * 64];
+        final Bundle bundle = bundleContext.getBundle();
+        update(md, "bundle " + bundle.getVersion() + " " + bundle.getLastModified());
+        update(md, "codec " + runtimeCodec.extension());
+        for (final String entry : new String[]{
+                "stamina.bootstrap.agent.jar", "stamina.runtime.zip", "stamina.runtime.tar.gz"}) {
+            update(md, "entry " + entry);
+            try (final InputStream in = getBootstrapPackageEntry(entry).openStream()) {
+                update(md, in, buffer);
+            }
+        }
+        updateContent(md, overlay, addonUrls, buffer);
+        return Digests.toHex(md.digest());
+    }
+
+    /**
+     * Compute a fingerprint of build inputs from a base fingerprint and additional content.
+     * Only addons and the overlay are read: bundle entries are covered by the base fingerprint.
+     *
+     * @param baseFingerprint fingerprint returned by {@link #fingerprint(Path, List, FramedArchive.Codec)}
+     * @param overlay         runtime overlay, may be <code>null</code>
+     * @param addonUrls       addons to include
+     * @return hex-encoded fingerprint
+     * @throws IOException if build inputs could not be read
+     */
+    public String fingerprint(String baseFingerprint, Path overlay, List<String> addonUrls) throws IOException {
+        final MessageDigest md = Digests.newSha256();
+        update(md, "base " + baseFingerprint);
+        updateContent(md, overlay, addonUrls, new byte[1024 * 64]);
+        return Digests.toHex(md.digest());
+    }
+
+    private void updateContent(MessageDigest md, Path overlay, List<String> addonUrls,
+                               byte[] buffer) throws IOException {
+        try (final AddonFetcher addons = new AddonFetcher(addonUrls)) {
+            for (int i = 0; i < addons.size(); ++i) {
+                update(md, "addon " + addonUrls.get(i) + " " + addons.get(i).sha256());
+            }
+        }
+        if (overlay != null && Files.isRegularFile(overlay)) {
+            update(md, "overlay");
+            try (final InputStream in = Files.newInputStream(overlay)) {
+                update(md, in, buffer);
+            }
+        } else if (overlay != null && Files.isDirectory(overlay)) {
+            final List<Path> files;
+            try (final Stream<Path> p = Files.walk(overlay)) {
+                files = p.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (final Path f : files) {
+                update(md, "overlay " + overlay.relativize(f).toString().replace('\\', '/'));
+                try (final InputStream in = Files.newInputStream(f)) {
+                    update(md, in, buffer);
+                }
+            }
+        }
+    }
+
+    private static void update(MessageDigest md, String value) throws IOException {
+        md.update(value.getBytes("UTF-8"));
+        md.update((byte) '\n');
+    }
+
+    private static void update(MessageDigest md, InputStream in, byte[] buffer) throws IOException {
+        long size = 0;
+        for (int bytesRead; (bytesRead = in.read(buffer)) != -1; size += bytesRead) {
+            md.update(buffer, 0, bytesRead);
+        }
+        // Content size separates consecutive inputs.
+        update(md, String.valueOf(size));
+    }
+
+    /**
+     * Record the duration of a build stage.
+     *
+     * @param stage      stage name
+     * @param stageStart stage start time, from {@link System#nanoTime()}
+     * @return stage end time, which is the next stage start time
+     */
+    private long recordStage(String stage, long stageStart) {
+        final long now = System.nanoTime();
+        if (metrics != null) {
+            metrics.record(AdminMetrics.withLabel(AdminMetrics.BUILD_DURATION, "stage", stage),
+                    (now - stageStart) / 1000000);
+        }
+        return now;
+    }
+
+    /**
+     * Write a payload as a STORED entry.
+     * Entry size and CRC must be set before entry content is written: payload is written
+     * twice, and its CRC is computed during the first pass without storing its content.
+     * Payload must give the same content on each call.
+     */
+    private static void putStoredEntry(ZipOutputStream zip, String name, Payload payload) throws IOException {
+        putStoredEntry(zip, name, payload, payload);
+    }
+
+    /**
+     * Write a payload as a STORED entry, using a different payload to compute its CRC.
+     *
+     * @param checksumPayload payload giving the same content as <code>payload</code>, without side effects
+     * @param payload         payload written to the entry
+     */
+    private static void putStoredEntry(ZipOutputStream zip, String name,
+                                       Payload checksumPayload, Payload payload) throws IOException {
+        final ChecksumOutputStream checksum = new ChecksumOutputStream();
+        checksumPayload.write(checksum);
+        final ZipEntry ze = new ZipEntry(name);
+        ze.setMethod(ZipEntry.STORED);
+        ze.setSize(checksum.size);
+        ze.setCompressedSize(checksum.size);
+        ze.setCrc(checksum.crc.getValue());
+        zip.putNextEntry(ze);
+        payload.write(zip);
+        zip.closeEntry();
+    }
+
+    /**
+     * Write a payload as a STORED entry.
+     * This method is used for payloads which are expensive to create: payload is written
+     * to a temporary file first, and its CRC is computed while it is being written.
+     */
+    private static void putSpooledEntry(ZipOutputStream zip, String name, Payload payload) throws IOException {
+        final Path payloadFile = Files.createTempFile("stamina.bootstrap.entry-", ".tmp");
+        try {
+            final CRC32 crc = new CRC32();
+            try (final OutputStream out = new CheckedOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(payloadFile), 1024 * 64), crc)) {
+                payload.write(out);
             }
+            final long size = Files.size(payloadFile);
+            final ZipEntry ze = new ZipEntry(name);
+            ze.setMethod(ZipEntry.STORED);
+            ze.setSize(size);
+            ze.setCompressedSize(size);
+            ze.setCrc(crc.getValue());
+            zip.putNextEntry(ze);
+            Files.copy(payloadFile, zip);
+            zip.closeEntry();
+        } finally {
+            Files.deleteIfExists(payloadFile);
         }
     }
 
@@ -115,6 +420,57 @@ class BootstrapPackageBuilder {
         return bundleContext.getBundle().getEntry("/OSGI-INF/bootstrap-package/" + name);
     }
 
+    /**
+     * Copy an addon, reading its subsystem symbolic name while it is being copied.
+     *
+     * @return addon subsystem symbolic name, or <code>null</code> if none was found
+     */
+    private String copyAddon(Path source, OutputStream target, byte[] buffer) throws IOException {
+        String addonName = null;
+        try (final InputStream in = Files.newInputStream(source)) {
+            final InputStream tee = new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b != -1) {
+                        target.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    final int bytesRead = super.read(b, off, len);
+                    if (bytesRead > 0) {
+                        target.write(b, off, bytesRead);
+                    }
+                    return bytesRead;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    final int bytesRead = read(buffer, 0, (int) Math.min(n, buffer.length));
+                    return bytesRead == -1 ? 0 : bytesRead;
+                }
+            };
+            try {
+                final ZipInputStream zip = new ZipInputStream(tee);
+                for (ZipEntry ze; addonName == null && (ze = zip.getNextEntry()) != null; ) {
+                    if ("OSGI-INF/SUBSYSTEM.MF".equals(ze.getName())) {
+                        addonName = new Manifest(zip).getMainAttributes().getValue("Subsystem-SymbolicName");
+                    }
+                }
+            } catch (ZipException e) {
+                // Addon name is read by the bootstrap agent.
+            }
+            // Copy remaining addon content.
+            final byte[] remaining = new byte[buffer.length];
+            while (tee.read(remaining, 0, remaining.length) != -1) {
+            }
+        }
+        return addonName;
+    }
+
     private void copyResource(URL source, OutputStream target, byte[] buffer) throws IOException {
         try (final InputStream in = source.openStream()) {
             for (int bytesRead; (bytesRead = in.read(buffer)) != -1; ) {
@@ -130,4 +486,107 @@ class BootstrapPackageBuilder {
             }
         }
     }
+
+    /**
+     * Addons being fetched concurrently, using the addon cache.
+     * A temporary cache is used if there is no addon cache.
+     */
+    private class AddonFetcher implements AutoCloseable {
+        private final List<String> addonUrls;
+        private final List<Future<AddonCache.CachedAddon>> addons;
+        private final ExecutorService executor;
+        private final Path tmpCacheDir;
+
+        AddonFetcher(final List<String> addonUrls) throws IOException {
+            this.addonUrls = addonUrls;
+            final AddonCache cache;
+            if (addonCache == null) {
+                tmpCacheDir = Files.createTempDirectory("stamina.addons-");
+                cache = new AddonCache(tmpCacheDir);
+            } else {
+                tmpCacheDir = null;
+                cache = addonCache;
+            }
+            executor = Executors.newFixedThreadPool(Math.max(1, Math.min(addonUrls.size(), MAX_CONCURRENT_FETCHES)),
+                    r -> {
+                        final Thread t = new Thread(r, "Stamina Bootstrap Addon Fetcher");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            addons = new ArrayList<>(addonUrls.size());
+            for (final String addonUrl : addonUrls) {
+                addons.add(executor.submit(() -> cache.fetch(addonUrl)));
+            }
+        }
+
+        int size() {
+            return addons.size();
+        }
+
+        /**
+         * Wait for an addon to be available.
+         *
+         * @param index addon index
+         * @return cached addon
+         * @throws IOException if this addon could not be fetched
+         */
+        AddonCache.CachedAddon get(int index) throws IOException {
+            try {
+                return addons.get(index).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Addon fetch interrupted: " + addonUrls.get(index), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to fetch addon: " + addonUrls.get(index), e.getCause());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            executor.shutdownNow();
+            if (tmpCacheDir != null) {
+                try {
+                    executor.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(tmpCacheDir)) {
+                    for (final Path f : dirStream) {
+                        Files.deleteIfExists(f);
+                    }
+                }
+                Files.deleteIfExists(tmpCacheDir);
+            }
+        }
+    }
+
+    /**
+     * Bootstrap package entry content.
+     */
+    private interface Payload {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Output stream computing the CRC and the size of its content, which is discarded.
+     */
+    private static class ChecksumOutputStream extends OutputStream {
+        private final CRC32 crc = new CRC32();
+        private long size;
+
+        @Override
+        public void write(int b) {
+            crc.update(b);
+            ++size;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            crc.update(b, off, len);
+            size += len;
+        }
+    }
 }
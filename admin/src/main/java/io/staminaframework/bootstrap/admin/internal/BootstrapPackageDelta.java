@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Binary delta between two bootstrap package versions.
+ * <p>
+ * A delta rebuilds a target package from a base package the launcher already has.
+ * Every zip entry of the target package is matched against blocks of the base package,
+ * using a rolling checksum: unchanged entries are copied from the base package,
+ * even if they moved, and only changed bytes are transferred.
+ * <p>
+ * Delta format (big endian):
+ * <pre>
+ * int     magic (SBPD)
+ * byte    version
+ * UTF     base package SHA-256 (hex)
+ * UTF     target package SHA-256 (hex)
+ * long    target package length
+ * ops:    COPY (1): long base offset, int length
+ *         DATA (2): int length, bytes
+ *         END  (0)
+ * </pre>
+ *
+ * @author Stamina Framework developers
+ */
+final class BootstrapPackageDelta {
+    public static final int MAGIC = 0x53425044;
+    public static final byte VERSION = 1;
+    public static final byte OP_END = 0;
+    public static final byte OP_COPY = 1;
+    public static final byte OP_DATA = 2;
+    private static final int BLOCK_SIZE = 1024 * 16;
+
+    private BootstrapPackageDelta() {
+    }
+
+    /**
+     * Create a delta between two bootstrap packages.
+     *
+     * @param base      base package
+     * @param baseSha   base package digest
+     * @param target    target package
+     * @param targetSha target package digest
+     * @param deltaFile file where delta is written
+     * @throws IOException if packages could not be read
+     */
+    public static void create(Path base, String baseSha, Path target, String targetSha,
+                              Path deltaFile) throws IOException {
+        try (final FileChannel baseChannel = FileChannel.open(base, StandardOpenOption.READ);
+             final FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.READ)) {
+            if (baseChannel.size() > Integer.MAX_VALUE || targetChannel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Bootstrap package is too large for a delta");
+            }
+            final MappedByteBuffer baseBuf = baseChannel.map(FileChannel.MapMode.READ_ONLY, 0, baseChannel.size());
+            final MappedByteBuffer targetBuf = targetChannel.map(FileChannel.MapMode.READ_ONLY, 0, targetChannel.size());
+            final Map<Integer, List<Integer>> blocks = indexBlocks(baseBuf);
+
+            try (final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(deltaFile), 1024 * 64))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeUTF(baseSha);
+                out.writeUTF(targetSha);
+                out.writeLong(targetBuf.capacity());
+
+                final OpWriter ops = new OpWriter(out, targetBuf);
+                int regionStart = 0;
+                for (final int regionEnd : entryBoundaries(targetBuf)) {
+                    if (regionEnd > regionStart) {
+                        diffRegion(baseBuf, targetBuf, blocks, regionStart, regionEnd, ops);
+                        regionStart = regionEnd;
+                    }
+                }
+                ops.flush();
+                out.writeByte(OP_END);
+            }
+        }
+    }
+
+    /**
+     * Index base package blocks by their weak checksum.
+     */
+    private static Map<Integer, List<Integer>> indexBlocks(ByteBuffer base) {
+        final int blockCount = base.capacity() / BLOCK_SIZE;
+        final Map<Integer, List<Integer>> blocks = new HashMap<>(blockCount * 2);
+        for (int i = 0; i < blockCount; ++i) {
+            final int weak = weakChecksum(base, i * BLOCK_SIZE);
+            List<Integer> offsets = blocks.get(weak);
+            if (offsets == null) {
+                offsets = new ArrayList<>(1);
+                blocks.put(weak, offsets);
+            }
+            offsets.add(i * BLOCK_SIZE);
+        }
+        return blocks;
+    }
+
+    /**
+     * Get offsets where zip entries end, including the end of the package.
+     * Entries are located using the zip central directory: if it cannot be read,
+     * the whole package is considered as a single region.
+     */
+    private static TreeSet<Integer> entryBoundaries(ByteBuffer pkg) {
+        final TreeSet<Integer> boundaries = new TreeSet<>();
+        boundaries.add(pkg.capacity());
+
+        final ByteBuffer buf = pkg.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = -1;
+        for (int i = buf.capacity() - 22; i >= Math.max(0, buf.capacity() - 22 - 0xffff); --i) {
+            if (buf.getInt(i) == 0x06054b50) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            return boundaries;
+        }
+        final int entryCount = buf.getShort(eocd + 10) & 0xffff;
+        final long cdOffset = buf.getInt(eocd + 16) & 0xffffffffL;
+        if (cdOffset >= buf.capacity()) {
+            return boundaries;
+        }
+        boundaries.add((int) cdOffset);
+
+        int pos = (int) cdOffset;
+        for (int i = 0; i < entryCount && pos + 46 <= eocd; ++i) {
+            if (buf.getInt(pos) != 0x02014b50) {
+                break;
+            }
+            final int nameLen = buf.getShort(pos + 28) & 0xffff;
+            final int extraLen = buf.getShort(pos + 30) & 0xffff;
+            final int commentLen = buf.getShort(pos + 32) & 0xffff;
+            final long localOffset = buf.getInt(pos + 42) & 0xffffffffL;
+            if (localOffset > 0 && localOffset < cdOffset) {
+                boundaries.add((int) localOffset);
+            }
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+        return boundaries;
+    }
+
+    private static void diffRegion(ByteBuffer base, ByteBuffer target, Map<Integer, List<Integer>> blocks,
+                                   int start, int end, OpWriter ops) throws IOException {
+        int pos = start;
+        int literalStart = start;
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+        while (end - pos >= BLOCK_SIZE) {
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < BLOCK_SIZE; ++i) {
+                    final int x = target.get(pos + i) & 0xff;
+                    a += x;
+                    b += (BLOCK_SIZE - i) * x;
+                }
+                rolling = true;
+            }
+            final int weak = (a & 0xffff) | (b << 16);
+            final List<Integer> candidates = blocks.get(weak);
+            int matchOffset = -1;
+            if (candidates != null) {
+                for (final int candidate : candidates) {
+                    if (sameBytes(base, candidate, target, pos, BLOCK_SIZE)) {
+                        matchOffset = candidate;
+                        break;
+                    }
+                }
+            }
+            if (matchOffset != -1) {
+                // Extend match as far as possible.
+                int len = BLOCK_SIZE;
+                while (pos + len < end && matchOffset + len < base.capacity()
+                        && base.get(matchOffset + len) == target.get(pos + len)) {
+                    ++len;
+                }
+                ops.data(literalStart, pos - literalStart);
+                ops.copy(matchOffset, len);
+                pos += len;
+                literalStart = pos;
+                rolling = false;
+            } else {
+                if (pos + BLOCK_SIZE >= end) {
+                    break;
+                }
+                final int out = target.get(pos) & 0xff;
+                final int in = target.get(pos + BLOCK_SIZE) & 0xff;
+                a += in - out;
+                b += a - BLOCK_SIZE * out;
+                ++pos;
+            }
+        }
+        ops.data(literalStart, end - literalStart);
+    }
+
+    private static int weakChecksum(ByteBuffer buf, int offset) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            final int x = buf.get(offset + i) & 0xff;
+            a += x;
+            b += (BLOCK_SIZE - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static boolean sameBytes(ByteBuffer base, int baseOffset, ByteBuffer target, int targetOffset, int len) {
+        for (int i = 0; i < len; ++i) {
+            if (base.get(baseOffset + i) != target.get(targetOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delta operation writer, merging contiguous copies.
+     */
+    private static class OpWriter {
+        private final DataOutputStream out;
+        private final ByteBuffer target;
+        private final byte[] buf = new byte[1024 * 64];
+        private long copyOffset = -1;
+        private int copyLength;
+
+        OpWriter(final DataOutputStream out, final ByteBuffer target) {
+            this.out = out;
+            this.target = target.duplicate();
+        }
+
+        void copy(long offset, int length) throws IOException {
+            if (copyOffset != -1 && copyOffset + copyLength == offset
+                    && (long) copyLength + length <= Integer.MAX_VALUE) {
+                copyLength += length;
+                return;
+            }
+            flush();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        void data(int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            flush();
+            out.writeByte(OP_DATA);
+            out.writeInt(length);
+            target.limit(offset + length).position(offset);
+            while (target.hasRemaining()) {
+                final int len = Math.min(buf.length, target.remaining());
+                target.get(buf, 0, len);
+                out.write(buf, 0, len);
+            }
+            target.clear();
+        }
+
+        void flush() throws IOException {
+            if (copyOffset != -1) {
+                out.writeByte(OP_COPY);
+                out.writeLong(copyOffset);
+                out.writeInt(copyLength);
+                copyOffset = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import org.osgi.service.log.LogService;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Servlet returning deltas between bootstrap package versions.
+ * <p>
+ * Launchers send the digest of the package they already have
+ * using the <code>StaminaBootstrap-Base</code> header.
+ * A <code>404</code> status is returned when no delta is available:
+ * the whole package must then be downloaded.
+ * <p>
+ * Deltas are created from the package history matching the launcher OS.
+ * Deltas are not available for launchers getting a dedicated package.
+ * <p>
+ * Transfers go through the same {@link DownloadThrottle} as whole packages:
+ * when too many transfers are running, a <code>503</code> status is returned
+ * with a <code>Retry-After</code> header.
+ *
+ * @author Stamina Framework developers
+ */
+class BootstrapPackageDeltaServlet extends HttpServlet {
+    private final LogService logService;
+    private final DownloadThrottle throttle;
+    private final BootstrapAdminMetrics metrics;
+    private final Map<TargetOs, BootstrapPackageHistory> histories;
+    private final LauncherPackages launcherPackages;
+
+    public BootstrapPackageDeltaServlet(final LogService logService, final DownloadThrottle throttle,
+                                        final BootstrapAdminMetrics metrics,
+                                        final Map<TargetOs, BootstrapPackageHistory> histories,
+                                        final LauncherPackages launcherPackages) {
+        this.logService = logService;
+        this.throttle = throttle;
+        this.metrics = metrics;
+        this.histories = histories;
+        this.launcherPackages = launcherPackages;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final String baseSha = req.getHeader(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_BASE_HEADER);
+        if (baseSha == null || !baseSha.matches("[0-9a-f]{64}")) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        resp.setHeader("Vary", "User-Agent, " + BootstrapAdminConstants.LAUNCHER_ID_HEADER);
+        if (launcherPackages != null
+                && launcherPackages.hasRule(req.getHeader(BootstrapAdminConstants.LAUNCHER_ID_HEADER))) {
+            // No history is kept for launcher packages.
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final TargetOs targetOs = TargetOs.fromUserAgent(req.getHeader("User-Agent"));
+        BootstrapPackageHistory history = histories.get(targetOs);
+        if (history == null || history.current() == null) {
+            // No package was built for this OS: the package for any OS is sent instead.
+            history = histories.get(TargetOs.ANY);
+        }
+
+        final Path delta;
+        try {
+            delta = history.delta(baseSha);
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING,
+                    "Failed to create bootstrap package delta from version " + baseSha, e);
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (delta == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        final FileChannel ch;
+        try {
+            ch = FileChannel.open(delta, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // A new package was published meanwhile.
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        try {
+            final long length = ch.size();
+            final DownloadThrottle.Transfer transfer;
+            if (length > BootstrapPackageServlet.SLICE_SIZE) {
+                transfer = throttle.begin(req.getRemoteAddr());
+                if (transfer == null) {
+                    metrics.increment(AdminMetrics.DOWNLOADS_REJECTED);
+                    logService.log(LogService.LOG_DEBUG,
+                            "Too many bootstrap package transfers: rejecting delta for " + req.getRemoteAddr());
+                    resp.setHeader("Retry-After", String.valueOf(throttle.retryAfter()));
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+            } else {
+                transfer = null;
+            }
+
+            try {
+                logService.log(LogService.LOG_DEBUG,
+                        "Sending bootstrap package delta from version " + baseSha + " to " + req.getRemoteAddr());
+                resp.setContentType(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_DELTA_MIME_TYPE);
+                resp.setContentLengthLong(length);
+                final OutputStream out = resp.getOutputStream();
+                final WritableByteChannel outChannel = out instanceof WritableByteChannel
+                        ? (WritableByteChannel) out : Channels.newChannel(out);
+                final boolean shaping = transfer != null && throttle.isShaping();
+                for (long pos = 0; pos < length; ) {
+                    long count = length - pos;
+                    if (shaping) {
+                        // Data is sent in slices, waiting for bandwidth to be available.
+                        count = Math.min(count, BootstrapPackageServlet.SLICE_SIZE);
+                        transfer.consume(count);
+                    }
+                    final long transferred = ch.transferTo(pos, count, outChannel);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    pos += transferred;
+                    metrics.add(AdminMetrics.BYTES_SERVED, transferred);
+                }
+            } finally {
+                if (transfer != null) {
+                    transfer.close();
+                }
+            }
+        } finally {
+            ch.close();
+        }
+    }
+}
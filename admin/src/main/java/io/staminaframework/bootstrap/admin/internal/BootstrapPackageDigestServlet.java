@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Servlet returning the SHA-256 digest of the bootstrap package sent to a launcher.
+ * <p>
+ * The digest is returned using the <code>sha256sum</code> format.
+ * Launchers get the digest of the package built for their OS,
+ * or for themselves.
+ *
+ * @author Stamina Framework developers
+ */
+class BootstrapPackageDigestServlet extends HttpServlet {
+    private final BootstrapPackageServlet packageServlet;
+
+    public BootstrapPackageDigestServlet(final BootstrapPackageServlet packageServlet) {
+        this.packageServlet = packageServlet;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final CompletableFuture<BootstrapPackageServlet.PublishedPackage> pkg = packageServlet.select(req);
+        if (!pkg.isDone()) {
+            // Package is being built for this launcher.
+            resp.setHeader("Retry-After", String.valueOf(packageServlet.retryAfter()));
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        if (pkg.join() == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final byte[] content = (pkg.join().sha256 + "  bootstrap.pkg\n").getBytes("UTF-8");
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setHeader("Vary", "User-Agent, " + BootstrapAdminConstants.LAUNCHER_ID_HEADER);
+        resp.setContentLength(content.length);
+        resp.getOutputStream().write(content);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Previous bootstrap package versions, used to create deltas.
+ * <p>
+ * Each published package is kept in a history directory, keyed by its digest.
+ * Only the most recent versions are kept. Deltas from previous versions
+ * to the current package are created in the background, and cached until a new package
+ * is published: the delta from the previous version is created as soon as a package
+ * is published, other deltas are created when a launcher first asks for them.
+ * No delta is returned while it is being created: launchers download the whole package.
+ *
+ * @author Stamina Framework developers
+ */
+class BootstrapPackageHistory {
+    private static final int MAX_VERSIONS = 5;
+    /**
+     * Deltas larger than this ratio of the package size are not worth it.
+     */
+    private static final double MAX_DELTA_RATIO = 0.6;
+    private static final String PACKAGE_SUFFIX = ".pkg";
+    private static final String DELTA_SUFFIX = ".delta";
+    private final LogService logService;
+    private final Path historyDir;
+    private final Path deltaDir;
+    private final Set<String> pendingDeltas = new HashSet<>(4);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "Stamina Bootstrap Package Delta Builder");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private Path currentPackage;
+    private String currentSha;
+
+    public BootstrapPackageHistory(final LogService logService, final Path historyDir, final Path deltaDir) {
+        this.logService = logService;
+        this.historyDir = historyDir;
+        this.deltaDir = deltaDir;
+    }
+
+    /**
+     * Stop creating deltas.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Record a new bootstrap package.
+     *
+     * @param pkg bootstrap package file
+     * @param sha bootstrap package digest
+     * @throws IOException if package could not be recorded
+     */
+    public synchronized void publish(Path pkg, String sha) throws IOException {
+        Files.createDirectories(historyDir);
+        Files.createDirectories(deltaDir);
+
+        // Package file is replaced by new builds: keep a copy.
+        final Path version = historyDir.resolve(sha + PACKAGE_SUFFIX);
+        if (!Files.exists(version)) {
+            logService.log(LogService.LOG_DEBUG, "Recording bootstrap package version: " + sha);
+            final Path tmpVersion = version.resolveSibling(version.getFileName() + ".tmp");
+            Files.copy(pkg, tmpVersion, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpVersion, version, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.setLastModifiedTime(version, FileTime.fromMillis(System.currentTimeMillis()));
+        final String previousSha = currentSha;
+        currentPackage = version;
+        currentSha = sha;
+
+        final List<Path> versions = new ArrayList<>(MAX_VERSIONS + 1);
+        try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(historyDir, "*" + PACKAGE_SUFFIX)) {
+            for (final Path p : dirStream) {
+                versions.add(p);
+            }
+        }
+        versions.sort(Comparator.comparing(BootstrapPackageHistory::lastModifiedTime).reversed());
+        for (int i = MAX_VERSIONS; i < versions.size(); ++i) {
+            logService.log(LogService.LOG_DEBUG, "Deleting bootstrap package version: " + versions.get(i));
+            Files.deleteIfExists(versions.get(i));
+        }
+
+        // Cached deltas are only valid for the current package.
+        try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(deltaDir)) {
+            for (final Path delta : dirStream) {
+                if (!delta.getFileName().toString().endsWith("-" + sha + DELTA_SUFFIX)) {
+                    Files.deleteIfExists(delta);
+                }
+            }
+        }
+
+        // Most launchers are about to upgrade from the previous version.
+        if (previousSha != null && !previousSha.equals(sha)
+                && Files.exists(historyDir.resolve(previousSha + PACKAGE_SUFFIX))) {
+            scheduleDelta(previousSha);
+        }
+    }
+
+    /**
+     * Get the digest of the current package.
+     *
+     * @return hex-encoded digest, <code>null</code> if no package was published
+     */
+    public synchronized String current() {
+        return currentSha;
+    }
+
+    /**
+     * Get a delta from a previous package version to the current package.
+     * <p>
+     * This method does not wait for deltas to be created: if the delta
+     * is not available yet, it is created in the background.
+     *
+     * @param baseSha digest of the package the launcher has
+     * @return delta file, <code>null</code> if no delta is available
+     * @throws IOException if delta could not be read
+     */
+    public synchronized Path delta(String baseSha) throws IOException {
+        if (currentSha == null || currentSha.equals(baseSha)) {
+            return null;
+        }
+        final Path base = historyDir.resolve(baseSha + PACKAGE_SUFFIX);
+        if (!Files.exists(base)) {
+            return null;
+        }
+
+        final Path delta = deltaDir.resolve(baseSha + "-" + currentSha + DELTA_SUFFIX);
+        if (!Files.exists(delta)) {
+            scheduleDelta(baseSha);
+            return null;
+        }
+        if (Files.size(delta) > Files.size(currentPackage) * MAX_DELTA_RATIO) {
+            return null;
+        }
+        // Keep this version around since launchers are still using it.
+        Files.setLastModifiedTime(base, FileTime.fromMillis(System.currentTimeMillis()));
+        return delta;
+    }
+
+    private void scheduleDelta(String baseSha) {
+        final Path base = historyDir.resolve(baseSha + PACKAGE_SUFFIX);
+        final Path target = currentPackage;
+        final String targetSha = currentSha;
+        final Path delta = deltaDir.resolve(baseSha + "-" + targetSha + DELTA_SUFFIX);
+        if (Files.exists(delta) || !pendingDeltas.add(delta.getFileName().toString())) {
+            return;
+        }
+        try {
+            executor.execute(() -> createDelta(base, baseSha, target, targetSha, delta));
+        } catch (RejectedExecutionException e) {
+            pendingDeltas.remove(delta.getFileName().toString());
+        }
+    }
+
+    private void createDelta(Path base, String baseSha, Path target, String targetSha, Path delta) {
+        // Delta is created without holding the lock: packages may be published meanwhile.
+        logService.log(LogService.LOG_INFO, "Creating bootstrap package delta from version " + baseSha);
+        final Path tmpDelta = delta.resolveSibling(delta.getFileName() + ".tmp");
+        try {
+            BootstrapPackageDelta.create(base, baseSha, target, targetSha, tmpDelta);
+            synchronized (this) {
+                if (targetSha.equals(currentSha)) {
+                    Files.move(tmpDelta, delta, StandardCopyOption.REPLACE_EXISTING);
+                    logService.log(LogService.LOG_INFO, "Bootstrap package delta created: "
+                            + Files.size(delta) + " bytes (package size: " + Files.size(target) + " bytes)");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logService.log(LogService.LOG_WARNING,
+                    "Failed to create bootstrap package delta from version " + baseSha, e);
+        } finally {
+            try {
+                Files.deleteIfExists(tmpDelta);
+            } catch (IOException ignore) {
+            }
+            synchronized (this) {
+                pendingDeltas.remove(delta.getFileName().toString());
+            }
+        }
+    }
+
+    private static FileTime lastModifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
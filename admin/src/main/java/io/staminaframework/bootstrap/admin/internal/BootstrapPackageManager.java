@@ -20,20 +20,26 @@ import io.staminaframework.runtime.boot.CommandLine;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.*;
-import org.osgi.service.http.HttpContext;
 import org.osgi.service.http.HttpService;
 import org.osgi.service.http.NamespaceException;
 import org.osgi.service.log.LogService;
 
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
+import javax.servlet.ServletException;
 import java.io.IOException;
-import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 /**
  * Internal component orchestrating bootstrap package build and its publication.
+ * <p>
+ * Build inputs are fingerprinted: the bootstrap package is only rebuilt when
+ * these inputs change. The previous package is served until the new one is ready.
+ * <p>
+ * A package is built for each configured OS, only including the runtime archive
+ * for this OS: launchers are sent the package matching their OS.
+ * Dedicated packages may also be built for some launchers.
  *
  * @author Stamina Framework developers
  */
@@ -43,13 +49,86 @@ public class BootstrapPackageManager {
         /**
          * Addon list to include into the bootstrap package.
          * <p>
-         * Addons are resolved using registered OBR repositories.
+         * Addons are resolved using configured OBR repositories.
          * <p>
          * Each addon reference must follow this pattern:
          * <code>addon.symbolic.name/addon.version</code> or <code>addon.symbolic.name</code>.
          * For example: <code>io.staminaframework.addons.shell/1.0.0</code>.
+         * The highest available version is used if no version is set.
+         * An addon URL may also be set.
          */
         String[] addons() default "";
+
+        /**
+         * OBR repository URLs (<code>repository.xml</code> or OSGi R5 <code>index.xml</code>),
+         * used to resolve addons.
+         * <p>
+         * Repository content is indexed and kept on disk: a repository is only
+         * parsed again if it was modified.
+         */
+        String[] repositories() default "";
+
+        /**
+         * Operating systems to build dedicated bootstrap packages for:
+         * <code>windows</code> or <code>unix</code>.
+         * <p>
+         * Such packages only include the runtime archive for this OS, and are sent
+         * to launchers depending on their <code>User-Agent</code>. A package for any OS
+         * is always built.
+         */
+        String[] targetOs() default {"windows", "unix"};
+
+        /**
+         * Rules mapping launchers to dedicated bootstrap packages.
+         * <p>
+         * Each rule must follow this pattern:
+         * <code>launcherId[,launcherId...]|addon[,addon...][|overlay]</code>.
+         * Launchers are identified by the <code>StaminaBootstrap-Id</code> header.
+         * Rule addons are included in addition to the addons set for every package.
+         * <p>
+         * Packages are built when launchers ask for them, and shared
+         * between launchers getting the same content.
+         */
+        String[] launcherRules() default "";
+
+        /**
+         * Maximum number of dedicated launcher packages to keep.
+         */
+        int maxLauncherPackages() default 16;
+
+        /**
+         * Codec used to compress the runtime archive for Unix-like systems:
+         * <code>gz</code>, <code>zstd</code> or <code>lz4</code>.
+         * <p>
+         * Archives compressed with <code>zstd</code> or <code>lz4</code> are
+         * decompressed in parallel by the bootstrap agent.
+         */
+        String runtimeCodec() default "gz";
+
+        /**
+         * Maximum number of concurrent bootstrap package transfers.
+         * Other launchers are asked to try again later.
+         * Set this value to <code>0</code> to disable this limit.
+         */
+        int maxConcurrentDownloads() default 32;
+
+        /**
+         * Delay in seconds before a launcher should try again,
+         * when too many bootstrap package transfers are running.
+         */
+        int downloadRetryAfter() default 5;
+
+        /**
+         * Total bandwidth used to send bootstrap packages, in kilobytes per second.
+         * Set this value to <code>0</code> to disable this limit.
+         */
+        int maxDownloadBandwidth() default 0;
+
+        /**
+         * Bandwidth used to send a bootstrap package to a single launcher, in kilobytes per second.
+         * Set this value to <code>0</code> to disable this limit.
+         */
+        int maxClientDownloadBandwidth() default 0;
     }
 
     @Reference
@@ -58,10 +137,21 @@ public class BootstrapPackageManager {
     private CommandLine commandLine;
     private HttpService httpService;
     private List<String> addonUrls = Collections.emptyList();
+    private List<String> repositoryUrls = Collections.emptyList();
+    private final Set<TargetOs> targets = EnumSet.of(TargetOs.ANY);
+    private FramedArchive.Codec runtimeCodec = FramedArchive.Codec.GZIP;
     private BundleContext bundleContext;
     private Thread bootstrapPackageBuilderThread;
     private final Set<String> httpEndpoints = new HashSet<>(2);
     private ServiceRegistration<BootstrapPackage> bootstrapPackageReg;
+    private final Map<TargetOs, BootstrapPackageHistory> bootstrapPackageHistories = new EnumMap<>(TargetOs.class);
+    private DownloadThrottle downloadThrottle;
+    private BootstrapPackageServlet bootstrapPackageServlet;
+    private AdminMetrics metrics;
+    private ServiceRegistration<BootstrapAdminMetrics> metricsReg;
+    private LauncherPackages launcherPackages;
+    private AddonCache addonCache;
+    private volatile boolean stopped;
 
     @Reference
     void bindHttpService(HttpService httpService, Map<String, Object> props) {
@@ -100,23 +190,193 @@ public class BootstrapPackageManager {
         }
 
         this.bundleContext = bundleContext;
+        stopped = false;
+
+        // Metrics are published as a service, and as an HTTP endpoint.
+        final AdminMetrics metrics = new AdminMetrics();
+        this.metrics = metrics;
+        metricsReg = bundleContext.registerService(BootstrapAdminMetrics.class, metrics, null);
+        try {
+            httpService.registerServlet(BootstrapAdminConstants.BOOTSTRAP_METRICS_PATH,
+                    new AdminMetricsServlet(metrics), null, null);
+        } catch (ServletException | NamespaceException e) {
+            logService.log(LogService.LOG_WARNING,
+                    "Failed to register metrics endpoint", e);
+        }
+
+        // Boot timings sent by launchers are aggregated into histograms.
+        try {
+            httpService.registerServlet(BootstrapAdminConstants.BOOT_TIMINGS_PATH,
+                    new BootTimingsServlet(logService), null, null);
+        } catch (ServletException | NamespaceException e) {
+            logService.log(LogService.LOG_WARNING,
+                    "Failed to register boot timings endpoint", e);
+        }
+
+        // Addons are cached between builds, and only fetched again if they were modified.
+        // The same cache is used for launcher packages.
+        final AddonCache addonCache = new AddonCache(bundleContext.getDataFile("addons").toPath());
+        this.addonCache = addonCache;
+
+        // Packages may be built for some launchers.
+        if (config.launcherRules() != null) {
+            try {
+                final LauncherPackages launcherPackages = new LauncherPackages(logService, bundleContext, metrics,
+                        addonCache,
+                        bundleContext.getDataFile("launcher-packages").toPath(),
+                        config.maxLauncherPackages(), Arrays.asList(config.launcherRules()));
+                if (launcherPackages.isEmpty()) {
+                    launcherPackages.close();
+                } else {
+                    this.launcherPackages = launcherPackages;
+                }
+            } catch (IllegalArgumentException e) {
+                logService.log(LogService.LOG_WARNING, "Invalid launcher rules: " + e.getMessage());
+            }
+        }
 
+        downloadThrottle = new DownloadThrottle(config.maxConcurrentDownloads(),
+                config.maxDownloadBandwidth() * 1024L, config.maxClientDownloadBandwidth() * 1024L,
+                config.downloadRetryAfter());
+
+        // Previous package versions are kept to send deltas to launchers.
+        for (final TargetOs targetOs : TargetOs.values()) {
+            bootstrapPackageHistories.put(targetOs, new BootstrapPackageHistory(logService,
+                    bundleContext.getDataFile("history" + targetOs.fileSuffix()).toPath(),
+                    bundleContext.getDataFile("deltas" + targetOs.fileSuffix()).toPath()));
+        }
+        try {
+            httpService.registerServlet(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_DELTA_PATH,
+                    new BootstrapPackageDeltaServlet(logService, downloadThrottle, metrics,
+                            bootstrapPackageHistories, launcherPackages), null, null);
+        } catch (ServletException | NamespaceException e) {
+            logService.log(LogService.LOG_WARNING,
+                    "Failed to register bootstrap package delta endpoint", e);
+        }
+
+        // Build task only uses state captured here: a build outliving this component
+        // must not see fields being cleared by deactivate.
+        final LauncherPackages launcherPackages = this.launcherPackages;
+        final Map<TargetOs, BootstrapPackageHistory> histories = new EnumMap<>(bootstrapPackageHistories);
         final Runnable bootstapTask = () -> {
             try {
-                logService.log(LogService.LOG_INFO, "Building bootstrap package with addons: " + addonUrls);
-                final Path bootstrapPkgFile = bundleContext.getDataFile("bootstrap.pkg").toPath();
-                new BootstrapPackageBuilder(bundleContext).build(bootstrapPkgFile, null, addonUrls);
+                // Build info is only written once a package is complete:
+                // previous packages are served while new ones are being built.
+                final Map<TargetOs, String[]> buildInfos = new EnumMap<>(TargetOs.class);
+                for (final TargetOs targetOs : targets) {
+                    final Path bootstrapPkgFile = getBootstrapPackageFile(bundleContext, targetOs);
+                    final String[] buildInfo = readBuildInfo(getBuildInfoFile(bundleContext, targetOs));
+                    if (buildInfo != null && Files.exists(bootstrapPkgFile)) {
+                        buildInfos.put(targetOs, buildInfo);
+                        try {
+                            exposeBootstrapPackage(histories.get(targetOs), targetOs, bootstrapPkgFile, buildInfo[1]);
+                        } catch (IOException e) {
+                            logService.log(LogService.LOG_WARNING,
+                                    "Failed to publish previous bootstrap package for OS: " + targetOs.id(), e);
+                        }
+                    }
+                }
 
-                exposeBootstrapPackage(bootstrapPkgFile);
+                // Addon references are resolved using the last known repository index
+                // if a repository is unavailable.
+                final AddonResolver addonResolver =
+                        new AddonResolver(logService, bundleContext.getDataFile("obr-index").toPath());
+                addonResolver.load();
+                addonResolver.refresh(repositoryUrls);
+                final List<String> addonUrls = addonResolver.resolve(this.addonUrls);
+
+                final BootstrapPackageBuilder builder = new BootstrapPackageBuilder(bundleContext, metrics, addonCache);
+                // Build inputs are the same for all targets: they are only read once.
+                final String inputsFingerprint = builder.fingerprint(null, addonUrls, runtimeCodec);
+                for (final TargetOs targetOs : targets) {
+                    if (stopped) {
+                        return;
+                    }
+                    final Path bootstrapPkgFile = getBootstrapPackageFile(bundleContext, targetOs);
+                    final String[] buildInfo = buildInfos.get(targetOs);
+                    final String fingerprint = BootstrapPackageBuilder.fingerprint(inputsFingerprint, targetOs);
+                    if (buildInfo != null && fingerprint.equals(buildInfo[0])) {
+                        logService.log(LogService.LOG_INFO,
+                                "Bootstrap package is up to date for OS: " + targetOs.id());
+                        continue;
+                    }
+
+                    logService.log(LogService.LOG_INFO, "Building bootstrap package for OS "
+                            + targetOs.id() + " with addons: " + addonUrls);
+                    metrics.increment(AdminMetrics.BUILDS);
+                    final Path tmpBootstrapPkgFile =
+                            bootstrapPkgFile.resolveSibling(bootstrapPkgFile.getFileName() + ".tmp");
+                    try {
+                        builder.build(tmpBootstrapPkgFile, null, addonUrls, runtimeCodec, targetOs);
+                        // Package being served is replaced atomically:
+                        // launchers downloading the previous package keep reading it.
+                        Files.move(tmpBootstrapPkgFile, bootstrapPkgFile,
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(tmpBootstrapPkgFile);
+                    }
+                    final String digest = Digests.toHex(Digests.sha256(bootstrapPkgFile));
+                    Files.write(getBuildInfoFile(bundleContext, targetOs),
+                            (fingerprint + " " + digest + "\n").getBytes("UTF-8"));
+
+                    exposeBootstrapPackage(histories.get(targetOs), targetOs, bootstrapPkgFile, digest);
+                }
+
+                // Launcher packages are built from the same inputs.
+                final Set<String> usedAddonUrls = new HashSet<>(addonUrls);
+                if (launcherPackages != null && !stopped) {
+                    launcherPackages.update(inputsFingerprint, runtimeCodec, addonUrls, addonResolver);
+                    usedAddonUrls.addAll(launcherPackages.addonUrls());
+                }
+                try {
+                    addonCache.prune(usedAddonUrls);
+                } catch (IOException e) {
+                    logService.log(LogService.LOG_WARNING, "Failed to clean addon cache", e);
+                }
             } catch (Exception e) {
+                if (stopped) {
+                    // Build was interrupted since this component is being deactivated.
+                    logService.log(LogService.LOG_DEBUG, "Bootstrap package build stopped", e);
+                    return;
+                }
+                metrics.increment(AdminMetrics.BUILD_FAILURES);
                 logService.log(LogService.LOG_ERROR,
                         "Error while building bootstrap package", e);
+                if (launcherPackages != null) {
+                    // Launchers waiting for their package get the default package instead.
+                    launcherPackages.updateFailed();
+                }
             }
         };
 
         if (config.addons() != null) {
             addonUrls = Arrays.asList(config.addons());
         }
+        if (config.repositories() != null) {
+            repositoryUrls = Arrays.asList(config.repositories());
+        }
+        targets.clear();
+        targets.add(TargetOs.ANY);
+        if (config.targetOs() != null) {
+            for (final String targetOs : config.targetOs()) {
+                if (targetOs.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    targets.add(TargetOs.fromName(targetOs.trim()));
+                } catch (IllegalArgumentException e) {
+                    logService.log(LogService.LOG_WARNING, e.getMessage());
+                }
+            }
+        }
+        if (config.runtimeCodec() != null && config.runtimeCodec().length() != 0) {
+            try {
+                runtimeCodec = FramedArchive.Codec.fromName(config.runtimeCodec());
+            } catch (IllegalArgumentException e) {
+                logService.log(LogService.LOG_WARNING,
+                        "Unsupported runtime codec: " + config.runtimeCodec() + " (using gz)");
+            }
+        }
 
         bootstrapPackageBuilderThread = new Thread(bootstapTask, "Stamina Bootstrap Package Builder");
         bootstrapPackageBuilderThread.setPriority(Thread.MIN_PRIORITY);
@@ -126,14 +386,30 @@ public class BootstrapPackageManager {
 
     @Deactivate
     void deactivate() {
+        synchronized (this) {
+            // No package is published once this flag is set.
+            stopped = true;
+        }
         if (bootstrapPackageBuilderThread != null) {
             try {
                 bootstrapPackageBuilderThread.join(1000 * 30);
-            } catch (InterruptedException ignore) {
+                if (bootstrapPackageBuilderThread.isAlive()) {
+                    bootstrapPackageBuilderThread.interrupt();
+                    bootstrapPackageBuilderThread.join(1000 * 30);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (bootstrapPackageBuilderThread.isAlive()) {
+                logService.log(LogService.LOG_WARNING,
+                        "Bootstrap package builder is still running: stopping anyway");
             }
-            bootstrapPackageBuilderThread.interrupt();
             bootstrapPackageBuilderThread = null;
         }
+        if (launcherPackages != null) {
+            launcherPackages.close();
+            launcherPackages = null;
+        }
         if (bootstrapPackageReg != null) {
             bootstrapPackageReg.unregister();
             bootstrapPackageReg = null;
@@ -142,30 +418,96 @@ public class BootstrapPackageManager {
             httpService.unregister(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_PATH);
         } catch (IllegalArgumentException ignore) {
         }
+        synchronized (this) {
+            if (bootstrapPackageServlet != null) {
+                bootstrapPackageServlet.unpublish();
+                bootstrapPackageServlet = null;
+            }
+        }
+        try {
+            httpService.unregister(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_DIGEST_PATH);
+        } catch (IllegalArgumentException ignore) {
+        }
+        try {
+            httpService.unregister(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_DELTA_PATH);
+        } catch (IllegalArgumentException ignore) {
+        }
+        try {
+            httpService.unregister(BootstrapAdminConstants.BOOT_TIMINGS_PATH);
+        } catch (IllegalArgumentException ignore) {
+        }
+        try {
+            httpService.unregister(BootstrapAdminConstants.BOOTSTRAP_METRICS_PATH);
+        } catch (IllegalArgumentException ignore) {
+        }
+        if (metricsReg != null) {
+            metricsReg.unregister();
+            metricsReg = null;
+        }
+        metrics = null;
+        for (final BootstrapPackageHistory history : bootstrapPackageHistories.values()) {
+            history.close();
+        }
+        bootstrapPackageHistories.clear();
+        downloadThrottle = null;
+        addonCache = null;
         this.bundleContext = null;
     }
 
-    private void exposeBootstrapPackage(Path bootstrapPkg) throws IOException {
-        final URL bootstrapPkgUrl = bootstrapPkg.toUri().toURL();
-        final HttpContext httpContext = new HttpContext() {
-            @Override
-            public boolean handleSecurity(HttpServletRequest request, HttpServletResponse response) throws IOException {
-                return true;
-            }
+    private static Path getBootstrapPackageFile(BundleContext bundleContext, TargetOs targetOs) {
+        return bundleContext.getDataFile("bootstrap" + targetOs.fileSuffix() + ".pkg").toPath();
+    }
 
-            @Override
-            public URL getResource(String name) {
-                return bootstrapPkgUrl;
-            }
+    private static Path getBuildInfoFile(BundleContext bundleContext, TargetOs targetOs) {
+        return bundleContext.getDataFile("bootstrap" + targetOs.fileSuffix() + ".pkg.build").toPath();
+    }
 
-            @Override
-            public String getMimeType(String name) {
-                return BootstrapAdminConstants.BOOTSTRAP_PACKAGE_MIME_TYPE;
-            }
-        };
+    /**
+     * Read build info: input fingerprint and package digest.
+     *
+     * @return build info, or <code>null</code> if there is no valid build info
+     */
+    private String[] readBuildInfo(Path buildInfoFile) {
+        if (!Files.exists(buildInfoFile)) {
+            return null;
+        }
+        try {
+            final String[] buildInfo = new String(Files.readAllBytes(buildInfoFile), "UTF-8").trim().split(" ");
+            return buildInfo.length == 2 && buildInfo[1].matches("[0-9a-f]{64}") ? buildInfo : null;
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to read bootstrap package build info", e);
+            return null;
+        }
+    }
+
+    private synchronized void exposeBootstrapPackage(BootstrapPackageHistory history, TargetOs targetOs,
+                                                     Path bootstrapPkg, String digest) throws IOException {
+        if (stopped) {
+            // Component is being deactivated: endpoints are unregistered.
+            return;
+        }
+        try {
+            history.publish(bootstrapPkg, digest);
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to record bootstrap package version", e);
+        }
+
+        if (bootstrapPackageServlet != null) {
+            // Endpoints are already registered: swap package being served.
+            bootstrapPackageServlet.publish(targetOs, bootstrapPkg, Digests.fromHex(digest));
+            logService.log(LogService.LOG_INFO,
+                    "Bootstrap package updated for OS " + targetOs.id() + ": " + digest);
+            return;
+        }
+
+        // Package digest is published, so that launchers can check download integrity.
+        final BootstrapPackageServlet servlet = new BootstrapPackageServlet(logService, downloadThrottle, metrics, launcherPackages);
+        servlet.publish(targetOs, bootstrapPkg, Digests.fromHex(digest));
         try {
-            httpService.registerResources(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_PATH,
-                    bootstrapPkg.toString(), httpContext);
+            httpService.registerServlet(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_DIGEST_PATH,
+                    new BootstrapPackageDigestServlet(servlet), null, null);
+            httpService.registerServlet(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_PATH, servlet, null, null);
+            bootstrapPackageServlet = servlet;
             bootstrapPackageReg =
                     bundleContext.registerService(BootstrapPackage.class, new BootstrapPackage() {
                         @Override
@@ -173,7 +515,8 @@ public class BootstrapPackageManager {
                             return Collections.unmodifiableSet(httpEndpoints);
                         }
                     }, null);
-        } catch (NamespaceException e) {
+        } catch (ServletException | NamespaceException e) {
+            servlet.unpublish();
             logService.log(LogService.LOG_ERROR,
                     "Failed to register bootstrap package as a web resource", e);
         }
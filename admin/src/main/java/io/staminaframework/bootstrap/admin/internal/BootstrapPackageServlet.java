@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import org.osgi.service.log.LogService;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Servlet sending the bootstrap package.
+ * <p>
+ * The package is sent from a file channel, without going through
+ * an intermediate stream. Single byte ranges are supported, so that
+ * launchers may resume a download or fetch chunks from several endpoints.
+ * The package digest is used as a strong entity tag:
+ * conditional requests are answered without sending the package again.
+ * <p>
+ * Transfers go through a {@link DownloadThrottle}: when too many transfers are running,
+ * a <code>503</code> status is returned with a <code>Retry-After</code> header.
+ * Small ranges (such as probes sent by launchers) are always served.
+ * <p>
+ * A new package version may be published at any time: requests being served
+ * keep reading the previous version, which is closed once these requests are done.
+ * <p>
+ * A package may be published for each {@link TargetOs}: launchers are sent the package
+ * matching the OS set in their <code>User-Agent</code>, or the package for any OS
+ * if there is no such package.
+ * <p>
+ * Launchers matching a {@link LauncherPackages} rule are sent a dedicated package.
+ * A <code>503</code> status is returned while this package is being built.
+ *
+ * @author Stamina Framework developers
+ */
+class BootstrapPackageServlet extends HttpServlet {
+    static final int SLICE_SIZE = 1024 * 64;
+    private final LogService logService;
+    private final DownloadThrottle throttle;
+    private final BootstrapAdminMetrics metrics;
+    private final LauncherPackages launcherPackages;
+    private final Map<TargetOs, AtomicReference<PublishedPackage>> current = new EnumMap<>(TargetOs.class);
+
+    public BootstrapPackageServlet(final LogService logService, final DownloadThrottle throttle,
+                                   final BootstrapAdminMetrics metrics) {
+        this(logService, throttle, metrics, null);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param logService       log service
+     * @param throttle         throttle for package transfers
+     * @param metrics          where requests are recorded
+     * @param launcherPackages packages built for some launchers, may be <code>null</code>
+     */
+    public BootstrapPackageServlet(final LogService logService, final DownloadThrottle throttle,
+                                   final BootstrapAdminMetrics metrics, final LauncherPackages launcherPackages) {
+        this.logService = logService;
+        this.throttle = throttle;
+        this.metrics = metrics;
+        this.launcherPackages = launcherPackages;
+        for (final TargetOs targetOs : TargetOs.values()) {
+            current.put(targetOs, new AtomicReference<>());
+        }
+    }
+
+    /**
+     * Publish a bootstrap package version, replacing the current one.
+     *
+     * @param bootstrapPackage bootstrap package file
+     * @param sha256           bootstrap package digest
+     * @throws IOException if the bootstrap package could not be opened
+     */
+    public void publish(Path bootstrapPackage, byte[] sha256) throws IOException {
+        publish(TargetOs.ANY, bootstrapPackage, sha256);
+    }
+
+    /**
+     * Publish a bootstrap package version for an OS, replacing the current one.
+     *
+     * @param targetOs         operating system this package was built for
+     * @param bootstrapPackage bootstrap package file
+     * @param sha256           bootstrap package digest
+     * @throws IOException if the bootstrap package could not be opened
+     */
+    public void publish(TargetOs targetOs, Path bootstrapPackage, byte[] sha256) throws IOException {
+        final PublishedPackage previous =
+                current.get(targetOs).getAndSet(new PublishedPackage(bootstrapPackage, sha256));
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Stop publishing bootstrap packages.
+     */
+    public void unpublish() {
+        for (final AtomicReference<PublishedPackage> ref : current.values()) {
+            final PublishedPackage previous = ref.getAndSet(null);
+            if (previous != null) {
+                previous.release();
+            }
+        }
+    }
+
+    /**
+     * Get the package sent to a launcher.
+     * <p>
+     * The returned future is not complete while a package is being built for this launcher.
+     * Once complete, it holds <code>null</code> if no package is published.
+     *
+     * @param req launcher request
+     * @return package sent to this launcher
+     */
+    CompletableFuture<PublishedPackage> select(HttpServletRequest req) {
+        final TargetOs targetOs = TargetOs.fromUserAgent(req.getHeader("User-Agent"));
+        if (launcherPackages != null) {
+            final CompletableFuture<PublishedPackage> pkg =
+                    launcherPackages.get(req.getHeader(BootstrapAdminConstants.LAUNCHER_ID_HEADER), targetOs);
+            // Default package is sent if the launcher package could not be built.
+            if (pkg != null && !pkg.isCompletedExceptionally()) {
+                return pkg;
+            }
+        }
+        return CompletableFuture.completedFuture(select(targetOs));
+    }
+
+    /**
+     * Get delay in seconds before a launcher should try again.
+     */
+    int retryAfter() {
+        return throttle.retryAfter();
+    }
+
+    private PublishedPackage select(TargetOs targetOs) {
+        final PublishedPackage pkg = current.get(targetOs).get();
+        return pkg != null ? pkg : current.get(TargetOs.ANY).get();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        handle(req, resp, true);
+    }
+
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        handle(req, resp, false);
+    }
+
+    private void handle(HttpServletRequest req, HttpServletResponse resp, boolean withContent) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            send(req, resp, withContent);
+        } finally {
+            metrics.record(AdminMetrics.REQUEST_DURATION, (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    private void send(HttpServletRequest req, HttpServletResponse resp, boolean withContent) throws IOException {
+        metrics.increment(AdminMetrics.REQUESTS);
+        // Caches must not send a package built for another launcher.
+        resp.setHeader("Vary", launcherPackages == null
+                ? "User-Agent" : "User-Agent, " + BootstrapAdminConstants.LAUNCHER_ID_HEADER);
+        PublishedPackage pkg;
+        do {
+            final CompletableFuture<PublishedPackage> selected = select(req);
+            if (!selected.isDone()) {
+                logService.log(LogService.LOG_DEBUG,
+                        "Bootstrap package is being built for " + req.getRemoteAddr());
+                resp.setHeader("Retry-After", String.valueOf(throttle.retryAfter()));
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            pkg = selected.join();
+            if (pkg == null) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+        } while (!pkg.retain());
+        try {
+            send(req, resp, withContent, pkg);
+        } finally {
+            pkg.release();
+        }
+    }
+
+    private void send(HttpServletRequest req, HttpServletResponse resp, boolean withContent,
+                      PublishedPackage pkg) throws IOException {
+        final String etag = pkg.etag;
+        final String ifMatch = req.getHeader("If-Match");
+        if (ifMatch != null && !matches(ifMatch, etag)) {
+            resp.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+            return;
+        }
+        resp.setHeader("ETag", etag);
+        resp.setDateHeader("Last-Modified", pkg.lastModified);
+        resp.setHeader("Accept-Ranges", "bytes");
+        if (isNotModified(req, pkg)) {
+            metrics.increment(AdminMetrics.NOT_MODIFIED);
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        try {
+            final FileChannel ch = pkg.channel;
+            final long length = ch.size();
+            long start = 0;
+            long end = length - 1;
+            boolean partial = false;
+            final String range = req.getHeader("Range");
+            if (range != null && isRangeApplicable(req, pkg)) {
+                final long[] bounds = parseRange(range, length);
+                if (bounds != null) {
+                    if (bounds[0] > bounds[1] || bounds[0] >= length) {
+                        resp.setHeader("Content-Range", "bytes */" + length);
+                        resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                        return;
+                    }
+                    start = bounds[0];
+                    end = bounds[1];
+                    partial = true;
+                }
+            }
+
+            final long contentLength = end - start + 1;
+            final DownloadThrottle.Transfer transfer;
+            if (withContent && contentLength > SLICE_SIZE) {
+                transfer = throttle.begin(req.getRemoteAddr());
+                if (transfer == null) {
+                    metrics.increment(AdminMetrics.DOWNLOADS_REJECTED);
+                    logService.log(LogService.LOG_DEBUG,
+                            "Too many bootstrap package transfers: rejecting " + req.getRemoteAddr());
+                    resp.setHeader("Retry-After", String.valueOf(throttle.retryAfter()));
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+            } else {
+                transfer = null;
+            }
+
+            boolean inFlight = false;
+            try {
+                resp.setContentType(BootstrapAdminConstants.BOOTSTRAP_PACKAGE_MIME_TYPE);
+                resp.setHeader("Digest", pkg.digestHeader);
+                if (partial) {
+                    resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                } else {
+                    resp.setStatus(HttpServletResponse.SC_OK);
+                }
+                resp.setContentLengthLong(contentLength);
+                if (!withContent) {
+                    return;
+                }
+
+                metrics.increment(AdminMetrics.DOWNLOADS);
+                metrics.add(AdminMetrics.DOWNLOADS_IN_FLIGHT, 1);
+                inFlight = true;
+                final OutputStream out = resp.getOutputStream();
+                // Use the response stream as a channel if the container allows it.
+                final WritableByteChannel outChannel = out instanceof WritableByteChannel
+                        ? (WritableByteChannel) out : Channels.newChannel(out);
+                final boolean shaping = transfer != null && throttle.isShaping();
+                for (long pos = start; pos <= end; ) {
+                    long count = end - pos + 1;
+                    if (shaping) {
+                        // Data is sent in slices, waiting for bandwidth to be available.
+                        count = Math.min(count, SLICE_SIZE);
+                        transfer.consume(count);
+                    }
+                    final long transferred = ch.transferTo(pos, count, outChannel);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    pos += transferred;
+                    metrics.add(AdminMetrics.BYTES_SERVED, transferred);
+                }
+            } finally {
+                if (inFlight) {
+                    metrics.add(AdminMetrics.DOWNLOADS_IN_FLIGHT, -1);
+                }
+                if (transfer != null) {
+                    transfer.close();
+                }
+            }
+        } catch (IOException e) {
+            logService.log(LogService.LOG_DEBUG,
+                    "Error while sending bootstrap package to " + req.getRemoteAddr(), e);
+            throw e;
+        }
+    }
+
+    private static boolean isNotModified(HttpServletRequest req, PublishedPackage pkg) {
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, pkg.etag);
+        }
+        try {
+            final long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+            return ifModifiedSince != -1 && pkg.lastModified <= ifModifiedSince;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean isRangeApplicable(HttpServletRequest req, PublishedPackage pkg) {
+        // A range is only sent if the launcher still has the same package version.
+        final String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return pkg.etag.equals(ifRange.trim());
+        }
+        try {
+            return req.getDateHeader("If-Range") == pkg.lastModified;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean matches(String etags, String etag) {
+        for (final String candidate : etags.split(",")) {
+            final String t = candidate.trim();
+            if ("*".equals(t) || etag.equals(t) || ("W/" + etag).equals(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a single byte range.
+     * Multiple ranges are not supported: the whole package is sent instead.
+     *
+     * @param range  range header value
+     * @param length package length
+     * @return first and last byte positions, <code>null</code> if the whole package must be sent
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length()).trim();
+        final int i = spec.indexOf('-');
+        if (i == -1) {
+            return null;
+        }
+        try {
+            if (i == 0) {
+                final long suffixLength = Long.parseLong(spec.substring(1));
+                if (suffixLength == 0) {
+                    return new long[]{length, length - 1};
+                }
+                return new long[]{Math.max(0, length - suffixLength), length - 1};
+            }
+            final long start = Long.parseLong(spec.substring(0, i));
+            long end = length - 1;
+            if (i < spec.length() - 1) {
+                end = Math.min(end, Long.parseLong(spec.substring(i + 1)));
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Published bootstrap package version.
+     * The package file is kept open until this version is replaced,
+     * and no request is using it.
+     */
+    static class PublishedPackage {
+        final Path file;
+        final FileChannel channel;
+        final String sha256;
+        final String etag;
+        final String digestHeader;
+        final long lastModified;
+        private final boolean deleteOnClose;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        PublishedPackage(final Path bootstrapPackage, final byte[] sha256) throws IOException {
+            this(bootstrapPackage, sha256, false);
+        }
+
+        /**
+         * Create a new instance.
+         *
+         * @param bootstrapPackage bootstrap package file
+         * @param sha256           bootstrap package digest
+         * @param deleteOnClose    if the package file is deleted once no request is using it
+         * @throws IOException if the bootstrap package could not be opened
+         */
+        PublishedPackage(final Path bootstrapPackage, final byte[] sha256,
+                         final boolean deleteOnClose) throws IOException {
+            this.file = bootstrapPackage;
+            this.deleteOnClose = deleteOnClose;
+            this.channel = FileChannel.open(bootstrapPackage, StandardOpenOption.READ);
+            this.sha256 = Digests.toHex(sha256);
+            this.etag = "\"" + this.sha256 + "\"";
+            this.digestHeader = "SHA-256=" + Base64.getEncoder().encodeToString(sha256);
+            // HTTP dates have a one second resolution.
+            this.lastModified = Files.getLastModifiedTime(bootstrapPackage).toMillis() / 1000 * 1000;
+        }
+
+        boolean retain() {
+            for (int n; (n = references.get()) != 0; ) {
+                if (references.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                    if (deleteOnClose) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+}
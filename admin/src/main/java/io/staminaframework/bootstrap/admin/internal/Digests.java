@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest utilities.
+ *
+ * @author Stamina Framework developers
+ */
+final class Digests {
+    private Digests() {
+    }
+
+    /**
+     * Create a new SHA-256 message digest.
+     *
+     * @return message digest instance
+     */
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unexpected error", e);
+        }
+    }
+
+    /**
+     * Compute SHA-256 digest of a file.
+     *
+     * @param file file to read
+     * @return raw digest
+     * @throws IOException if file could not be read
+     */
+    public static byte[] sha256(Path file) throws IOException {
+        final MessageDigest md = newSha256();
+        final byte[] buf = new byte[1024 * 64];
+        try (final InputStream in = Files.newInputStream(file)) {
+            for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                md.update(buf, 0, bytesRead);
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Encode binary data as an hexadecimal string.
+     *
+     * @param data data to encode
+     * @return lower case hexadecimal string
+     */
+    public static String toHex(byte[] data) {
+        final StringBuilder buf = new StringBuilder(data.length * 2);
+        for (final byte b : data) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Decode an hexadecimal string.
+     *
+     * @param hex hexadecimal string
+     * @return decoded data
+     * @throws IllegalArgumentException if this string is not a valid hexadecimal string
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid hexadecimal string: " + hex);
+        }
+        final byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; ++i) {
+            final int hi = Character.digit(hex.charAt(i * 2), 16);
+            final int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi == -1 || lo == -1) {
+                throw new IllegalArgumentException("Invalid hexadecimal string: " + hex);
+            }
+            data[i] = (byte) ((hi << 4) | lo);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control and bandwidth shaping for bootstrap package downloads.
+ * <p>
+ * The number of concurrent transfers is limited: other launchers are asked
+ * to come back later, instead of sharing the network link and the disk
+ * with every launcher at once.
+ * Total bandwidth and bandwidth per client are limited using token buckets.
+ *
+ * @author Stamina Framework developers
+ */
+class DownloadThrottle {
+    private final Semaphore transfers;
+    private final TokenBucket totalBandwidth;
+    private final long clientBandwidth;
+    private final int retryAfter;
+    private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<>(64);
+
+    /**
+     * Create a new instance.
+     *
+     * @param maxTransfers    maximum number of concurrent transfers, <code>0</code> for no limit
+     * @param totalBandwidth  total bandwidth in bytes per second, <code>0</code> for no limit
+     * @param clientBandwidth bandwidth per client in bytes per second, <code>0</code> for no limit
+     * @param retryAfter      delay in seconds before a rejected client should try again
+     */
+    public DownloadThrottle(final int maxTransfers, final long totalBandwidth,
+                            final long clientBandwidth, final int retryAfter) {
+        this.transfers = maxTransfers > 0 ? new Semaphore(maxTransfers) : null;
+        this.totalBandwidth = totalBandwidth > 0 ? new TokenBucket(totalBandwidth) : null;
+        this.clientBandwidth = clientBandwidth;
+        this.retryAfter = Math.max(1, retryAfter);
+    }
+
+    /**
+     * Get the delay before a rejected client should try again.
+     *
+     * @return delay in seconds
+     */
+    public int retryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Check whether transfers are subject to bandwidth limits.
+     * When they are, data must be sent in small slices.
+     *
+     * @return <code>true</code> if bandwidth is limited
+     */
+    public boolean isShaping() {
+        return totalBandwidth != null || clientBandwidth > 0;
+    }
+
+    /**
+     * Start a transfer.
+     *
+     * @param client client address
+     * @return transfer, or <code>null</code> if too many transfers are running
+     */
+    public Transfer begin(String client) {
+        if (transfers != null && !transfers.tryAcquire()) {
+            return null;
+        }
+        final Client c = clients.compute(client, (k, v) -> {
+            final Client state = v != null ? v : new Client(
+                    clientBandwidth > 0 ? new TokenBucket(clientBandwidth) : null);
+            ++state.transfers;
+            return state;
+        });
+        return new Transfer(client, c.bandwidth);
+    }
+
+    /**
+     * Running transfer.
+     */
+    public class Transfer implements AutoCloseable {
+        private final String client;
+        private final TokenBucket bandwidth;
+        private boolean closed;
+
+        Transfer(final String client, final TokenBucket bandwidth) {
+            this.client = client;
+            this.bandwidth = bandwidth;
+        }
+
+        /**
+         * Wait until some bytes may be sent.
+         *
+         * @param bytes number of bytes to send
+         * @throws InterruptedIOException if the current thread was interrupted
+         */
+        public void consume(long bytes) throws InterruptedIOException {
+            if (totalBandwidth != null) {
+                totalBandwidth.consume(bytes);
+            }
+            if (bandwidth != null) {
+                bandwidth.consume(bytes);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            clients.computeIfPresent(client, (k, v) -> --v.transfers == 0 ? null : v);
+            if (transfers != null) {
+                transfers.release();
+            }
+        }
+    }
+
+    /**
+     * Transfers running for a client.
+     */
+    private static class Client {
+        final TokenBucket bandwidth;
+        int transfers;
+
+        Client(final TokenBucket bandwidth) {
+            this.bandwidth = bandwidth;
+        }
+    }
+
+    /**
+     * Token bucket, allowing bursts up to one second of bandwidth.
+     * Tokens may be borrowed: callers wait until the debt is paid back.
+     */
+    private static class TokenBucket {
+        private final long rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(final long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        void consume(long bytes) throws InterruptedIOException {
+            final long waitNanos;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                tokens = Math.min(rate, tokens + (now - lastRefill) / 1e9 * rate);
+                lastRefill = now;
+                tokens -= bytes;
+                waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+            }
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Bootstrap package transfer interrupted");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import io.airlift.compress.Compressor;
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.zstd.ZstdCompressor;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Framed archive encoder.
+ * <p>
+ * Content is split into frames which are compressed independently,
+ * so that frames may be decompressed in parallel by the bootstrap agent.
+ * <p>
+ * Framed archive format:
+ * <pre>
+ * int    magic (0x53524641)
+ * byte   format version (1)
+ * byte   codec identifier
+ * frames:
+ *   int  raw frame length (0 marks the end of the archive)
+ *   int  compressed frame length
+ *   byte compressed frame content
+ * </pre>
+ *
+ * @author Stamina Framework developers
+ */
+final class FramedArchive {
+    private static final int MAGIC = 0x53524641;
+    private static final byte VERSION = 1;
+    private static final int FRAME_SIZE = 1024 * 1024 * 4;
+
+    /**
+     * Codecs available for runtime archives.
+     */
+    enum Codec {
+        /**
+         * Standard gzip compression (not framed).
+         */
+        GZIP("gz", (byte) 0),
+        /**
+         * Zstandard compression.
+         */
+        ZSTD("zst", (byte) 1),
+        /**
+         * LZ4 compression.
+         */
+        LZ4("lz4", (byte) 2);
+
+        private final String extension;
+        private final byte id;
+
+        Codec(final String extension, final byte id) {
+            this.extension = extension;
+            this.id = id;
+        }
+
+        /**
+         * Get file extension for this codec.
+         */
+        public String extension() {
+            return extension;
+        }
+
+        Compressor newCompressor() {
+            switch (this) {
+                case ZSTD:
+                    return new ZstdCompressor();
+                case LZ4:
+                    return new Lz4Compressor();
+                default:
+                    throw new UnsupportedOperationException("Codec is not framed: " + this);
+            }
+        }
+
+        /**
+         * Get a codec from its name or its file extension.
+         *
+         * @param name codec name (for instance: <code>zstd</code> or <code>zst</code>)
+         * @return codec instance
+         * @throws IllegalArgumentException if no such codec exists
+         */
+        public static Codec fromName(String name) {
+            for (final Codec codec : values()) {
+                if (codec.name().equalsIgnoreCase(name) || codec.extension.equalsIgnoreCase(name)) {
+                    return codec;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported codec: " + name);
+        }
+    }
+
+    private FramedArchive() {
+    }
+
+    /**
+     * Write a framed archive. Frames are compressed in parallel.
+     *
+     * @param in    content to compress
+     * @param out   where the framed archive is written
+     * @param codec codec used to compress frames
+     * @throws IOException if content could not be compressed
+     */
+    public static void write(InputStream in, OutputStream out, Codec codec) throws IOException {
+        final DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(MAGIC);
+        dataOut.writeByte(VERSION);
+        dataOut.writeByte(codec.id);
+
+        // Frames are written in order, while a bounded number of frames is being compressed.
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        final int maxPendingFrames = pool.getParallelism() + 1;
+        final Deque<ForkJoinTask<Frame>> pendingFrames = new ArrayDeque<>(maxPendingFrames);
+        try {
+            for (; ; ) {
+                final byte[] raw = new byte[FRAME_SIZE];
+                int len = 0;
+                for (int bytesRead; len < raw.length && (bytesRead = in.read(raw, len, raw.length - len)) != -1; ) {
+                    len += bytesRead;
+                }
+                if (len == 0) {
+                    break;
+                }
+                final int rawLength = len;
+                pendingFrames.addLast(pool.submit(() -> compress(codec.newCompressor(), raw, rawLength)));
+                if (pendingFrames.size() >= maxPendingFrames) {
+                    writeFrame(dataOut, pendingFrames.removeFirst().join());
+                }
+            }
+            while (!pendingFrames.isEmpty()) {
+                writeFrame(dataOut, pendingFrames.removeFirst().join());
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to compress framed archive", e);
+        } finally {
+            for (final ForkJoinTask<Frame> task : pendingFrames) {
+                task.cancel(false);
+            }
+        }
+        dataOut.writeInt(0);
+        dataOut.flush();
+    }
+
+    private static Frame compress(Compressor compressor, byte[] raw, int rawLength) {
+        final byte[] compressed = new byte[compressor.maxCompressedLength(rawLength)];
+        final int len = compressor.compress(raw, 0, rawLength, compressed, 0, compressed.length);
+        return new Frame(rawLength, compressed, len);
+    }
+
+    private static void writeFrame(DataOutputStream out, Frame frame) throws IOException {
+        out.writeInt(frame.rawLength);
+        out.writeInt(frame.length);
+        out.write(frame.data, 0, frame.length);
+    }
+
+    /**
+     * Compressed frame.
+     */
+    private static class Frame {
+        final int rawLength;
+        final byte[] data;
+        final int length;
+
+        Frame(final int rawLength, final byte[] data, final int length) {
+            this.rawLength = rawLength;
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
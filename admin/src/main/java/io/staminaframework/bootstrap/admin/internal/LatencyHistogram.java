@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram, using exponential buckets.
+ * <p>
+ * Bucket <code>i</code> counts values lower or equal to <code>2^i</code>
+ * milliseconds. The last bucket counts all greater values.
+ *
+ * @author Stamina Framework developers
+ */
+class LatencyHistogram {
+    private static final int BUCKET_COUNT = 22;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.
+     *
+     * @param millis value in milliseconds
+     */
+    public void record(long millis) {
+        final long value = Math.max(0, millis);
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1 && value > (1L << bucket)) {
+            ++bucket;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for (long current; value > (current = max.get()); ) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sum() {
+        return sum.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Get bucket upper bound.
+     *
+     * @param bucket bucket index
+     * @return upper bound in milliseconds, {@link Long#MAX_VALUE} for the last bucket
+     */
+    public static long upperBound(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public static int bucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    public long bucket(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * Estimate a quantile from histogram buckets.
+     *
+     * @param q quantile, between 0 and 1
+     * @return upper bound of the bucket holding this quantile
+     */
+    public long quantile(double q) {
+        final long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Get a JSON representation of this histogram.
+     * Empty buckets are omitted.
+     */
+    public JsonObject toJson() {
+        final JsonArray jsonBuckets = Json.array();
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            final long n = buckets.get(i);
+            if (n != 0) {
+                final JsonObject jsonBucket = Json.object();
+                if (i == BUCKET_COUNT - 1) {
+                    jsonBucket.add("le", "+Inf");
+                } else {
+                    jsonBucket.add("le", upperBound(i));
+                }
+                jsonBucket.add("count", n);
+                jsonBuckets.add(jsonBucket);
+            }
+        }
+        return Json.object()
+                .add("count", count())
+                .add("sum", sum())
+                .add("max", max())
+                .add("p50", quantile(0.5))
+                .add("p99", quantile(0.99))
+                .add("buckets", jsonBuckets);
+    }
+}
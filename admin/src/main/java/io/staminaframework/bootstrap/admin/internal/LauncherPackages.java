@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bootstrap packages built for some launchers.
+ * <p>
+ * Rules map launcher identifiers (sent using the <code>StaminaBootstrap-Id</code> header)
+ * to additional addons and to an overlay. A rule is written as
+ * <code>launcherId[,launcherId...]|addon[,addon...][|overlay]</code>:
+ * launchers listed in the same rule form a group sharing the same package.
+ * <p>
+ * Packages are built on demand, and cached using a key computed from
+ * their content (base package inputs, addon and overlay content, and target OS):
+ * launchers getting the same content share the same package. Addons and overlays
+ * are checked for changes each time inputs are updated. Requests for a package
+ * being built are merged into a single build. Only the most recently used
+ * packages are kept.
+ *
+ * @author Stamina Framework developers
+ */
+class LauncherPackages {
+    private static final int MAX_CONCURRENT_BUILDS = 2;
+    /**
+     * Delay before a failed build is attempted again.
+     */
+    private static final long FAILURE_RETRY_DELAY = 1000 * 60;
+    private static final String PACKAGE_SUFFIX = ".pkg";
+    private static final CompletableFuture<BootstrapPackageServlet.PublishedPackage> NO_PACKAGE;
+    private final LogService logService;
+    private final BundleContext bundleContext;
+    private final BootstrapAdminMetrics metrics;
+    private final AddonCache addonCache;
+    private final Path cacheDir;
+    private final Map<String, Rule> rules;
+    private final Map<String, CachedPackage> packages;
+    private final ExecutorService executor;
+    /**
+     * Returned while base package inputs are not known.
+     * It completes once inputs are known, or if they could not be computed:
+     * launchers waiting for this future then ask again, or get the default package.
+     */
+    private final CompletableFuture<BootstrapPackageServlet.PublishedPackage> pending = new CompletableFuture<>();
+    private volatile Inputs inputs;
+
+    static {
+        NO_PACKAGE = new CompletableFuture<>();
+        NO_PACKAGE.completeExceptionally(new IllegalStateException("No package available"));
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param logService    log service
+     * @param bundleContext bundle context
+     * @param metrics       where builds are recorded
+     * @param addonCache    where addons are cached between builds
+     * @param cacheDir      where packages are written
+     * @param maxPackages   maximum number of packages to keep
+     * @param rules         rules mapping launchers to packages
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    public LauncherPackages(final LogService logService, final BundleContext bundleContext,
+                            final BootstrapAdminMetrics metrics, final AddonCache addonCache,
+                            final Path cacheDir, final int maxPackages, final List<String> rules) {
+        this.logService = logService;
+        this.bundleContext = bundleContext;
+        this.metrics = metrics;
+        this.addonCache = addonCache;
+        this.cacheDir = cacheDir;
+        this.rules = parseRules(rules);
+        this.packages = new LinkedHashMap<String, CachedPackage>(maxPackages * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPackage> eldest) {
+                if (size() > Math.max(1, maxPackages)) {
+                    metrics.increment(AdminMetrics.LAUNCHER_PACKAGE_CACHE_EVICTIONS);
+                    evict(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(MAX_CONCURRENT_BUILDS, r -> {
+            final Thread t = new Thread(r, "Stamina Bootstrap Launcher Package Builder");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Check if there is no rule.
+     */
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * Check if a launcher gets a dedicated package.
+     *
+     * @param launcherId launcher identifier, may be <code>null</code>
+     */
+    public boolean hasRule(String launcherId) {
+        return launcherId != null && rules.containsKey(launcherId);
+    }
+
+    /**
+     * Set inputs shared by all packages.
+     * Cached packages are dropped if the base package inputs changed.
+     * Rule addons and overlays are read to compute package keys.
+     *
+     * @param baseFingerprint fingerprint of base package inputs
+     * @param runtimeCodec    codec used to compress the runtime archive
+     * @param baseAddonUrls   addons included in every package
+     * @param resolver        resolver for rule addons
+     */
+    public void update(String baseFingerprint, FramedArchive.Codec runtimeCodec,
+                       List<String> baseAddonUrls, AddonResolver resolver) {
+        final Map<Rule, List<String>> ruleAddonUrls = new IdentityHashMap<>(rules.size());
+        final Map<Rule, String> ruleFingerprints = new IdentityHashMap<>(rules.size());
+        final BootstrapPackageBuilder builder = new BootstrapPackageBuilder(bundleContext, metrics, addonCache);
+        for (final Rule rule : new LinkedHashSet<>(rules.values())) {
+            // Launchers matching a rule which could not be resolved get the default package.
+            final List<String> urls = new ArrayList<>(baseAddonUrls);
+            try {
+                urls.addAll(resolver.resolve(rule.addons));
+            } catch (IllegalArgumentException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to resolve addons for launchers "
+                        + rule.launcherIds + ": " + e.getMessage());
+                continue;
+            }
+            ruleAddonUrls.put(rule, urls);
+            try {
+                ruleFingerprints.put(rule, builder.fingerprint(baseFingerprint, rule.overlay, urls));
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to read addons for launchers "
+                        + rule.launcherIds, e);
+            }
+        }
+
+        synchronized (this) {
+            if (inputs == null) {
+                // Packages from a previous instance are not used anymore.
+                deleteFiles();
+            } else if (!inputs.baseFingerprint.equals(baseFingerprint)) {
+                clear();
+            }
+            inputs = new Inputs(baseFingerprint, runtimeCodec, ruleAddonUrls, ruleFingerprints);
+        }
+        pending.completeExceptionally(new IllegalStateException("Launcher package inputs were updated"));
+    }
+
+    /**
+     * Record that base package inputs could not be computed.
+     * Until inputs are set, launchers get the default package.
+     */
+    public void updateFailed() {
+        pending.completeExceptionally(new IllegalStateException("Launcher package inputs are not available"));
+    }
+
+    /**
+     * Get addons used by rules.
+     *
+     * @return addon URLs
+     */
+    public Set<String> addonUrls() {
+        final Set<String> urls = new LinkedHashSet<>(16);
+        final Inputs in = inputs;
+        if (in != null) {
+            for (final List<String> ruleUrls : in.ruleAddonUrls.values()) {
+                urls.addAll(ruleUrls);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Get the package for a launcher, starting a build if needed.
+     * <p>
+     * The returned future is not complete while the package is being built.
+     * It completes exceptionally if the launcher should get the default package.
+     *
+     * @param launcherId launcher identifier, may be <code>null</code>
+     * @param targetOs   operating system running the launcher
+     * @return launcher package, <code>null</code> if no rule matches this launcher
+     */
+    public CompletableFuture<BootstrapPackageServlet.PublishedPackage> get(String launcherId, TargetOs targetOs) {
+        final Rule rule = launcherId == null ? null : rules.get(launcherId);
+        if (rule == null) {
+            return null;
+        }
+        final Inputs in = inputs;
+        if (in == null) {
+            // Base package inputs are not known yet.
+            return pending;
+        }
+        final List<String> addonUrls = in.ruleAddonUrls.get(rule);
+        final String ruleFingerprint = in.ruleFingerprints.get(rule);
+        if (addonUrls == null || ruleFingerprint == null) {
+            return NO_PACKAGE;
+        }
+
+        final String key = BootstrapPackageBuilder.fingerprint(ruleFingerprint, targetOs);
+        final CachedPackage entry;
+        synchronized (this) {
+            if (in != inputs) {
+                // Inputs were just updated: this package may be stale.
+                return get(launcherId, targetOs);
+            }
+            final CachedPackage cached = packages.get(key);
+            if (cached != null && !cached.isExpired()) {
+                metrics.increment(AdminMetrics.LAUNCHER_PACKAGE_CACHE_HITS);
+                return cached.future;
+            }
+            entry = new CachedPackage();
+            packages.put(key, entry);
+        }
+        try {
+            executor.execute(() -> build(key, entry, in, addonUrls, rule.overlay, targetOs));
+        } catch (RuntimeException e) {
+            // Executor is shut down.
+            entry.future.completeExceptionally(e);
+        }
+        return entry.future;
+    }
+
+    /**
+     * Stop building packages, and delete cached packages.
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ignore) {
+        }
+        synchronized (this) {
+            clear();
+        }
+        pending.completeExceptionally(new IllegalStateException("Launcher packages are not available"));
+    }
+
+    private void build(String key, CachedPackage entry, Inputs in, List<String> addonUrls,
+                       Path overlay, TargetOs targetOs) {
+        logService.log(LogService.LOG_INFO, "Building launcher bootstrap package " + key
+                + " for OS " + targetOs.id() + " with addons: " + addonUrls
+                + (overlay == null ? "" : " and overlay: " + overlay));
+        metrics.increment(AdminMetrics.LAUNCHER_PACKAGE_BUILDS);
+        final Path pkgFile = cacheDir.resolve(key + PACKAGE_SUFFIX);
+        final Path tmpPkgFile = pkgFile.resolveSibling(pkgFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(cacheDir);
+            new BootstrapPackageBuilder(bundleContext, metrics, addonCache)
+                    .build(tmpPkgFile, overlay, addonUrls, in.runtimeCodec, targetOs);
+            Files.move(tmpPkgFile, pkgFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            entry.future.complete(
+                    new BootstrapPackageServlet.PublishedPackage(pkgFile, Digests.sha256(pkgFile), true));
+        } catch (Exception e) {
+            metrics.increment(AdminMetrics.LAUNCHER_PACKAGE_BUILD_FAILURES);
+            logService.log(LogService.LOG_ERROR, "Error while building launcher bootstrap package " + key, e);
+            entry.failureTime = System.currentTimeMillis();
+            entry.future.completeExceptionally(e);
+        } finally {
+            try {
+                Files.deleteIfExists(tmpPkgFile);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void clear() {
+        for (final CachedPackage entry : packages.values()) {
+            evict(entry);
+        }
+        packages.clear();
+    }
+
+    private void deleteFiles() {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(cacheDir)) {
+            for (final Path file : dirStream) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to clean launcher packages: " + cacheDir, e);
+        }
+    }
+
+    private static void evict(CachedPackage entry) {
+        // Package file is deleted once no request is using it.
+        entry.future.thenAccept(BootstrapPackageServlet.PublishedPackage::release);
+    }
+
+    private static Map<String, Rule> parseRules(List<String> rawRules) {
+        final Map<String, Rule> rules = new HashMap<>(rawRules.size() * 4);
+        for (final String rawRule : rawRules) {
+            if (rawRule.trim().isEmpty()) {
+                continue;
+            }
+            final String[] parts = rawRule.split("\\|", -1);
+            if (parts.length < 2 || parts.length > 3) {
+                throw new IllegalArgumentException("Invalid launcher rule: " + rawRule);
+            }
+            final List<String> launcherIds = split(parts[0]);
+            if (launcherIds.isEmpty()) {
+                throw new IllegalArgumentException("No launcher set in rule: " + rawRule);
+            }
+            final Path overlay = parts.length == 3 && !parts[2].trim().isEmpty() ? Paths.get(parts[2].trim()) : null;
+            final Rule rule = new Rule(launcherIds, split(parts[1]), overlay);
+            for (final String launcherId : launcherIds) {
+                if (rules.put(launcherId, rule) != null) {
+                    throw new IllegalArgumentException("Launcher is set in several rules: " + launcherId);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(rules);
+    }
+
+    private static List<String> split(String values) {
+        final List<String> result = new ArrayList<>(4);
+        for (final String value : Arrays.asList(values.split(","))) {
+            if (!value.trim().isEmpty()) {
+                result.add(value.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rule mapping launchers to a package.
+     */
+    private static class Rule {
+        final List<String> launcherIds;
+        final List<String> addons;
+        final Path overlay;
+
+        Rule(final List<String> launcherIds, final List<String> addons, final Path overlay) {
+            this.launcherIds = launcherIds;
+            this.addons = addons;
+            this.overlay = overlay;
+        }
+    }
+
+    /**
+     * Inputs shared by all packages.
+     */
+    private static class Inputs {
+        final String baseFingerprint;
+        final FramedArchive.Codec runtimeCodec;
+        final Map<Rule, List<String>> ruleAddonUrls;
+        final Map<Rule, String> ruleFingerprints;
+
+        Inputs(final String baseFingerprint, final FramedArchive.Codec runtimeCodec,
+               final Map<Rule, List<String>> ruleAddonUrls, final Map<Rule, String> ruleFingerprints) {
+            this.baseFingerprint = baseFingerprint;
+            this.runtimeCodec = runtimeCodec;
+            this.ruleAddonUrls = ruleAddonUrls;
+            this.ruleFingerprints = ruleFingerprints;
+        }
+    }
+
+    /**
+     * Cached package, which may still be building.
+     */
+    private static class CachedPackage {
+        final CompletableFuture<BootstrapPackageServlet.PublishedPackage> future = new CompletableFuture<>();
+        volatile long failureTime;
+
+        boolean isExpired() {
+            return failureTime != 0 && System.currentTimeMillis() - failureTime > FAILURE_RETRY_DELAY;
+        }
+    }
+}
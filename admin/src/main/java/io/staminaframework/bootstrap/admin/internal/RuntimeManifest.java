@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Runtime archive manifest, listing runtime files.
+ * <p>
+ * The bootstrap agent compares this manifest with the manifest of the installed runtime,
+ * so that only new or updated files are extracted when a runtime is upgraded.
+ * <p>
+ * Manifest is a UTF-8 text file, with one line per file:
+ * <code>sha256 size path</code>.
+ * File paths are relative to the runtime directory.
+ *
+ * @author Stamina Framework developers
+ */
+final class RuntimeManifest {
+    private final Map<String, String> files = new TreeMap<>();
+
+    private RuntimeManifest() {
+    }
+
+    /**
+     * Create a manifest from a zip runtime archive.
+     *
+     * @param in runtime archive content
+     * @return runtime manifest
+     * @throws IOException if the runtime archive could not be read
+     */
+    public static RuntimeManifest fromZip(InputStream in) throws IOException {
+        final RuntimeManifest manifest = new RuntimeManifest();
+        final byte[] buf = new byte[1024 * 64];
+        try (final ZipInputStream zip = new ZipInputStream(in)) {
+            for (ZipEntry ze; (ze = zip.getNextEntry()) != null; ) {
+                if (!ze.isDirectory()) {
+                    manifest.add(ze.getName(), zip, buf);
+                }
+                zip.closeEntry();
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Create a manifest from a tar runtime archive.
+     *
+     * @param in runtime archive content (decompressed)
+     * @return runtime manifest
+     * @throws IOException if the runtime archive could not be read
+     */
+    public static RuntimeManifest fromTar(InputStream in) throws IOException {
+        final RuntimeManifest manifest = new RuntimeManifest();
+        final byte[] buf = new byte[1024 * 64];
+        try (final TarArchiveInputStream tar = new TarArchiveInputStream(in)) {
+            for (TarArchiveEntry te; (te = tar.getNextTarEntry()) != null; ) {
+                if (!te.isDirectory()) {
+                    manifest.add(te.getName(), tar, buf);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private void add(String entryName, InputStream in, byte[] buf) throws IOException {
+        // First path segment is removed by the bootstrap agent when the runtime is extracted.
+        final String path = entryName.substring(entryName.indexOf('/') + 1);
+        final MessageDigest md = Digests.newSha256();
+        long size = 0;
+        for (int bytesRead; (bytesRead = in.read(buf)) != -1; size += bytesRead) {
+            md.update(buf, 0, bytesRead);
+        }
+        if (path.length() != 0 && !path.endsWith("/")) {
+            files.put(path, Digests.toHex(md.digest()) + " " + size);
+        }
+    }
+
+    /**
+     * Write this manifest.
+     *
+     * @param out where the manifest is written
+     * @throws IOException if the manifest could not be written
+     */
+    public void write(OutputStream out) throws IOException {
+        final Writer writer = new OutputStreamWriter(out, "UTF-8");
+        for (final Map.Entry<String, String> e : files.entrySet()) {
+            writer.write(e.getValue());
+            writer.write(' ');
+            writer.write(e.getKey());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+}
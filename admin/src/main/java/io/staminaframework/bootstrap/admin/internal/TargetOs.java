@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+/**
+ * Operating systems a bootstrap package may target.
+ * <p>
+ * The bootstrap agent only installs one runtime archive: a package built for
+ * a single operating system does not include the other runtime archive.
+ *
+ * @author Stamina Framework developers
+ */
+enum TargetOs {
+    /**
+     * Any operating system: both runtime archives are included.
+     */
+    ANY("any", true, true),
+    /**
+     * Windows: only the ZIP runtime archive is included.
+     */
+    WINDOWS("windows", true, false),
+    /**
+     * Unix-like systems: only the TAR runtime archive is included.
+     */
+    UNIX("unix", false, true);
+
+    private static final String USER_AGENT_PREFIX = "StaminaBootstrap/";
+    private final String id;
+    private final boolean zipRuntime;
+    private final boolean tarRuntime;
+
+    TargetOs(final String id, final boolean zipRuntime, final boolean tarRuntime) {
+        this.id = id;
+        this.zipRuntime = zipRuntime;
+        this.tarRuntime = tarRuntime;
+    }
+
+    /**
+     * Get identifier for this target.
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Get suffix used to name files built for this target.
+     *
+     * @return file suffix, empty for {@link #ANY}
+     */
+    public String fileSuffix() {
+        return ANY.equals(this) ? "" : "-" + id;
+    }
+
+    /**
+     * Check if the ZIP runtime archive (used on Windows) is included.
+     */
+    public boolean includesZipRuntime() {
+        return zipRuntime;
+    }
+
+    /**
+     * Check if the TAR runtime archive (used on Unix-like systems) is included.
+     */
+    public boolean includesTarRuntime() {
+        return tarRuntime;
+    }
+
+    /**
+     * Get a target from its name.
+     *
+     * @param name target name (for instance: <code>windows</code>, <code>linux</code>)
+     * @return target instance
+     * @throws IllegalArgumentException if no such target exists
+     */
+    public static TargetOs fromName(String name) {
+        for (final TargetOs target : values()) {
+            if (target.id.equalsIgnoreCase(name)) {
+                return target;
+            }
+        }
+        final String n = name.toLowerCase();
+        if ("all".equals(n)) {
+            return ANY;
+        }
+        if ("win".equals(n)) {
+            return WINDOWS;
+        }
+        if ("linux".equals(n) || "mac".equals(n) || "macos".equals(n) || "osx".equals(n)) {
+            return UNIX;
+        }
+        throw new IllegalArgumentException("Unsupported target OS: " + name);
+    }
+
+    /**
+     * Get the target of a launcher from its HTTP user agent.
+     * <p>
+     * Launchers send a user agent such as
+     * <code>StaminaBootstrap/1.0.0 (Linux; amd64; ...)</code>.
+     *
+     * @param userAgent HTTP user agent, may be <code>null</code>
+     * @return launcher target, {@link #ANY} if this user agent is unknown
+     */
+    public static TargetOs fromUserAgent(String userAgent) {
+        if (userAgent == null || !userAgent.startsWith(USER_AGENT_PREFIX)) {
+            return ANY;
+        }
+        final int start = userAgent.indexOf('(');
+        if (start == -1) {
+            return ANY;
+        }
+        int end = userAgent.indexOf(';', start);
+        if (end == -1) {
+            end = userAgent.indexOf(')', start);
+        }
+        if (end == -1) {
+            return ANY;
+        }
+        final String osName = userAgent.substring(start + 1, end).trim().toLowerCase();
+        if (osName.isEmpty()) {
+            return ANY;
+        }
+        return osName.contains("windows") ? WINDOWS : UNIX;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that packages rebuilt by launchers from a delta are identical
+ * to packages built by the admin bundle.
+ *
+ * @author Stamina Framework developers
+ */
+public class BootstrapPackageDeltaTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("stamina-delta-test-");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (final Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final Path base = dir.resolve("base.pkg");
+        final Path target = dir.resolve("target.pkg");
+        writePackage(base, 1, false);
+        writePackage(target, 2, true);
+        assertRoundTrip(base, target);
+    }
+
+    @Test
+    public void testRoundTripSamePackage() throws IOException {
+        final Path base = dir.resolve("base.pkg");
+        final Path target = dir.resolve("target.pkg");
+        writePackage(base, 1, false);
+        writePackage(target, 1, false);
+        assertRoundTrip(base, target);
+    }
+
+    @Test
+    public void testRoundTripUnrelatedPackages() throws IOException {
+        final Path base = dir.resolve("base.pkg");
+        final Path target = dir.resolve("target.pkg");
+        Files.write(base, randomBytes(100 * 1024, 1));
+        Files.write(target, randomBytes(150 * 1024 + 17, 2));
+        assertRoundTrip(base, target);
+    }
+
+    private void assertRoundTrip(Path base, Path target) throws IOException {
+        final String baseSha = sha256(base);
+        final String targetSha = sha256(target);
+        final Path delta = dir.resolve("package.delta");
+        final Path rebuilt = dir.resolve("rebuilt.pkg");
+
+        BootstrapPackageDelta.create(base, baseSha, target, targetSha, delta);
+        final String rebuiltSha;
+        try (final InputStream in = Files.newInputStream(delta)) {
+            rebuiltSha = applyDelta(in, base, baseSha, rebuilt);
+        }
+
+        assertEquals(targetSha, rebuiltSha);
+        assertEquals(targetSha, sha256(rebuilt));
+        assertArrayEquals(Files.readAllBytes(target), Files.readAllBytes(rebuilt));
+        if (baseSha.equals(targetSha)) {
+            assertTrue("Delta should not include package content",
+                    Files.size(delta) < Files.size(target) / 10);
+        }
+    }
+
+    /**
+     * Rebuild a package from a delta, using the launcher decoder.
+     */
+    private static String applyDelta(InputStream delta, Path base, String baseSha, Path target)
+            throws IOException {
+        try {
+            // Launcher decoder is not part of the launcher API.
+            final Method apply = Class.forName("io.staminaframework.bootstrap.BootstrapPackageDelta")
+                    .getMethod("apply", InputStream.class, Path.class, String.class, Path.class);
+            apply.setAccessible(true);
+            return (String) apply.invoke(null, delta, base, baseSha, target);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to apply delta", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Launcher delta decoder is not available", e);
+        }
+    }
+
+    /**
+     * Write a package looking like a bootstrap package: most entries
+     * are shared between versions, some are updated or moved.
+     */
+    private static void writePackage(Path file, int version, boolean addEntry) throws IOException {
+        try (final ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            zip.setMethod(ZipOutputStream.STORED);
+            if (addEntry) {
+                putStoredEntry(zip, "addons/new-addon.jar", randomBytes(40 * 1024, 42));
+            }
+            putStoredEntry(zip, "bootstrap.properties", ("version=" + version + "\n").getBytes("UTF-8"));
+            putStoredEntry(zip, "runtime.zip", randomBytes(300 * 1024, 7));
+            putStoredEntry(zip, "addons/addon.jar", randomBytes(60 * 1024, 10 + version));
+            putStoredEntry(zip, "runtime.tar.gz", randomBytes(200 * 1024, 8));
+        }
+    }
+
+    private static void putStoredEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCompressedSize(content.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String sha256(Path file) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+        md.update(Files.readAllBytes(file));
+        final StringBuilder buf = new StringBuilder(64);
+        for (final byte b : md.digest()) {
+            buf.append(String.format("%02x", b & 0xff));
+        }
+        return buf.toString();
+    }
+}
@@ -16,8 +16,6 @@
 
 package io.staminaframework.bootstrap.agent.internal;
 
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
@@ -27,14 +25,19 @@ import org.osgi.service.provisioning.ProvisioningService;
 import org.osgi.util.tracker.ServiceTracker;
 
 import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 import java.util.jar.Manifest;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -47,34 +50,74 @@ public class Activator implements BundleActivator {
      * Return code used by runtime when process restart is required.
      */
     private static final int RESTART_EXIT_CODE = 100;
+    /**
+     * Environment variable used to set runtime JVM options.
+     */
+    private static final String JVM_OPTIONS_ENV = "JAVA_TOOL_OPTIONS";
+    /**
+     * Information key declaring that this agent supports entries provided as URLs.
+     */
+    private static final String ENTRY_URLS = "stamina.bootstrap.entry.urls.txt";
     private Thread procThread;
     private volatile Process proc;
     private LogService logService;
     private ProvisioningService provisioningService;
+    private BootTimings bootTimings;
 
     @Override
     public void start(BundleContext context) throws Exception {
         logService = lookupService(context, LogService.class);
         provisioningService = lookupService(context, ProvisioningService.class);
+        // Entries are streamed from the bootstrap package when the launcher supports it:
+        // older launchers ignore this and keep providing entries as byte arrays.
+        final Dictionary<String, Object> agentInfo = new Hashtable<>(1);
+        agentInfo.put(ENTRY_URLS, "true");
+        provisioningService.addInformation(agentInfo);
+
+        bootTimings = new BootTimings();
+        final Dictionary<String, Object> psInfo = provisioningService.getInformation();
+        final String launcherTimings = (String) psInfo.get("stamina.bootstrap.timings.txt");
+        if (launcherTimings != null) {
+            bootTimings.addAll(launcherTimings);
+        }
+        final String fwkStart = (String) psInfo.get("stamina.bootstrap.framework.start.txt");
+        if (fwkStart != null) {
+            // This agent was started by the launcher JVM: both use the same time source.
+            bootTimings.record("framework-start", Long.parseLong(fwkStart));
+        }
 
         logService.log(LogService.LOG_INFO, "Starting bootstrap agent: "
                 + context.getBundle().getSymbolicName() + "/"
                 + context.getBundle().getVersion());
 
         final Path runtimeDir = context.getDataFile("runtime").toPath();
+        final Path runtimeInstalledFile = context.getDataFile("runtime.installed").toPath();
+        final Path runtimeAddonsFile = context.getDataFile("runtime.addons").toPath();
+        final Path runtimeManifestFile = context.getDataFile("runtime.manifest").toPath();
+        new RuntimeStagingArea(logService, runtimeDir).recover();
 
-        final boolean runtimeInstalled =
-                context.getDataFile("runtime.installed").exists();
+        // The runtime marker file holds the digest of the bootstrap package
+        // the runtime was installed from.
+        final String packageDigest =
+                (String) provisioningService.getInformation().get("stamina.bootstrap.package.sha256.txt");
+        final boolean runtimeInstalled = Files.exists(runtimeInstalledFile);
         if (runtimeInstalled) {
-            logService.log(LogService.LOG_DEBUG, "Using existing runtime");
+            final String installedDigest =
+                    new String(Files.readAllBytes(runtimeInstalledFile), "UTF-8").trim();
+            if (packageDigest == null || packageDigest.equals(installedDigest)) {
+                logService.log(LogService.LOG_DEBUG, "Using existing runtime");
+            } else {
+                logService.log(LogService.LOG_INFO, "Bootstrap package changed: upgrading runtime");
+                installRuntime(runtimeDir, runtimeAddonsFile, runtimeManifestFile);
+                logService.log(LogService.LOG_DEBUG, "Runtime successfully upgraded");
+                markRuntimeInstalled(runtimeInstalledFile, packageDigest);
+            }
         } else {
             logService.log(LogService.LOG_DEBUG, "No runtime found: installing new one");
-            installRuntime(runtimeDir);
+            installRuntime(runtimeDir, runtimeAddonsFile, runtimeManifestFile);
             initConf(provisioningService, runtimeDir);
             logService.log(LogService.LOG_DEBUG, "Runtime successfully installed");
-
-            // Mark runtime as installed.
-            context.getDataFile("runtime.installed").createNewFile();
+            markRuntimeInstalled(runtimeInstalledFile, packageDigest);
         }
 
         final Path launcherFile;
@@ -86,6 +129,7 @@ public class Activator implements BundleActivator {
         if (!Files.exists(launcherFile)) {
             throw new RuntimeException("Runtime launcher not found");
         }
+        writeLaunchManifest(context, runtimeDir, launcherFile, packageDigest);
 
         final List<String> runtimeCmd = new ArrayList<>(4);
         runtimeCmd.add(launcherFile.toString());
@@ -97,15 +141,29 @@ public class Activator implements BundleActivator {
             }
         }
 
+        // Class data sharing options are set by the launcher.
+        final String runtimeJvmOptions = (String) psInfo.get("stamina.bootstrap.runtime.jvm.options.txt");
+
+        final BootTimings timings = bootTimings;
         final Runnable procRunner = () -> {
             try {
-                for (boolean running = true; running; ) {
+                for (boolean running = true, firstRun = true; running; firstRun = false) {
                     logService.log(LogService.LOG_INFO, "Starting runtime");
                     logService.log(LogService.LOG_DEBUG, "Using command: " + runtimeCmd);
-                    proc = new ProcessBuilder(runtimeCmd)
+                    final long spawnStart = System.nanoTime();
+                    final ProcessBuilder pb = new ProcessBuilder(runtimeCmd)
                             .directory(runtimeDir.toFile())
-                            .inheritIO()
-                            .start();
+                            .inheritIO();
+                    if (runtimeJvmOptions != null) {
+                        final String currentJvmOptions = pb.environment().get(JVM_OPTIONS_ENV);
+                        pb.environment().put(JVM_OPTIONS_ENV, currentJvmOptions == null
+                                ? runtimeJvmOptions : currentJvmOptions + " " + runtimeJvmOptions);
+                    }
+                    proc = pb.start();
+                    if (firstRun) {
+                        timings.record("spawn", spawnStart);
+                        reportBootTimings(timings, psInfo);
+                    }
                     final int exitCode = proc.waitFor();
                     if (exitCode == RESTART_EXIT_CODE) {
                         logService.log(LogService.LOG_INFO, "Restarting runtime");
@@ -134,122 +192,307 @@ public class Activator implements BundleActivator {
         procThread.start();
     }
 
-    private void installRuntime(Path runtimeDir) throws IOException {
-        final String type;
-        if (isOsWindows()) {
-            type = "zip";
-        } else {
-            type = "tar.gz";
+    private void reportBootTimings(BootTimings timings, Dictionary<String, Object> psInfo) {
+        final String packageUrl = (String) psInfo.get("stamina.bootstrap.url.txt");
+        final String launcherId = (String) psInfo.get("stamina.bootstrap.id.txt");
+        if (packageUrl == null || launcherId == null) {
+            return;
         }
-        logService.log(LogService.LOG_DEBUG, "Using runtime type: " + type);
+        try {
+            // Boot timings endpoint is located next to the bootstrap package.
+            final URL reportUrl = new URL(new URL(packageUrl), "bootstrap.timings");
+            logService.log(LogService.LOG_DEBUG, "Reporting boot timings to: " + reportUrl);
+            timings.report(reportUrl, launcherId);
+        } catch (IOException e) {
+            logService.log(LogService.LOG_DEBUG, "Failed to report boot timings", e);
+        }
+    }
 
+    /**
+     * Write a manifest describing the installed runtime to the launcher cache directory.
+     * On next start, the launcher uses this manifest to start the runtime
+     * without an OSGi framework.
+     */
+    private void writeLaunchManifest(BundleContext context, Path runtimeDir, Path launcherFile, String packageDigest) {
+        final String storage = context.getProperty(Constants.FRAMEWORK_STORAGE);
+        if (storage == null) {
+            return;
+        }
+        final Properties props = new Properties();
+        props.setProperty("runtime.dir", runtimeDir.toAbsolutePath().toString());
+        props.setProperty("runtime.launcher", launcherFile.toAbsolutePath().toString());
+        if (packageDigest != null) {
+            props.setProperty("package.sha256", packageDigest);
+        }
+        final Path manifestFile = FileSystems.getDefault().getPath(storage).resolve("runtime.launch");
+        try (final OutputStream out = Files.newOutputStream(manifestFile)) {
+            props.store(out, "Runtime launch manifest");
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to write runtime launch manifest: " + manifestFile, e);
+        }
+    }
+
+    private void markRuntimeInstalled(Path runtimeInstalledFile, String packageDigest) throws IOException {
+        Files.write(runtimeInstalledFile,
+                packageDigest == null ? new byte[0] : packageDigest.getBytes("UTF-8"));
+    }
+
+    /**
+     * Install runtime from the bootstrap package.
+     * <p>
+     * Runtime is installed in a staging directory, which replaces the current runtime
+     * once installation is complete. When the bootstrap package includes a runtime manifest,
+     * only new or updated files are extracted, and files removed from the runtime are deleted.
+     * Addons installed from a previous bootstrap package are replaced.
+     */
+    private void installRuntime(Path runtimeDir, Path runtimeAddonsFile, Path runtimeManifestFile) throws IOException {
         final Dictionary<String, Object> psInfo = provisioningService.getInformation();
-        byte[] provisioningEntry = (byte[]) psInfo.get("stamina.runtime." + type);
-        if (provisioningEntry == null) {
+        String type = null;
+        Object runtimeEntry = null;
+        // Runtime archive codec is detected from bootstrap package entries.
+        final String[] types = isOsWindows()
+                ? new String[]{"zip"} : new String[]{"tar.zst", "tar.lz4", "tar.gz"};
+        for (int i = 0; runtimeEntry == null && i < types.length; ++i) {
+            type = types[i];
+            runtimeEntry = psInfo.get("stamina.runtime." + type);
+        }
+        if (runtimeEntry == null) {
             throw new RuntimeException("Missing runtime URL in provisioning data");
         }
+        logService.log(LogService.LOG_DEBUG, "Using runtime type: " + type);
+
+        final Object manifestEntry = psInfo.get("stamina.runtime." + type + ".manifest");
+        RuntimeManifest manifest = null;
+        if (manifestEntry != null) {
+            try (final InputStream in = openEntry(manifestEntry)) {
+                manifest = RuntimeManifest.read(in);
+            }
+        }
+        final RuntimeManifest installedManifest =
+                manifest == null ? null : RuntimeManifest.load(runtimeManifestFile);
+
+        final RuntimeStagingArea stagingArea = new RuntimeStagingArea(logService, runtimeDir);
+        final Path stagingDir = stagingArea.prepare();
+        final List<String> addonFileNames;
+        try {
+            addonFileNames = installRuntimeFiles(stagingDir, runtimeAddonsFile, psInfo,
+                    type, runtimeEntry, manifest, installedManifest);
+            stagingArea.commit();
+        } catch (IOException | RuntimeException e) {
+            stagingArea.discard();
+            throw e;
+        }
+        Files.write(runtimeAddonsFile, addonFileNames, Charset.forName("UTF-8"));
+        if (manifest != null) {
+            manifest.store(runtimeManifestFile);
+        } else {
+            Files.deleteIfExists(runtimeManifestFile);
+        }
+    }
+
+    private List<String> installRuntimeFiles(Path runtimeDir, Path runtimeAddonsFile,
+                                             Dictionary<String, Object> psInfo, String type, Object runtimeEntry,
+                                             RuntimeManifest manifest, RuntimeManifest installedManifest)
+            throws IOException {
+        final Predicate<String> filter;
+        if (installedManifest == null) {
+            filter = path -> true;
+        } else {
+            filter = path -> manifest.isUpdated(path, installedManifest, runtimeDir);
+            for (final String path : manifest.removedFiles(installedManifest)) {
+                logService.log(LogService.LOG_DEBUG, "Removing runtime file: " + path);
+                Files.deleteIfExists(runtimeDir.resolve(path));
+            }
+        }
 
         logService.log(LogService.LOG_DEBUG, "Extracting runtime");
+        final long extractionStart = System.nanoTime();
         if ("zip".equals(type)) {
-            try (final ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(provisioningEntry))) {
-                final byte[] buf = new byte[4096];
-                for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
-                    final String entryNameTrimmed = entry.getName().substring(entry.getName().indexOf('/') + 1);
-                    if (entryNameTrimmed.length() != 0 && !entryNameTrimmed.endsWith("/")) {
-                        logService.log(LogService.LOG_DEBUG,
-                                "Extracting file: " + entryNameTrimmed);
-                        final Path outFile = runtimeDir.resolve(entryNameTrimmed);
-                        Files.createDirectories(outFile.getParent());
-                        try (final OutputStream out = new FileOutputStream(outFile.toFile())) {
-                            for (int bytesRead; (bytesRead = zip.read(buf)) != -1; ) {
-                                out.write(buf, 0, bytesRead);
-                            }
-                        }
-                    }
-                    zip.closeEntry();
+            // Entries are decompressed in parallel when the runtime archive is
+            // available as a buffer: otherwise the archive is streamed.
+            final ZipExtractor extractor = new ZipExtractor(logService, ForkJoinPool.commonPool());
+            final ByteBuffer zip = mapEntry(runtimeEntry);
+            if (zip == null || !extractor.extract(zip, runtimeDir, filter)) {
+                try (final InputStream in = openEntry(runtimeEntry)) {
+                    extractor.extract(in, runtimeDir, filter);
                 }
             }
         } else {
-            final Path tarFile = Files.createTempFile("stamina-runtime-", ".tar");
-            try {
-                try (final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(provisioningEntry))) {
-                    Files.copy(in, tarFile, StandardCopyOption.REPLACE_EXISTING);
+            try (final InputStream in = "tar.gz".equals(type)
+                    ? new GZIPInputStream(openEntry(runtimeEntry), 1024 * 64)
+                    : new FramedArchiveInputStream(openEntry(runtimeEntry), ForkJoinPool.commonPool())) {
+                new TarExtractionPipeline(logService, ForkJoinPool.commonPool()).extract(in, runtimeDir, filter);
+            }
+
+            // Set execution permission on launcher scripts.
+            final Set<PosixFilePermission> perms = new HashSet<>(2);
+            perms.add(PosixFilePermission.OWNER_READ);
+            perms.add(PosixFilePermission.OWNER_EXECUTE);
+            perms.add(PosixFilePermission.GROUP_READ);
+            perms.add(PosixFilePermission.GROUP_EXECUTE);
+            final Path binDir = runtimeDir.resolve("bin");
+            try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(binDir)) {
+                for (final Iterator<Path> i = dirStream.iterator(); i.hasNext(); ) {
+                    final Path binFile = i.next();
+                    Files.setPosixFilePermissions(binFile, perms);
                 }
-                try (final TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(tarFile.toFile()))) {
-                    final byte[] buf = new byte[4096];
-                    for (TarArchiveEntry te; (te = in.getNextTarEntry()) != null; ) {
-                        if (!te.isDirectory()) {
-                            final String name = te.getName().substring(te.getName().indexOf('/') + 1);
-                            logService.log(LogService.LOG_DEBUG,
-                                    "Extracting file: " + name);
-                            final Path outFile = runtimeDir.resolve(name);
-                            Files.createDirectories(outFile.getParent());
-                            try (final FileOutputStream out = new FileOutputStream(outFile.toFile())) {
-                                for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
-                                    out.write(buf, 0, bytesRead);
-                                }
+            }
+        }
+
+        bootTimings.record("extraction", extractionStart);
+
+        final long addonInstallStart = System.nanoTime();
+        final Path addonsDir = runtimeDir.resolve("addons");
+        if (Files.exists(runtimeAddonsFile)) {
+            for (final String addonFileName : Files.readAllLines(runtimeAddonsFile, Charset.forName("UTF-8"))) {
+                if (addonFileName.length() != 0) {
+                    logService.log(LogService.LOG_DEBUG, "Removing addon: " + addonFileName);
+                    Files.deleteIfExists(addonsDir.resolve(addonFileName));
+                }
+            }
+        }
+        // Addons are written to their final location, and are installed concurrently.
+        final List<String> addonFileNames = new ArrayList<>(4);
+        final ParallelFileWriter addonWriter = new ParallelFileWriter(ForkJoinPool.commonPool());
+        try {
+            for (final String[] addon : listAddons(psInfo)) {
+                final String addonKey = addon[0];
+                final Object addonEntry = psInfo.get(addonKey);
+                if (addonEntry == null) {
+                    throw new IOException("Missing addon in bootstrap package: " + addonKey);
+                }
+                String addonName = addon[1];
+                if (addonName == null) {
+                    addonName = readAddonName(addonEntry);
+                }
+                if (addonName == null) {
+                    addonName = addonKey;
+                }
+                final Path addonFile = addonsDir.resolve(addonName + ".esa");
+                logService.log(LogService.LOG_DEBUG, "Extracting addon: " + addonFile.getFileName());
+                addonWriter.createParentDirs(addonFile);
+                addonWriter.submit(() -> {
+                    // Stored addons are copied from the bootstrap package without decompression.
+                    final ByteBuffer data = mapEntry(addonEntry);
+                    if (data != null) {
+                        try (final FileChannel out = ParallelFileWriter.newFile(addonFile)) {
+                            while (data.hasRemaining()) {
+                                out.write(data);
                             }
                         }
+                        return;
                     }
-                    // Set execution permission on launcher scripts.
-                    final Set<PosixFilePermission> perms = new HashSet<>(2);
-                    perms.add(PosixFilePermission.OWNER_READ);
-                    perms.add(PosixFilePermission.OWNER_EXECUTE);
-                    perms.add(PosixFilePermission.GROUP_READ);
-                    perms.add(PosixFilePermission.GROUP_EXECUTE);
-                    final Path binDir = runtimeDir.resolve("bin");
-                    try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(binDir)) {
-                        for (final Iterator<Path> i = dirStream.iterator(); i.hasNext(); ) {
-                            final Path binFile = i.next();
-                            Files.setPosixFilePermissions(binFile, perms);
+                    try (final InputStream in = openEntry(addonEntry);
+                         final OutputStream out = Channels.newOutputStream(ParallelFileWriter.newFile(addonFile))) {
+                        final byte[] buf = new byte[1024 * 64];
+                        for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                            out.write(buf, 0, bytesRead);
                         }
                     }
-                }
-            } finally {
-                try {
-                    Files.delete(tarFile);
-                } catch (IOException ignore) {
+                });
+                addonFileNames.add(addonFile.getFileName().toString());
+            }
+        } finally {
+            addonWriter.await();
+        }
+        bootTimings.record("addon-install", addonInstallStart);
+
+        final long overlayApplyStart = System.nanoTime();
+        final Object overlayEntry = psInfo.get("stamina.runtime.overlay.zip");
+        if (overlayEntry != null) {
+            try (final ZipInputStream zip = new ZipInputStream(openEntry(overlayEntry))) {
+                for (ZipEntry ze; (ze = zip.getNextEntry()) != null; ) {
+                    final Path f = runtimeDir.resolve(ze.getName());
+                    logService.log(LogService.LOG_DEBUG, "Applying runtime overlay: " + ze.getName());
+                    Files.createDirectories(f.getParent());
+                    Files.copy(zip, f, StandardCopyOption.REPLACE_EXISTING);
                 }
             }
         }
+        bootTimings.record("overlay-apply", overlayApplyStart);
+        return addonFileNames;
+    }
 
-        final Path addonsDir = runtimeDir.resolve("addons");
+    /**
+     * List addons included in the bootstrap package.
+     * Each addon is described with its provisioning key, and its subsystem symbolic name
+     * (which may be <code>null</code>). Addons are looked up one by one
+     * when the bootstrap package does not include an addon list.
+     */
+    private static List<String[]> listAddons(Dictionary<String, Object> psInfo) throws IOException {
+        final List<String[]> addons = new ArrayList<>(32);
+        final Object addonListEntry = psInfo.get("stamina.addons.list");
+        if (addonListEntry != null) {
+            try (final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(openEntry(addonListEntry), "UTF-8"))) {
+                for (String line; (line = reader.readLine()) != null; ) {
+                    line = line.trim();
+                    if (line.length() != 0) {
+                        final int i = line.indexOf(' ');
+                        addons.add(i == -1 ? new String[]{line, null}
+                                : new String[]{line.substring(0, i), line.substring(i + 1).trim()});
+                    }
+                }
+            }
+            return addons;
+        }
         for (int addonCounter = 0; ; ++addonCounter) {
             final String addonKey = "stamina.addon." + addonCounter + ".esa";
-            provisioningEntry = (byte[]) psInfo.get(addonKey);
-            if (provisioningEntry == null) {
+            if (psInfo.get(addonKey) == null) {
                 break;
             }
-            final Path addonFile = Files.createTempFile("stamina-addon-", ".esa");
-            Files.copy(new ByteArrayInputStream(provisioningEntry), addonFile, StandardCopyOption.REPLACE_EXISTING);
-
-            String addonName = null;
-            try (final ZipFile zip = new ZipFile(addonFile.toFile())) {
-                final ZipEntry ze = zip.getEntry("OSGI-INF/SUBSYSTEM.MF");
-                if (ze != null) {
-                    final Manifest man = new Manifest(zip.getInputStream(ze));
-                    addonName = man.getMainAttributes().getValue("Subsystem-SymbolicName");
+            addons.add(new String[]{addonKey, null});
+        }
+        return addons;
+    }
+
+    /**
+     * Read addon subsystem symbolic name, streaming addon content.
+     */
+    private static String readAddonName(Object addonEntry) throws IOException {
+        try (final ZipInputStream zip = new ZipInputStream(openEntry(addonEntry))) {
+            for (ZipEntry ze; (ze = zip.getNextEntry()) != null; ) {
+                if ("OSGI-INF/SUBSYSTEM.MF".equals(ze.getName())) {
+                    return new Manifest(zip).getMainAttributes().getValue("Subsystem-SymbolicName");
                 }
             }
-            if (addonName == null) {
-                addonName = addonKey;
-            }
-            final Path renamedAddonFile = addonsDir.resolve(addonName + ".esa");
-            logService.log(LogService.LOG_DEBUG, "Extracting addon: " + renamedAddonFile.getFileName());
-            Files.move(addonFile, renamedAddonFile, StandardCopyOption.REPLACE_EXISTING);
         }
+        return null;
+    }
 
-        final byte[] overlayData = (byte[]) psInfo.get("stamina.runtime.overlay.zip");
-        if (overlayData != null) {
-            try (final ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(overlayData))) {
-                for (ZipEntry ze; (ze = zip.getNextEntry()) != null; ) {
-                    final Path f = runtimeDir.resolve(ze.getName());
-                    logService.log(LogService.LOG_DEBUG, "Applying runtime overlay: " + ze.getName());
-                    Files.createDirectories(f.getParent());
-                    Files.copy(zip, f, StandardCopyOption.REPLACE_EXISTING);
-                }
+    /**
+     * Open a provisioning entry.
+     * Entries are streamed from the bootstrap package: older launchers
+     * provide entry content as a byte array.
+     */
+    private static InputStream openEntry(Object provisioningEntry) throws IOException {
+        if (provisioningEntry instanceof URL) {
+            return ((URL) provisioningEntry).openStream();
+        }
+        if (provisioningEntry instanceof byte[]) {
+            return new ByteArrayInputStream((byte[]) provisioningEntry);
+        }
+        throw new IOException("Unsupported provisioning entry: " + provisioningEntry.getClass().getName());
+    }
+
+    /**
+     * Get a provisioning entry as a buffer, if its content is available without decompression.
+     */
+    private static ByteBuffer mapEntry(Object provisioningEntry) throws IOException {
+        if (provisioningEntry instanceof URL) {
+            final Object content = ((URL) provisioningEntry).openConnection().getContent();
+            if (content instanceof ByteBuffer) {
+                return (ByteBuffer) content;
+            }
+            if (content instanceof InputStream) {
+                ((InputStream) content).close();
             }
+            return null;
+        }
+        if (provisioningEntry instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) provisioningEntry);
         }
+        return null;
     }
 
     private <T> T lookupService(BundleContext context, Class<T> serviceClass) throws InterruptedException {
@@ -278,6 +521,7 @@ public class Activator implements BundleActivator {
         }
         logService = null;
         provisioningService = null;
+        bootTimings = null;
     }
 
     private void initConf(ProvisioningService ps, Path runtimeDir) throws IOException {
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.agent.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Boot phase durations, reported to the Bootstrap Admin instance.
+ * <p>
+ * Launcher timings are merged with agent timings, and sent as a compact
+ * form-encoded report: <code>id=launcher-uuid&amp;phase=millis&amp;...</code>.
+ *
+ * @author Stamina Framework developers
+ */
+class BootTimings {
+    private final Map<String, Long> timings = new LinkedHashMap<>(16);
+
+    /**
+     * Add timings recorded by the launcher.
+     *
+     * @param encoded <code>phase=millis</code> pairs separated with <code>|</code>
+     */
+    public void addAll(String encoded) {
+        final StringTokenizer tokens = new StringTokenizer(encoded, "|");
+        while (tokens.hasMoreTokens()) {
+            final String token = tokens.nextToken();
+            final int i = token.indexOf('=');
+            if (i != -1) {
+                try {
+                    timings.put(token.substring(0, i), Long.parseLong(token.substring(i + 1)));
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Record a boot phase duration.
+     *
+     * @param phase      phase name
+     * @param startNanos phase start time, as returned by {@link System#nanoTime()}
+     */
+    public synchronized void record(String phase, long startNanos) {
+        timings.put(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Send timings to a Bootstrap Admin instance.
+     *
+     * @param reportUrl  report endpoint
+     * @param launcherId launcher identifier
+     * @throws IOException if timings could not be sent
+     */
+    public void report(URL reportUrl, String launcherId) throws IOException {
+        final StringBuilder buf = new StringBuilder(128);
+        buf.append("id=").append(URLEncoder.encode(launcherId, "UTF-8"));
+        synchronized (this) {
+            for (final Map.Entry<String, Long> e : timings.entrySet()) {
+                buf.append('&').append(URLEncoder.encode(e.getKey(), "UTF-8"))
+                        .append('=').append(e.getValue());
+            }
+        }
+        final byte[] payload = buf.toString().getBytes("UTF-8");
+
+        final HttpURLConnection conn = (HttpURLConnection) reportUrl.openConnection();
+        conn.setConnectTimeout(1000 * 5);
+        conn.setReadTimeout(1000 * 5);
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        conn.setRequestProperty("StaminaBootstrap-Id", launcherId);
+        conn.setFixedLengthStreamingMode(payload.length);
+        try {
+            try (final OutputStream out = conn.getOutputStream()) {
+                out.write(payload);
+            }
+            final int code = conn.getResponseCode();
+            if (code / 100 != 2) {
+                throw new IOException("Unexpected HTTP response code: " + code);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.agent.internal;
+
+import io.airlift.compress.Decompressor;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import io.airlift.compress.zstd.ZstdDecompressor;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Input stream decompressing a framed archive.
+ * <p>
+ * Frames are compressed independently: frames following the one being read
+ * are decompressed ahead, in parallel.
+ * See the bootstrap admin for a description of the framed archive format.
+ *
+ * @author Stamina Framework developers
+ */
+class FramedArchiveInputStream extends InputStream {
+    private static final int MAGIC = 0x53524641;
+    private static final byte VERSION = 1;
+    private static final byte CODEC_ZSTD = 1;
+    private static final byte CODEC_LZ4 = 2;
+    private static final int MAX_FRAME_SIZE = 1024 * 1024 * 64;
+    private final DataInputStream in;
+    private final ForkJoinPool pool;
+    private final byte codec;
+    private final int maxPendingFrames;
+    private final Deque<ForkJoinTask<byte[]>> pendingFrames;
+    private boolean endOfFrames;
+    private byte[] current;
+    private int position;
+
+    public FramedArchiveInputStream(final InputStream in, final ForkJoinPool pool) throws IOException {
+        this.in = new DataInputStream(in);
+        this.pool = pool;
+        if (this.in.readInt() != MAGIC || this.in.readByte() != VERSION) {
+            throw new IOException("Invalid framed archive");
+        }
+        codec = this.in.readByte();
+        if (codec != CODEC_ZSTD && codec != CODEC_LZ4) {
+            throw new IOException("Unsupported framed archive codec: " + codec);
+        }
+        maxPendingFrames = pool.getParallelism() + 1;
+        pendingFrames = new ArrayDeque<>(maxPendingFrames);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || position == current.length) {
+            fillPendingFrames();
+            if (pendingFrames.isEmpty()) {
+                return -1;
+            }
+            try {
+                current = pendingFrames.removeFirst().join();
+            } catch (RuntimeException e) {
+                throw new IOException("Failed to decompress framed archive", e);
+            }
+            position = 0;
+        }
+        final int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final ForkJoinTask<byte[]> task : pendingFrames) {
+            task.cancel(false);
+        }
+        pendingFrames.clear();
+        in.close();
+    }
+
+    private void fillPendingFrames() throws IOException {
+        while (!endOfFrames && pendingFrames.size() < maxPendingFrames) {
+            final int rawLength = in.readInt();
+            if (rawLength == 0) {
+                endOfFrames = true;
+                break;
+            }
+            final int compressedLength = in.readInt();
+            if (rawLength < 0 || rawLength > MAX_FRAME_SIZE
+                    || compressedLength < 0 || compressedLength > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid framed archive frame");
+            }
+            final byte[] compressed = new byte[compressedLength];
+            in.readFully(compressed);
+            pendingFrames.addLast(pool.submit(() -> decompress(compressed, rawLength)));
+        }
+    }
+
+    private byte[] decompress(byte[] compressed, int rawLength) {
+        final Decompressor decompressor = codec == CODEC_ZSTD ? new ZstdDecompressor() : new Lz4Decompressor();
+        final byte[] raw = new byte[rawLength];
+        final int len = decompressor.decompress(compressed, 0, compressed.length, raw, 0, raw.length);
+        if (len != rawLength) {
+            throw new IllegalStateException("Framed archive frame size mismatch: expected "
+                    + rawLength + " bytes, got " + len + " bytes");
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.agent.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * File writer fanning writes out to a work-stealing pool.
+ * <p>
+ * Directories are created by the calling thread, in order, before any file
+ * is written to them. File content is split into blocks, which are written
+ * in parallel using positional writes. The number of blocks waiting to be
+ * written is bounded, so that memory usage does not depend on file sizes.
+ *
+ * @author Stamina Framework developers
+ */
+class ParallelFileWriter {
+    private static final int BLOCK_SIZE = 1024 * 256;
+    private static final int MAX_PENDING_BLOCKS = 64;
+    private final ForkJoinPool pool;
+    private final Semaphore pendingBlocks = new Semaphore(MAX_PENDING_BLOCKS);
+    private final Set<Path> createdDirs = new HashSet<>(64);
+    private final List<ForkJoinTask<?>> tasks = new ArrayList<>(256);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public ParallelFileWriter(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Create parent directories of a file.
+     *
+     * @param file file to write
+     * @throws IOException if directories could not be created
+     */
+    public void createParentDirs(Path file) throws IOException {
+        final Path dir = file.getParent();
+        if (dir != null && createdDirs.add(dir)) {
+            Files.createDirectories(dir);
+        }
+    }
+
+    /**
+     * Write a file, reading its content from a stream.
+     * This method returns once content is read: file is written asynchronously.
+     *
+     * @param file file to write
+     * @param in   file content
+     * @throws IOException if content could not be read
+     */
+    public void write(Path file, InputStream in) throws IOException {
+        checkFailure();
+        createParentDirs(file);
+
+        final byte[] data = readBlock(in);
+        final byte[] next = data.length < BLOCK_SIZE ? null : readBlock(in);
+        if (next == null || next.length == 0) {
+            // Small file: written at once.
+            final byte[] content = data;
+            acquireBlock();
+            enqueue(() -> {
+                try (final FileChannel ch = newFile(file)) {
+                    writeFully(ch, content, 0);
+                }
+            }, null, true);
+            return;
+        }
+
+        // Large file: blocks are written in parallel to a shared channel,
+        // which is closed by the last task.
+        final FileChannel ch = newFile(file);
+        final AtomicInteger refs = new AtomicInteger(1);
+        try {
+            long position = 0;
+            byte[] block = data;
+            byte[] nextBlock = next;
+            while (block.length != 0) {
+                final byte[] content = block;
+                final long offset = position;
+                acquireBlock();
+                // The channel is released by this task even if it is skipped after a failure.
+                refs.incrementAndGet();
+                enqueue(() -> writeFully(ch, content, offset), () -> release(ch, refs), true);
+                position += block.length;
+                block = nextBlock != null ? nextBlock : readBlock(in);
+                nextBlock = null;
+            }
+        } finally {
+            release(ch, refs);
+        }
+    }
+
+    /**
+     * Submit a task writing files.
+     *
+     * @param task task to run in the pool
+     * @throws IOException if a previous task failed
+     */
+    public void submit(IOTask task) throws IOException {
+        checkFailure();
+        enqueue(task, null, false);
+    }
+
+    /**
+     * Wait for all files to be written.
+     *
+     * @throws IOException if any file could not be written
+     */
+    public void await() throws IOException {
+        for (final ForkJoinTask<?> task : tasks) {
+            task.quietlyJoin();
+        }
+        tasks.clear();
+        final Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e != null) {
+            throw new IOException("Failed to write files", e);
+        }
+    }
+
+    /**
+     * Wait until a block may be queued.
+     */
+    private void acquireBlock() throws InterruptedIOException {
+        try {
+            pendingBlocks.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("File writing interrupted");
+        }
+    }
+
+    /**
+     * Queue a task in the pool.
+     * Once a task fails, other tasks are skipped: their cleanup is always run.
+     *
+     * @param task    task to run
+     * @param cleanup task releasing resources used by <code>task</code>, may be <code>null</code>
+     * @param bounded <code>true</code> if a block was acquired for this task
+     */
+    private void enqueue(IOTask task, IOTask cleanup, boolean bounded) {
+        final Runnable wrapper = () -> {
+            try {
+                if (failure.get() == null) {
+                    task.run();
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                runCleanup(cleanup);
+                if (bounded) {
+                    pendingBlocks.release();
+                }
+            }
+        };
+        try {
+            tasks.add(pool.submit(wrapper));
+        } catch (RuntimeException e) {
+            // Pool is shut down: task is never run.
+            runCleanup(cleanup);
+            if (bounded) {
+                pendingBlocks.release();
+            }
+            throw e;
+        }
+    }
+
+    private void runCleanup(IOTask cleanup) {
+        if (cleanup == null) {
+            return;
+        }
+        try {
+            cleanup.run();
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure.get() != null) {
+            await();
+        }
+    }
+
+    /**
+     * Create a new file, replacing any existing file.
+     * Existing files are deleted first, so that content is never written through a hard link.
+     *
+     * @param file file to create
+     * @return channel for writing to this file
+     * @throws IOException if the file could not be created
+     */
+    static FileChannel newFile(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private static void release(FileChannel ch, AtomicInteger refs) throws IOException {
+        if (refs.decrementAndGet() == 0) {
+            ch.close();
+        }
+    }
+
+    private static byte[] readBlock(InputStream in) throws IOException {
+        final byte[] buf = new byte[BLOCK_SIZE];
+        int len = 0;
+        for (int bytesRead; len < buf.length && (bytesRead = in.read(buf, len, buf.length - len)) != -1; ) {
+            len += bytesRead;
+        }
+        if (len == buf.length) {
+            return buf;
+        }
+        final byte[] data = new byte[len];
+        System.arraycopy(buf, 0, data, 0, len);
+        return data;
+    }
+
+    private static void writeFully(FileChannel ch, byte[] data, long position) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            position += ch.write(buf, position);
+        }
+    }
+
+    /**
+     * Task writing files.
+     */
+    interface IOTask {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.agent.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runtime manifest, listing runtime files with their size and digest.
+ * <p>
+ * The manifest included in the bootstrap package is compared with the manifest
+ * of the installed runtime, in order to find out which files were updated.
+ *
+ * @author Stamina Framework developers
+ */
+class RuntimeManifest {
+    private final byte[] content;
+    private final Map<String, String> files;
+    private final Map<String, Long> sizes;
+
+    private RuntimeManifest(final byte[] content) throws IOException {
+        this.content = content;
+        files = new HashMap<>(256);
+        sizes = new HashMap<>(256);
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(content), "UTF-8"))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                // Line format: sha256 size path
+                final int i = line.indexOf(' ');
+                final int j = i == -1 ? -1 : line.indexOf(' ', i + 1);
+                if (j == -1) {
+                    throw new IOException("Invalid runtime manifest line: " + line);
+                }
+                final String path = line.substring(j + 1);
+                files.put(path, line.substring(0, j));
+                try {
+                    sizes.put(path, Long.parseLong(line.substring(i + 1, j)));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid runtime manifest line: " + line, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a runtime manifest.
+     *
+     * @param in manifest content
+     * @return runtime manifest
+     * @throws IOException if the manifest could not be read
+     */
+    public static RuntimeManifest read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 64);
+        final byte[] buf = new byte[4096];
+        for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+            out.write(buf, 0, bytesRead);
+        }
+        return new RuntimeManifest(out.toByteArray());
+    }
+
+    /**
+     * Load a runtime manifest from a file.
+     *
+     * @param file manifest file
+     * @return runtime manifest, or <code>null</code> if this file does not exist
+     * @throws IOException if the manifest could not be read
+     */
+    public static RuntimeManifest load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return new RuntimeManifest(Files.readAllBytes(file));
+    }
+
+    /**
+     * Store this manifest to a file.
+     *
+     * @param file manifest file
+     * @throws IOException if the manifest could not be written
+     */
+    public void store(Path file) throws IOException {
+        Files.write(file, content);
+    }
+
+    /**
+     * Check whether a runtime file needs to be extracted.
+     *
+     * @param path      runtime file path
+     * @param installed manifest of the installed runtime
+     * @param runtimeDir runtime directory
+     * @return <code>true</code> if this file is new, or if it was updated
+     */
+    public boolean isUpdated(String path, RuntimeManifest installed, Path runtimeDir) {
+        final String info = files.get(path);
+        if (info == null || !info.equals(installed.files.get(path))) {
+            return true;
+        }
+        // Also extract files which were modified or removed from the installed runtime.
+        final Path file = runtimeDir.resolve(path);
+        try {
+            return Files.size(file) != sizes.get(path);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Get runtime files which are no longer included.
+     *
+     * @param installed manifest of the installed runtime
+     * @return paths of files to remove from the installed runtime
+     */
+    public Set<String> removedFiles(RuntimeManifest installed) {
+        final Set<String> removed = new HashSet<>(installed.files.keySet());
+        removed.removeAll(files.keySet());
+        return removed;
+    }
+
+    /**
+     * Get the number of files in this manifest.
+     */
+    public int size() {
+        return files.size();
+    }
+}
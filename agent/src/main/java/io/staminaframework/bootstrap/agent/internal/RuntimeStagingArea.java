@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.agent.internal;
+
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Staging area where a runtime is installed before it replaces the current runtime.
+ * <p>
+ * The staging directory starts as a copy of the current runtime, made of hard links:
+ * only files being updated take disk space. Files are never written through
+ * these links, since extracted files are always created again.
+ * Once the staging directory is ready, it is swapped with the current runtime
+ * using directory renames.
+ *
+ * @author Stamina Framework developers
+ */
+class RuntimeStagingArea {
+    private final LogService logService;
+    private final Path runtimeDir;
+    private final Path stagingDir;
+    private final Path backupDir;
+    private boolean linksSupported = true;
+
+    public RuntimeStagingArea(final LogService logService, final Path runtimeDir) {
+        this.logService = logService;
+        this.runtimeDir = runtimeDir;
+        this.stagingDir = runtimeDir.resolveSibling(runtimeDir.getFileName() + ".staging");
+        this.backupDir = runtimeDir.resolveSibling(runtimeDir.getFileName() + ".old");
+    }
+
+    /**
+     * Recover from an interrupted runtime installation.
+     *
+     * @throws IOException if the runtime could not be recovered
+     */
+    public void recover() throws IOException {
+        if (!Files.exists(runtimeDir) && Files.exists(backupDir)) {
+            logService.log(LogService.LOG_WARNING, "Restoring runtime after an interrupted upgrade");
+            Files.move(backupDir, runtimeDir, StandardCopyOption.ATOMIC_MOVE);
+        }
+        deleteDir(stagingDir);
+        deleteDir(backupDir);
+    }
+
+    /**
+     * Prepare the staging directory, using the content of the current runtime.
+     *
+     * @return staging directory
+     * @throws IOException if the staging directory could not be prepared
+     */
+    public Path prepare() throws IOException {
+        deleteDir(stagingDir);
+        if (!Files.isDirectory(runtimeDir)) {
+            Files.createDirectories(stagingDir);
+            return stagingDir;
+        }
+        logService.log(LogService.LOG_DEBUG, "Preparing runtime staging directory: " + stagingDir);
+        Files.walkFileTree(runtimeDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(stagingDir.resolve(runtimeDir.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final Path target = stagingDir.resolve(runtimeDir.relativize(file));
+                if (attrs.isRegularFile() && linksSupported) {
+                    try {
+                        Files.createLink(target, file);
+                        return FileVisitResult.CONTINUE;
+                    } catch (UnsupportedOperationException | IOException e) {
+                        logService.log(LogService.LOG_DEBUG,
+                                "Hard links are not supported: copying runtime files", e);
+                        linksSupported = false;
+                    }
+                }
+                Files.copy(file, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return stagingDir;
+    }
+
+    /**
+     * Replace the current runtime with the staging directory.
+     *
+     * @throws IOException if the runtime could not be replaced
+     */
+    public void commit() throws IOException {
+        if (Files.exists(runtimeDir)) {
+            Files.move(runtimeDir, backupDir, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(stagingDir, runtimeDir, StandardCopyOption.ATOMIC_MOVE);
+        try {
+            deleteDir(backupDir);
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to delete previous runtime: " + backupDir, e);
+        }
+    }
+
+    /**
+     * Discard the staging directory, keeping the current runtime.
+     */
+    public void discard() {
+        try {
+            deleteDir(stagingDir);
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to delete runtime staging directory: " + stagingDir, e);
+        }
+    }
+
+    private static void deleteDir(Path dir) throws IOException {
+        if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
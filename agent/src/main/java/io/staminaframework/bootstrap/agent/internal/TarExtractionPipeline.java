@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.agent.internal;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Tar archive extraction, running as a pipeline.
+ * <p>
+ * Decompression and tar parsing run in separate threads, connected with
+ * a bounded queue. File writes are fanned out to a work-stealing pool.
+ * These stages overlap, and memory usage does not depend on the archive size.
+ * No temporary file is used.
+ *
+ * @author Stamina Framework developers
+ */
+class TarExtractionPipeline {
+    private static final int BLOCK_SIZE = 1024 * 256;
+    private static final int QUEUE_SIZE = 8;
+    private static final long POLL_TIMEOUT = 100;
+    private final LogService logService;
+    private final ForkJoinPool pool;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public TarExtractionPipeline(final LogService logService, final ForkJoinPool pool) {
+        this.logService = logService;
+        this.pool = pool;
+    }
+
+    /**
+     * Extract a tar archive.
+     * The first path segment of each entry is removed.
+     *
+     * @param source    tar archive content, which may be decompressed on the fly
+     * @param targetDir directory where files are extracted
+     * @param filter    files to extract
+     * @throws IOException if extraction failed
+     */
+    public void extract(InputStream source, Path targetDir, Predicate<String> filter) throws IOException {
+        final BlockingQueue<Block> tarBlocks = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        // Read (and decompress) source.
+        final Thread reader = new Thread(() -> {
+            try {
+                for (; ; ) {
+                    final byte[] data = new byte[BLOCK_SIZE];
+                    int len = 0;
+                    for (int bytesRead; len < data.length
+                            && (bytesRead = source.read(data, len, data.length - len)) != -1; ) {
+                        len += bytesRead;
+                    }
+                    if (len == 0) {
+                        break;
+                    }
+                    put(tarBlocks, new Block(data, len));
+                }
+                put(tarBlocks, Block.END);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }, "Stamina Bootstrap Runtime Reader");
+        reader.start();
+
+        // Parse tar entries, and write files in parallel.
+        final ParallelFileWriter writer = new ParallelFileWriter(pool);
+        final BlockInputStream tarStream = new BlockInputStream(tarBlocks);
+        try {
+            final TarArchiveInputStream in = new TarArchiveInputStream(tarStream);
+            for (TarArchiveEntry te; (te = in.getNextTarEntry()) != null; ) {
+                if (te.isDirectory()) {
+                    continue;
+                }
+                final String name = te.getName().substring(te.getName().indexOf('/') + 1);
+                if (name.length() == 0 || !filter.test(name)) {
+                    continue;
+                }
+                logService.log(LogService.LOG_DEBUG, "Extracting file: " + name);
+                writer.write(targetDir.resolve(name), in);
+            }
+            tarStream.drain();
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            try {
+                writer.await();
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+                reader.interrupt();
+            }
+        }
+
+        final Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e != null) {
+            throw new IOException("Runtime extraction failed", e);
+        }
+    }
+
+    private <T> void put(BlockingQueue<T> queue, T element) throws IOException {
+        try {
+            while (!queue.offer(element, POLL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Runtime extraction interrupted");
+        }
+    }
+
+    private <T> T take(BlockingQueue<T> queue) throws IOException {
+        try {
+            for (; ; ) {
+                final T element = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (element != null) {
+                    return element;
+                }
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Runtime extraction interrupted");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure.get() != null) {
+            // Another stage failed: stop here.
+            throw new IOException("Runtime extraction aborted");
+        }
+    }
+
+    /**
+     * Data read from the tar archive.
+     */
+    private static class Block {
+        static final Block END = new Block(new byte[0], 0);
+        final byte[] data;
+        final int length;
+
+        Block(final byte[] data, final int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Input stream reading blocks from a queue.
+     */
+    private class BlockInputStream extends InputStream {
+        private final BlockingQueue<Block> blocks;
+        private Block current;
+        private int position;
+
+        BlockInputStream(final BlockingQueue<Block> blocks) {
+            this.blocks = blocks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (current == Block.END) {
+                return -1;
+            }
+            if (current == null || position == current.length) {
+                current = take(blocks);
+                position = 0;
+                if (current == Block.END) {
+                    return -1;
+                }
+            }
+            final int n = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * Consume trailing data, so that the reader stage may complete.
+         */
+        void drain() throws IOException {
+            while (current != Block.END) {
+                current = take(blocks);
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.agent.internal;
+
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Zip archive extraction, using a work-stealing pool.
+ * <p>
+ * When the archive is available as a buffer, entries are located using
+ * the zip central directory, and are decompressed in parallel.
+ * Otherwise, the archive is read sequentially and only file writes are
+ * done in parallel.
+ *
+ * @author Stamina Framework developers
+ */
+class ZipExtractor {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 1024 * 64;
+    private final LogService logService;
+    private final ForkJoinPool pool;
+
+    public ZipExtractor(final LogService logService, final ForkJoinPool pool) {
+        this.logService = logService;
+        this.pool = pool;
+    }
+
+    /**
+     * Extract a zip archive read as a stream.
+     * The first path segment of each entry is removed.
+     *
+     * @param in        zip archive content
+     * @param targetDir directory where files are extracted
+     * @param filter    files to extract
+     * @throws IOException if extraction failed
+     */
+    public void extract(InputStream in, Path targetDir, Predicate<String> filter) throws IOException {
+        final ParallelFileWriter writer = new ParallelFileWriter(pool);
+        try (final ZipInputStream zip = new ZipInputStream(in)) {
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                final String name = trimEntryName(entry.getName());
+                if (name != null && filter.test(name)) {
+                    logService.log(LogService.LOG_DEBUG, "Extracting file: " + name);
+                    writer.write(targetDir.resolve(name), zip);
+                }
+                zip.closeEntry();
+            }
+        } finally {
+            writer.await();
+        }
+    }
+
+    /**
+     * Extract a zip archive available as a buffer.
+     * The first path segment of each entry is removed.
+     *
+     * @param zip       zip archive content
+     * @param targetDir directory where files are extracted
+     * @param filter    files to extract
+     * @return <code>false</code> if this archive cannot be read from its central directory
+     * @throws IOException if extraction failed
+     */
+    public boolean extract(ByteBuffer zip, Path targetDir, Predicate<String> filter) throws IOException {
+        final ByteBuffer buf = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = -1;
+        for (int i = buf.limit() - 22; i >= Math.max(0, buf.limit() - 22 - 0xffff); --i) {
+            if (buf.getInt(i) == 0x06054b50) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            return false;
+        }
+        final int entryCount = buf.getShort(eocd + 10) & 0xffff;
+        final long cdOffset = buf.getInt(eocd + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || cdOffset >= eocd) {
+            // Zip64 archive.
+            return false;
+        }
+
+        final ParallelFileWriter writer = new ParallelFileWriter(pool);
+        try {
+            int pos = (int) cdOffset;
+            for (int i = 0; i < entryCount; ++i) {
+                if (buf.getInt(pos) != 0x02014b50) {
+                    throw new IOException("Invalid zip central directory");
+                }
+                final int method = buf.getShort(pos + 10) & 0xffff;
+                final long compressedSize = buf.getInt(pos + 20) & 0xffffffffL;
+                final int nameLen = buf.getShort(pos + 28) & 0xffff;
+                final int extraLen = buf.getShort(pos + 30) & 0xffff;
+                final int commentLen = buf.getShort(pos + 32) & 0xffff;
+                final long localOffset = buf.getInt(pos + 42) & 0xffffffffL;
+                final byte[] rawName = new byte[nameLen];
+                ((ByteBuffer) buf.duplicate().position(pos + 46)).get(rawName);
+                pos += 46 + nameLen + extraLen + commentLen;
+
+                final String name = trimEntryName(new String(rawName, UTF8));
+                if (name == null || !filter.test(name)) {
+                    continue;
+                }
+                final int localNameLen = buf.getShort((int) localOffset + 26) & 0xffff;
+                final int localExtraLen = buf.getShort((int) localOffset + 28) & 0xffff;
+                final int dataOffset = (int) localOffset + 30 + localNameLen + localExtraLen;
+                final ByteBuffer data = ((ByteBuffer) buf.duplicate().order(ByteOrder.BIG_ENDIAN)
+                        .position(dataOffset).limit(dataOffset + (int) compressedSize)).slice();
+
+                // Directories are created in entry order, before files are written.
+                final Path outFile = targetDir.resolve(name);
+                writer.createParentDirs(outFile);
+                logService.log(LogService.LOG_DEBUG, "Extracting file: " + name);
+                if (method == ZipEntry.STORED) {
+                    writer.submit(() -> {
+                        try (final FileChannel ch = ParallelFileWriter.newFile(outFile)) {
+                            while (data.hasRemaining()) {
+                                ch.write(data);
+                            }
+                        }
+                    });
+                } else if (method == ZipEntry.DEFLATED) {
+                    writer.submit(() -> inflate(data, outFile));
+                } else {
+                    throw new IOException("Unsupported compression method for zip entry: " + name);
+                }
+            }
+        } finally {
+            writer.await();
+        }
+        return true;
+    }
+
+    private static void inflate(ByteBuffer data, Path outFile) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        final byte[] in = new byte[BUFFER_SIZE];
+        final byte[] out = new byte[BUFFER_SIZE];
+        boolean dummyByteSent = false;
+        try (final OutputStream fileOut = Channels.newOutputStream(ParallelFileWriter.newFile(outFile))) {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (data.hasRemaining()) {
+                        final int len = Math.min(in.length, data.remaining());
+                        data.get(in, 0, len);
+                        inflater.setInput(in, 0, len);
+                    } else if (!dummyByteSent) {
+                        // Raw deflate streams may need an extra byte to complete.
+                        in[0] = 0;
+                        inflater.setInput(in, 0, 1);
+                        dummyByteSent = true;
+                    } else {
+                        throw new IOException("Truncated zip entry: " + outFile);
+                    }
+                }
+                final int len = inflater.inflate(out);
+                fileOut.write(out, 0, len);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid zip entry: " + outFile, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static String trimEntryName(String entryName) {
+        final String name = entryName.substring(entryName.indexOf('/') + 1);
+        if (name.length() == 0 || name.endsWith("/")) {
+            return null;
+        }
+        return name;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import org.osgi.service.provisioning.ProvisioningService;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Give benchmarks from other packages access to launcher internals.
+ *
+ * @author Stamina Framework developers
+ */
+public final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Open a bootstrap package as a {@link ProvisioningService}.
+     * The returned instance must be closed using {@link #close(ProvisioningService)}.
+     *
+     * @param bootstrapPackage bootstrap package file
+     * @param properties       launcher properties
+     * @return provisioning service instance
+     * @throws IOException if the bootstrap package could not be opened
+     */
+    public static ProvisioningService openBootstrapPackage(Path bootstrapPackage, Map<String, String> properties)
+            throws IOException {
+        return new BootstrapProvisioningService(bootstrapPackage, properties);
+    }
+
+    /**
+     * Close a provisioning service opened with {@link #openBootstrapPackage(Path, Map)}.
+     *
+     * @param provisioningService provisioning service to close
+     * @throws IOException if the bootstrap package could not be closed
+     */
+    public static void close(ProvisioningService provisioningService) throws IOException {
+        ((BootstrapProvisioningService) provisioningService).close();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import io.staminaframework.bootstrap.benchmarks.SyntheticArchives;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@link BootstrapProvisioningService}: package opening, and entry lookups.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BootstrapProvisioningServiceBenchmark {
+    @Param({"0", "16", "128"})
+    public int addonCount;
+
+    private Path workDir;
+    private Path bootstrapPackageFile;
+    private Map<String, String> properties;
+    private BootstrapProvisioningService provisioningService;
+    private Dictionary info;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("stamina-benchmark-");
+        final Path agentJar = workDir.resolve("stamina.bootstrap.agent.jar");
+        SyntheticArchives.writeFile(agentJar, 1024 * 64);
+        final Path runtimeZip = workDir.resolve("stamina.runtime.zip");
+        SyntheticArchives.writeRuntimeZip(runtimeZip, 1024 * 1024 * 10);
+        final Path runtimeTarGz = workDir.resolve("stamina.runtime.tar.gz");
+        SyntheticArchives.writeRuntimeTarGz(runtimeTarGz, 1024 * 1024 * 10);
+        final List<Path> addons = new ArrayList<>(addonCount);
+        for (int i = 0; i < addonCount; ++i) {
+            final Path addon = workDir.resolve("addon-" + i + ".esa");
+            SyntheticArchives.writeAddon(addon, "io.staminaframework.benchmark.addon" + i, 1024 * 64);
+            addons.add(addon);
+        }
+        bootstrapPackageFile = workDir.resolve("bootstrap.pkg");
+        SyntheticArchives.writeBootstrapPackage(bootstrapPackageFile, agentJar, runtimeZip, runtimeTarGz, addons);
+
+        properties = new HashMap<>(4);
+        properties.put("stamina.bootstrap.arguments.txt", "--verbose");
+        properties.put("stamina.bootstrap.package.sha256.txt", "0000");
+
+        provisioningService = new BootstrapProvisioningService(bootstrapPackageFile, properties);
+        final Hashtable<String, String> agentInfo = new Hashtable<>(1);
+        agentInfo.put(BootstrapProvisioningService.ENTRY_URLS, "true");
+        provisioningService.addInformation(agentInfo);
+        info = provisioningService.getInformation();
+        final List<String> keyList = new ArrayList<>(addonCount + 4);
+        keyList.add("stamina.runtime.zip");
+        keyList.add("stamina.runtime.tar.gz");
+        keyList.add("stamina.bootstrap.arguments.txt");
+        for (int i = 0; i < addonCount; ++i) {
+            keyList.add("stamina.addon." + i + ".esa");
+        }
+        keys = keyList.toArray(new String[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        provisioningService.close();
+        SyntheticArchives.deleteDir(workDir);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void open(Blackhole bh) throws IOException {
+        try (final BootstrapProvisioningService ps = new BootstrapProvisioningService(bootstrapPackageFile, properties)) {
+            bh.consume(ps.getInformation());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public void get(Blackhole bh) {
+        for (final String key : keys) {
+            bh.consume(info.get(key));
+        }
+    }
+}
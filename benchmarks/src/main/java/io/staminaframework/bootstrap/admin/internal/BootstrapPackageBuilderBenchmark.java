@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.admin.internal;
+
+import io.staminaframework.bootstrap.benchmarks.SyntheticArchives;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@link BootstrapPackageBuilder#build(Path, Path, List, FramedArchive.Codec)}.
+ * <p>
+ * Bootstrap package entries embedded in the admin bundle are replaced with synthetic archives.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BootstrapPackageBuilderBenchmark {
+    @Param({"0", "4", "16"})
+    public int addonCount;
+    @Param({"0", "1048576", "16777216"})
+    public long overlaySize;
+    @Param({"gz", "zstd"})
+    public String codec;
+
+    private Path workDir;
+    private Path overlayDir;
+    private Path bootstrapPackageFile;
+    private List<String> addonUrls;
+    private BootstrapPackageBuilder builder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("stamina-benchmark-");
+        final Path entriesDir = Files.createDirectories(workDir.resolve("bootstrap-package"));
+        SyntheticArchives.writeFile(entriesDir.resolve("stamina.bootstrap.agent.jar"), 1024 * 64);
+        SyntheticArchives.writeRuntimeZip(entriesDir.resolve("stamina.runtime.zip"), 1024 * 1024 * 50);
+        SyntheticArchives.writeRuntimeTarGz(entriesDir.resolve("stamina.runtime.tar.gz"), 1024 * 1024 * 50);
+
+        addonUrls = new ArrayList<>(addonCount);
+        for (int i = 0; i < addonCount; ++i) {
+            final Path addon = workDir.resolve("addon-" + i + ".esa");
+            SyntheticArchives.writeAddon(addon, "io.staminaframework.benchmark.addon" + i, 1024 * 512);
+            addonUrls.add(addon.toUri().toString());
+        }
+
+        overlayDir = Files.createDirectories(workDir.resolve("overlay"));
+        SyntheticArchives.writeOverlay(overlayDir, overlaySize);
+        bootstrapPackageFile = workDir.resolve("bootstrap.pkg");
+
+        // Bundle entries are read from the synthetic archives directory.
+        final Bundle bundle = (Bundle) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Bundle.class}, (proxy, method, args) -> {
+                    if ("getEntry".equals(method.getName())) {
+                        final String name = ((String) args[0]).substring("/OSGI-INF/bootstrap-package/".length());
+                        return entriesDir.resolve(name).toUri().toURL();
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        final BundleContext bundleContext = (BundleContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{BundleContext.class}, (proxy, method, args) -> {
+                    if ("getBundle".equals(method.getName()) && (args == null || args.length == 0)) {
+                        return bundle;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        builder = new BootstrapPackageBuilder(bundleContext);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticArchives.deleteDir(workDir);
+    }
+
+    @Benchmark
+    public Path build() throws Exception {
+        builder.build(bootstrapPackageFile, overlaySize == 0 ? null : overlayDir, addonUrls,
+                FramedArchive.Codec.fromName(codec));
+        return bootstrapPackageFile;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.agent.internal;
+
+import io.staminaframework.bootstrap.BenchmarkSupport;
+import io.staminaframework.bootstrap.benchmarks.SyntheticArchives;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.service.log.LogService;
+import org.osgi.service.provisioning.ProvisioningService;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for runtime installation, as done by the bootstrap agent {@link Activator}.
+ * <p>
+ * Each invocation installs a runtime in an empty directory.
+ * Zip runtimes are only used on Windows: the <code>os.name</code>
+ * system property is set accordingly in the forked benchmark JVM.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InstallRuntimeBenchmark {
+    @Param({"10", "100", "500"})
+    public int runtimeSizeMb;
+    @Param({"zip", "tar.gz"})
+    public String type;
+
+    private Path workDir;
+    private Path runtimeDir;
+    private Path runtimeAddonsFile;
+    private Path runtimeManifestFile;
+    private String osName;
+    private ProvisioningService provisioningService;
+    private Activator activator;
+    private Method installRuntime;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("stamina-benchmark-");
+        final long runtimeSize = 1024L * 1024 * runtimeSizeMb;
+        final Path agentJar = workDir.resolve("stamina.bootstrap.agent.jar");
+        SyntheticArchives.writeFile(agentJar, 1024 * 64);
+        final Path runtimeZip = workDir.resolve("stamina.runtime.zip");
+        final Path runtimeTarGz = workDir.resolve("stamina.runtime.tar.gz");
+        // Only the runtime being benchmarked has a realistic size.
+        SyntheticArchives.writeRuntimeZip(runtimeZip, "zip".equals(type) ? runtimeSize : 1024 * 64);
+        SyntheticArchives.writeRuntimeTarGz(runtimeTarGz, "tar.gz".equals(type) ? runtimeSize : 1024 * 64);
+        final Path bootstrapPackageFile = workDir.resolve("bootstrap.pkg");
+        SyntheticArchives.writeBootstrapPackage(bootstrapPackageFile, agentJar, runtimeZip, runtimeTarGz,
+                Collections.emptyList());
+        Files.delete(runtimeZip);
+        Files.delete(runtimeTarGz);
+
+        osName = System.getProperty("os.name");
+        System.setProperty("os.name", "zip".equals(type) ? "Windows 10" : "Linux");
+
+        runtimeDir = workDir.resolve("runtime");
+        runtimeAddonsFile = workDir.resolve("runtime.addons");
+        runtimeManifestFile = workDir.resolve("runtime.manifest");
+        provisioningService = BenchmarkSupport.openBootstrapPackage(bootstrapPackageFile, new HashMap<>());
+
+        // Agent state is set as if the agent was started by the launcher.
+        activator = new Activator();
+        setField("logService", Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{LogService.class}, (proxy, method, args) -> null));
+        setField("provisioningService", provisioningService);
+        setField("bootTimings", new BootTimings());
+        installRuntime = Activator.class.getDeclaredMethod("installRuntime", Path.class, Path.class, Path.class);
+        installRuntime.setAccessible(true);
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanRuntime() throws IOException {
+        SyntheticArchives.deleteDir(runtimeDir);
+        Files.deleteIfExists(runtimeAddonsFile);
+        Files.deleteIfExists(runtimeManifestFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setProperty("os.name", osName);
+        BenchmarkSupport.close(provisioningService);
+        SyntheticArchives.deleteDir(workDir);
+    }
+
+    @Benchmark
+    public Path installRuntime() throws Throwable {
+        try {
+            installRuntime.invoke(activator, runtimeDir, runtimeAddonsFile, runtimeManifestFile);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        return runtimeDir;
+    }
+
+    private void setField(String name, Object value) throws ReflectiveOperationException {
+        final Field f = Activator.class.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(activator, value);
+    }
+}
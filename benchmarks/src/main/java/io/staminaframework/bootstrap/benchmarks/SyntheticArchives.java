@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap.benchmarks;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.osgi.service.provisioning.ProvisioningService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic archives used by benchmarks.
+ * <p>
+ * Archives are generated locally, using a fixed seed: the same parameters
+ * always give the same archive content. File content is made of text and
+ * random bytes, so that archives compress like a real runtime distribution.
+ *
+ * @author Stamina Framework developers
+ */
+public final class SyntheticArchives {
+    private static final String RUNTIME_ROOT = "stamina-runtime/";
+    private static final String[] WORDS = {
+            "osgi", "bundle", "service", "runtime", "stamina", "import", "export",
+            "package", "version", "class", "component", "reference", "config",
+    };
+
+    private SyntheticArchives() {
+    }
+
+    /**
+     * Generate a runtime distribution as a zip archive.
+     *
+     * @param file archive file
+     * @param size total size of runtime files, in bytes
+     * @throws IOException if the archive could not be written
+     */
+    public static void writeRuntimeZip(Path file, long size) throws IOException {
+        try (final ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (final RuntimeFile f : runtimeFiles(size)) {
+                zip.putNextEntry(new ZipEntry(RUNTIME_ROOT + f.path));
+                writeContent(zip, f.size, f.seed);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Generate a runtime distribution as a tar.gz archive.
+     *
+     * @param file archive file
+     * @param size total size of runtime files, in bytes
+     * @throws IOException if the archive could not be written
+     */
+    public static void writeRuntimeTarGz(Path file, long size) throws IOException {
+        try (final TarArchiveOutputStream tar = new TarArchiveOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(file), 1024 * 64))) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (final RuntimeFile f : runtimeFiles(size)) {
+                final TarArchiveEntry te = new TarArchiveEntry(RUNTIME_ROOT + f.path);
+                te.setSize(f.size);
+                te.setMode(f.path.startsWith("bin/") ? 0100755 : 0100644);
+                tar.putArchiveEntry(te);
+                writeContent(tar, f.size, f.seed);
+                tar.closeArchiveEntry();
+            }
+        }
+    }
+
+    /**
+     * Generate an addon.
+     *
+     * @param file addon file
+     * @param name addon symbolic name
+     * @param size addon size, in bytes
+     * @throws IOException if the addon could not be written
+     */
+    public static void writeAddon(Path file, String name, long size) throws IOException {
+        try (final ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            zip.putNextEntry(new ZipEntry("OSGI-INF/SUBSYSTEM.MF"));
+            zip.write(("Subsystem-ManifestVersion: 1\n"
+                    + "Subsystem-SymbolicName: " + name + "\n"
+                    + "Subsystem-Version: 1.0.0\n"
+                    + "Subsystem-Type: osgi.subsystem.feature\n").getBytes("UTF-8"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry(name + ".jar"));
+            writeContent(zip, size, name.hashCode());
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Generate an overlay directory, made of configuration files.
+     *
+     * @param dir  overlay directory
+     * @param size total size of overlay files, in bytes
+     * @throws IOException if overlay files could not be written
+     */
+    public static void writeOverlay(Path dir, long size) throws IOException {
+        final Path confDir = dir.resolve("etc");
+        Files.createDirectories(confDir);
+        final long fileSize = 1024 * 16;
+        int counter = 0;
+        for (long remaining = size; remaining > 0; remaining -= fileSize) {
+            try (final OutputStream out = Files.newOutputStream(confDir.resolve("overlay-" + counter + ".cfg"))) {
+                writeContent(out, Math.min(remaining, fileSize), counter);
+            }
+            ++counter;
+        }
+    }
+
+    /**
+     * Generate a file with synthetic content.
+     *
+     * @param file file to write
+     * @param size file size, in bytes
+     * @throws IOException if the file could not be written
+     */
+    public static void writeFile(Path file, long size) throws IOException {
+        try (final OutputStream out = Files.newOutputStream(file)) {
+            writeContent(out, size, file.getFileName().hashCode());
+        }
+    }
+
+    /**
+     * Generate a bootstrap package, using the same layout as the bootstrap package builder.
+     *
+     * @param pkg          bootstrap package file
+     * @param agentJar     bootstrap agent
+     * @param runtimeZip   runtime distribution (zip)
+     * @param runtimeTarGz runtime distribution (tar.gz)
+     * @param addons       addons to include
+     * @throws IOException if the bootstrap package could not be written
+     */
+    public static void writeBootstrapPackage(Path pkg, Path agentJar, Path runtimeZip, Path runtimeTarGz,
+                                             List<Path> addons) throws IOException {
+        try (final ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(pkg))) {
+            zip.putNextEntry(new ZipEntry("stamina.bootstrap.agent.jar"));
+            Files.copy(agentJar, zip);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry(ProvisioningService.PROVISIONING_START_BUNDLE));
+            zip.write("stamina.bootstrap.agent.jar".getBytes("UTF-8"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("stamina.runtime.zip"));
+            Files.copy(runtimeZip, zip);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("stamina.runtime.tar.gz"));
+            Files.copy(runtimeTarGz, zip);
+            zip.closeEntry();
+            final StringBuilder addonList = new StringBuilder(64);
+            int addonCounter = 0;
+            for (final Path addon : addons) {
+                final String addonEntryName = "stamina.addon." + addonCounter++ + ".esa";
+                zip.putNextEntry(new ZipEntry(addonEntryName));
+                Files.copy(addon, zip);
+                zip.closeEntry();
+                addonList.append(addonEntryName).append('\n');
+            }
+            zip.putNextEntry(new ZipEntry("stamina.addons.list"));
+            zip.write(addonList.toString().getBytes("UTF-8"));
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Delete a directory and its content.
+     *
+     * @param dir directory to delete
+     * @throws IOException if the directory could not be deleted
+     */
+    public static void deleteDir(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static List<RuntimeFile> runtimeFiles(long size) {
+        final List<RuntimeFile> files = new ArrayList<>(256);
+        files.add(new RuntimeFile("bin/stamina", 1024 * 4, 1));
+        files.add(new RuntimeFile("bin/stamina.bat", 1024 * 4, 2));
+        long remaining = size - 1024 * 8;
+        for (int i = 0; i < 32 && remaining > 0; ++i) {
+            final long fileSize = Math.min(remaining, 1024 * 2);
+            files.add(new RuntimeFile("etc/config-" + i + ".cfg", fileSize, 100 + i));
+            remaining -= fileSize;
+        }
+
+        // Library sizes range from 4 KB to 4 MB, like bundles in a real distribution.
+        final Random random = new Random(size);
+        for (int i = 0; remaining > 0; ++i) {
+            final long fileSize = Math.min(remaining, 1024 * 4 + random.nextInt(1024 * 1024 * 4));
+            files.add(new RuntimeFile("lib/bundle-" + i + ".jar", fileSize, 1000 + i));
+            remaining -= fileSize;
+        }
+        return files;
+    }
+
+    private static void writeContent(OutputStream out, long size, long seed) throws IOException {
+        final Random random = new Random(seed);
+        final byte[] buf = new byte[1024 * 8];
+        for (long remaining = size; remaining > 0; ) {
+            // Half of the blocks are text, the other half are random bytes.
+            if (random.nextBoolean()) {
+                final StringBuilder text = new StringBuilder(buf.length + 16);
+                while (text.length() < buf.length) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0 ? '\n' : ' ');
+                }
+                System.arraycopy(text.toString().getBytes("UTF-8"), 0, buf, 0, buf.length);
+            } else {
+                random.nextBytes(buf);
+            }
+            final int len = (int) Math.min(remaining, buf.length);
+            out.write(buf, 0, len);
+            remaining -= len;
+        }
+    }
+
+    /**
+     * File included in a synthetic runtime.
+     */
+    private static class RuntimeFile {
+        final String path;
+        final long size;
+        final long seed;
+
+        RuntimeFile(final String path, final long size, final long seed) {
+            this.path = path;
+            this.size = size;
+            this.seed = seed;
+        }
+    }
+}
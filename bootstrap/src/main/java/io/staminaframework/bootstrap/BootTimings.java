@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Boot phase durations recorded by the launcher.
+ * <p>
+ * These timings are handed over to the bootstrap agent, which sends them
+ * to the Bootstrap Admin instance along with its own timings.
+ *
+ * @author Stamina Framework developers
+ */
+class BootTimings {
+    private final Map<String, Long> timings = new LinkedHashMap<>(8);
+
+    /**
+     * Record a boot phase duration.
+     *
+     * @param phase      phase name
+     * @param startNanos phase start time, as returned by {@link System#nanoTime()}
+     */
+    public void record(String phase, long startNanos) {
+        timings.put(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Encode timings as <code>phase=millis</code> pairs separated with <code>|</code>.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder(64);
+        for (final Map.Entry<String, Long> e : timings.entrySet()) {
+            if (buf.length() != 0) {
+                buf.append('|');
+            }
+            buf.append(e.getKey()).append('=').append(e.getValue());
+        }
+        return buf.toString();
+    }
+}
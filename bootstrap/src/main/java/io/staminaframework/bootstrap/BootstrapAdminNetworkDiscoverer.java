@@ -26,23 +26,37 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This component is responsible for locating a Bootstrap Admin instance
  * in connected networks.
+ * <p>
+ * Launchers sharing their bootstrap package are also discovered:
+ * these peers may be used to download the bootstrap package.
+ * Peers are announced on a dedicated UDP port, so that launchers without
+ * peer support never receive peer adverts while looking for an admin instance.
  *
  * @author Stamina Framework developers
  */
 class BootstrapAdminNetworkDiscoverer {
     private static final int DISCOVERY_UDP_PORT = 17710;
+    private static final int PEER_DISCOVERY_UDP_PORT = 17711;
+    /**
+     * Time spent collecting peers once a Bootstrap Admin instance is found,
+     * matching the advertising period.
+     */
+    private static final long PEER_DISCOVERY_DELAY = 2500;
     private final String bindAddress;
     private final LogService logService;
-
+    private final Map<URL, String> peers = new ConcurrentHashMap<>(4);
 
     public BootstrapAdminNetworkDiscoverer(final LogService logService, final String bindAddress) {
         this.bindAddress = bindAddress == null ? "0.0.0.0" : bindAddress;
@@ -62,27 +76,44 @@ class BootstrapAdminNetworkDiscoverer {
             throw new IllegalArgumentException("Invalid timeout: " + timeout);
         }
 
-        final AtomicReference<Set<URL>> result = new AtomicReference<>(Collections.emptySet());
+        Set<URL> result = Collections.emptySet();
         final byte[] payload = new byte[1024];
-        final DatagramSocket so =
-                new DatagramSocket(new InetSocketAddress(bindAddress, DISCOVERY_UDP_PORT));
-
-        final Runnable probeTask = () -> {
-            logService.log(LogService.LOG_DEBUG, "Starting bootstrap network probe");
+        Thread peerListener = null;
+        // Several launchers may be looking for a bootstrap package on the same host.
+        try (final DatagramSocket so = new DatagramSocket(null);
+             final DatagramSocket peerSo = new DatagramSocket(null)) {
+            so.setReuseAddress(true);
+            so.bind(new InetSocketAddress(bindAddress, DISCOVERY_UDP_PORT));
             try {
-                final DatagramPacket pkt = new DatagramPacket(payload, 0, payload.length);
-                so.receive(pkt);
+                peerSo.setReuseAddress(true);
+                peerSo.bind(new InetSocketAddress(bindAddress, PEER_DISCOVERY_UDP_PORT));
+                peerListener = new Thread(() -> listenPeers(peerSo), "Stamina Bootstrap Peer Discoverer");
+                peerListener.setDaemon(true);
+                peerListener.start();
+            } catch (IOException e) {
+                logService.log(LogService.LOG_DEBUG, "Cannot listen to bootstrap peer adverts", e);
+            }
+            logService.log(LogService.LOG_DEBUG, "Starting bootstrap network probe");
 
-                logService.log(LogService.LOG_DEBUG, "Reading response from server: " + pkt.getSocketAddress());
+            long deadline = System.currentTimeMillis() + timeout;
+            for (long wait; (wait = deadline - System.currentTimeMillis()) > 0 && result.isEmpty(); ) {
+                final DatagramPacket pkt = new DatagramPacket(payload, 0, payload.length);
+                so.setSoTimeout((int) Math.min(wait, Integer.MAX_VALUE));
+                try {
+                    so.receive(pkt);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
 
-                final String adv = new String(payload, pkt.getOffset(), pkt.getLength(), "UTF-8");
-                logService.log(LogService.LOG_DEBUG, "Parsing response: " + adv);
+                try {
+                    logService.log(LogService.LOG_DEBUG, "Reading response from server: " + pkt.getSocketAddress());
+                    final String adv = new String(payload, pkt.getOffset(), pkt.getLength(), "UTF-8");
+                    logService.log(LogService.LOG_DEBUG, "Parsing response: " + adv);
 
-                final JsonObject json = Json.parse(adv).asObject();
-                final int version = json.getInt("version", 1);
-                if (version > 0) {
+                    final JsonObject json = Json.parse(adv).asObject();
+                    final int version = json.getInt("version", 1);
                     final JsonValue urlsValue = json.get("bootstrap-package-urls");
-                    if (urlsValue != null) {
+                    if (version > 0 && urlsValue != null) {
                         final JsonArray urlsArray = urlsValue.asArray();
                         if (urlsArray == null || urlsArray.isEmpty()) {
                             throw new IOException("No URL set by bootstrap admin instance");
@@ -92,34 +123,75 @@ class BootstrapAdminNetworkDiscoverer {
                             urls.add(new URL(jsonValue.asString()));
                         }
                         logService.log(LogService.LOG_DEBUG, "Got URLs from bootstrap admin: " + urls);
-                        result.set(urls);
+                        result = urls;
                     }
-                }
-            } catch (Exception e) {
-                if (!so.isClosed()) {
+                } catch (Exception e) {
                     logService.log(LogService.LOG_WARNING,
                             "Error while looking for bootstrap package", e);
                 }
             }
-        };
-        final Thread probeThread = new Thread(probeTask, "Stamina Bootstrap Network Probe");
-        probeThread.setPriority(Thread.MIN_PRIORITY);
-        probeThread.setDaemon(false);
-        probeThread.start();
-        try {
-            probeThread.join(timeout);
-            if (probeThread.isAlive()) {
-                logService.log(LogService.LOG_DEBUG, "Interrupting bootstrap network probe");
-                so.close();
-                if (probeThread.isAlive()) {
-                    probeThread.interrupt();
+
+            if (!result.isEmpty() && peerListener != null) {
+                // Keep listening for a while to find peers.
+                try {
+                    Thread.sleep(PEER_DISCOVERY_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
             }
-        } catch (InterruptedException e) {
+        }
+        if (peerListener != null) {
+            // Peer socket is closed: listener is about to stop.
+            try {
+                peerListener.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
         logService.log(LogService.LOG_DEBUG, "Bootstrap network probe stopped");
 
-        return result.get();
+        return result;
+    }
+
+    private void listenPeers(DatagramSocket so) {
+        final byte[] payload = new byte[1024];
+        while (!so.isClosed()) {
+            final DatagramPacket pkt = new DatagramPacket(payload, 0, payload.length);
+            try {
+                so.receive(pkt);
+            } catch (SocketException e) {
+                // Socket is closed once network discovery is over.
+                break;
+            } catch (IOException e) {
+                logService.log(LogService.LOG_DEBUG, "Error while looking for bootstrap peers", e);
+                continue;
+            }
+
+            try {
+                final String adv = new String(payload, pkt.getOffset(), pkt.getLength(), "UTF-8");
+                final JsonObject json = Json.parse(adv).asObject();
+                final int peerPort = json.getInt("peer-port", -1);
+                final String peerSha256 = json.getString("bootstrap-package-sha256", null);
+                if (peerPort > 0 && peerSha256 != null) {
+                    final URL peerUrl = new URL("http",
+                            pkt.getAddress().getHostAddress(), peerPort, "/bootstrap.pkg");
+                    if (peers.put(peerUrl, peerSha256) == null) {
+                        logService.log(LogService.LOG_DEBUG, "Found bootstrap peer: " + peerUrl);
+                    }
+                }
+            } catch (Exception e) {
+                logService.log(LogService.LOG_DEBUG, "Ignoring invalid bootstrap peer advert", e);
+            }
+        }
+    }
+
+    /**
+     * Get launchers sharing their bootstrap package, found during network discovery.
+     *
+     * @return bootstrap package URLs served by peers, with their advertised package digest
+     */
+    public Map<URL, String> peers() {
+        return Collections.unmodifiableMap(peers);
     }
 }
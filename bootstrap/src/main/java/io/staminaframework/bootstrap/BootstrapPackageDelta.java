@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Bootstrap package delta decoder.
+ * <p>
+ * A delta is made of operations copying bytes from the local package,
+ * and of new bytes sent by the bootstrap admin instance.
+ * See the bootstrap admin for a description of the delta format.
+ *
+ * @author Stamina Framework developers
+ */
+final class BootstrapPackageDelta {
+    private static final int MAGIC = 0x53425044;
+    private static final byte VERSION = 1;
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_DATA = 2;
+
+    private BootstrapPackageDelta() {
+    }
+
+    /**
+     * Rebuild a bootstrap package from a delta.
+     *
+     * @param delta   delta content
+     * @param base    local bootstrap package
+     * @param baseSha local bootstrap package digest
+     * @param target  file where the rebuilt package is written
+     * @return rebuilt package digest (hex-encoded)
+     * @throws IOException if the delta is invalid, or if the package could not be rebuilt
+     */
+    public static String apply(InputStream delta, Path base, String baseSha, Path target) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(delta, 1024 * 64));
+        if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+            throw new IOException("Invalid bootstrap package delta");
+        }
+        final String deltaBaseSha = in.readUTF();
+        if (!deltaBaseSha.equalsIgnoreCase(baseSha)) {
+            throw new IOException("Bootstrap package delta is not based on local package: " + deltaBaseSha);
+        }
+        final String targetSha = in.readUTF();
+        final long targetLength = in.readLong();
+
+        final MessageDigest md = BootstrapPackageDownloader.newSha256();
+        long written = 0;
+        final byte[] buf = new byte[1024 * 64];
+        try (final FileChannel baseChannel = FileChannel.open(base, StandardOpenOption.READ);
+             final OutputStream out = new DigestOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(target), 1024 * 64), md)) {
+            final ByteBuffer bytes = ByteBuffer.wrap(buf);
+            for (byte op; (op = in.readByte()) != OP_END; ) {
+                if (op == OP_COPY) {
+                    long offset = in.readLong();
+                    int remaining = in.readInt();
+                    while (remaining > 0) {
+                        bytes.clear().limit(Math.min(buf.length, remaining));
+                        final int bytesRead = baseChannel.read(bytes, offset);
+                        if (bytesRead <= 0) {
+                            throw new IOException("Bootstrap package delta refers to missing content");
+                        }
+                        out.write(buf, 0, bytesRead);
+                        offset += bytesRead;
+                        remaining -= bytesRead;
+                        written += bytesRead;
+                    }
+                } else if (op == OP_DATA) {
+                    int remaining = in.readInt();
+                    while (remaining > 0) {
+                        final int len = Math.min(buf.length, remaining);
+                        in.readFully(buf, 0, len);
+                        out.write(buf, 0, len);
+                        remaining -= len;
+                        written += len;
+                    }
+                } else {
+                    throw new IOException("Invalid bootstrap package delta operation: " + op);
+                }
+            }
+        }
+
+        if (written != targetLength) {
+            throw new IOException("Bootstrap package delta size mismatch: expected "
+                    + targetLength + " bytes, got " + written + " bytes");
+        }
+        final String sha = BootstrapPackageDownloader.toHex(md.digest());
+        if (!sha.equalsIgnoreCase(targetSha)) {
+            throw new IOException("Bootstrap package delta digest mismatch: expected "
+                    + targetSha + ", got " + sha);
+        }
+        return sha;
+    }
+}
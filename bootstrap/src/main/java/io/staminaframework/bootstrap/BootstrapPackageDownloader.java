@@ -0,0 +1,779 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import org.osgi.service.log.LogService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This component is responsible for downloading a bootstrap package.
+ * <p>
+ * When several HTTP endpoints supporting byte ranges are available,
+ * the package is split into chunks which are fetched at the same time
+ * from all endpoints: faster endpoints end up serving more chunks.
+ * Chunks are written to a partial file using positional writes,
+ * and download progress is recorded in a journal: an interrupted download
+ * is resumed where it stopped.
+ * <p>
+ * The package is only moved to its final location once its SHA-256 digest
+ * matches the digest published by the bootstrap admin instance.
+ * <p>
+ * A busy endpoint may answer with a <code>503</code> status and a <code>Retry-After</code> header:
+ * the download is then retried after this delay (plus some jitter, so that launchers
+ * do not come back all at once), without counting as a failed attempt.
+ *
+ * @author Stamina Framework developers
+ */
+class BootstrapPackageDownloader {
+    private static final long CHUNK_SIZE = 1024 * 1024 * 4;
+    private static final int CONNECTIONS_PER_URL = 2;
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int MAX_FAILURES_PER_URL = 3;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY = 1000 * 2;
+    private static final long MAX_RETRY_AFTER = 1000 * 60;
+    private static final long MAX_BUSY_WAIT = 1000 * 60 * 10;
+    private final LogService logService;
+    private final String userAgent;
+    private final String launcherId;
+
+    public BootstrapPackageDownloader(final LogService logService, final String userAgent, final String launcherId) {
+        this.logService = logService;
+        this.userAgent = userAgent;
+        this.launcherId = launcherId;
+    }
+
+    /**
+     * Download a bootstrap package using any of these URLs.
+     * <p>
+     * The download is retried several times: every attempt resumes
+     * where the previous one stopped, if byte ranges are supported.
+     * A partially downloaded package is kept on disk if all attempts failed,
+     * so that the download can be resumed later.
+     *
+     * @param urls   bootstrap package URLs
+     * @param target local file where the bootstrap package is written
+     * @return downloaded bootstrap package metadata
+     * @throws IOException if the package could not be downloaded from any URL
+     */
+    public BootstrapPackageMetadata download(Collection<URL> urls, Path target) throws IOException {
+        return download(urls, Collections.emptyList(), target);
+    }
+
+    /**
+     * Download a bootstrap package using any of these URLs, and peers.
+     * <p>
+     * Peers are other launchers sharing the same bootstrap package:
+     * they are only used to fetch chunks, and their content is checked against
+     * the digest published by bootstrap package URLs.
+     * Peers are no longer used if the downloaded package is corrupted.
+     *
+     * @param urls     bootstrap package URLs
+     * @param peerUrls bootstrap package URLs served by peers
+     * @param target   local file where the bootstrap package is written
+     * @return downloaded bootstrap package metadata
+     * @throws IOException if the package could not be downloaded from any URL
+     */
+    public BootstrapPackageMetadata download(Collection<URL> urls, Collection<URL> peerUrls,
+                                             Path target) throws IOException {
+        if (urls.isEmpty()) {
+            throw new IOException("No URL to download bootstrap package from");
+        }
+
+        final Path partialFile = target.resolveSibling(target.getFileName() + ".partial");
+        final Path journalFile = target.resolveSibling(target.getFileName() + ".partial.journal");
+        IOException lastError = null;
+        Collection<URL> peers = peerUrls;
+        long busyDelay = 0;
+        // Time when endpoints were first found busy, from System.nanoTime().
+        long busySince = 0;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; ++attempt) {
+            if (busyDelay != 0) {
+                logService.log(LogService.LOG_INFO,
+                        "Bootstrap package endpoints are busy: retrying download in " + busyDelay / 1000 + " seconds");
+                try {
+                    Thread.sleep(busyDelay);
+                } catch (InterruptedException e) {
+                    throw new IOException("Bootstrap package download interrupted", e);
+                }
+                busyDelay = 0;
+            } else if (attempt > 1) {
+                final long delay = RETRY_DELAY << (attempt - 2);
+                logService.log(LogService.LOG_INFO,
+                        "Retrying bootstrap package download in " + delay / 1000 + " seconds");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new IOException("Bootstrap package download interrupted", e);
+                }
+            }
+            try {
+                final BootstrapPackageMetadata metadata = downloadPartial(urls, peers, partialFile, journalFile);
+                Files.move(partialFile, target, StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(journalFile);
+                return metadata;
+            } catch (DigestMismatchException e) {
+                logService.log(LogService.LOG_WARNING, e.getMessage());
+                // Partial content cannot be trusted: start over.
+                Files.deleteIfExists(partialFile);
+                Files.deleteIfExists(journalFile);
+                if (!peers.isEmpty()) {
+                    logService.log(LogService.LOG_WARNING, "Ignoring bootstrap peers: " + peers);
+                    peers = Collections.emptyList();
+                }
+                lastError = e;
+            } catch (ServerBusyException e) {
+                lastError = e;
+                if (busySince == 0) {
+                    busySince = System.nanoTime();
+                }
+                if ((System.nanoTime() - busySince) / 1000000 < MAX_BUSY_WAIT) {
+                    // Waiting for a busy endpoint is not a failed attempt.
+                    busyDelay = e.jitteredDelay();
+                    --attempt;
+                } else {
+                    logService.log(LogService.LOG_WARNING, "Failed to download bootstrap package", e);
+                }
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to download bootstrap package", e);
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Check if a bootstrap package was modified since it was downloaded.
+     * <p>
+     * Endpoints are asked to revalidate the package using conditional requests.
+     * When no endpoint supports conditional requests, the published package digest is
+     * compared to the local one.
+     *
+     * @param urls    bootstrap package URLs
+     * @param current metadata of the local bootstrap package
+     * @return <code>true</code> if the bootstrap package should be downloaded again
+     */
+    public boolean isModified(Collection<URL> urls, BootstrapPackageMetadata current) {
+        for (final URL u : urls) {
+            if (!isHttp(u)) {
+                continue;
+            }
+            try {
+                final HttpURLConnection conn = (HttpURLConnection) openConnection(u);
+                try {
+                    if (current.etag() != null) {
+                        conn.setRequestProperty("If-None-Match", current.etag());
+                    }
+                    if (current.lastModified() != null) {
+                        conn.setRequestProperty("If-Modified-Since", current.lastModified());
+                    }
+                    // Do not transfer the whole package if it was modified.
+                    conn.setRequestProperty("Range", "bytes=0-0");
+                    final int code = conn.getResponseCode();
+                    if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        logService.log(LogService.LOG_DEBUG, "Bootstrap package not modified: " + u);
+                        return false;
+                    }
+                    if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_PARTIAL) {
+                        final String digest = parseDigestHeader(conn.getHeaderField("Digest"));
+                        if (digest != null) {
+                            return !digest.equalsIgnoreCase(current.sha256());
+                        }
+                        final String etag = conn.getHeaderField("ETag");
+                        if (etag != null && current.etag() != null) {
+                            return !etag.equals(current.etag());
+                        }
+                    }
+                } finally {
+                    conn.disconnect();
+                }
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to reach bootstrap package: " + u, e);
+            }
+        }
+
+        final String digest = fetchPublishedDigest(urls);
+        if (digest != null) {
+            return !digest.equalsIgnoreCase(current.sha256());
+        }
+        logService.log(LogService.LOG_WARNING,
+                "Unable to revalidate bootstrap package: downloading it again");
+        return true;
+    }
+
+    /**
+     * Get bootstrap package digest published by any of these URLs.
+     *
+     * @param urls bootstrap package URLs
+     * @return hex-encoded digest, <code>null</code> if none is available
+     */
+    public String publishedDigest(Collection<URL> urls) {
+        for (final URL u : urls) {
+            if (!isHttp(u)) {
+                continue;
+            }
+            try {
+                final RemotePackage p = probeRangeSupport(u);
+                if (p != null && p.digest != null) {
+                    return p.digest;
+                }
+            } catch (IOException e) {
+                logService.log(LogService.LOG_DEBUG, "Failed to reach bootstrap package: " + u, e);
+            }
+        }
+        return fetchPublishedDigest(urls);
+    }
+
+    /**
+     * Rebuild a new bootstrap package version from a local package and a delta.
+     * <p>
+     * Endpoints are asked for a delta from the local package version: when a delta
+     * is available, only changed bytes are downloaded.
+     *
+     * @param urls      bootstrap package URLs
+     * @param base      local bootstrap package
+     * @param baseSha   local bootstrap package digest
+     * @param target    local file where the new bootstrap package is written
+     * @return new bootstrap package metadata, <code>null</code> if no delta is available
+     */
+    public BootstrapPackageMetadata downloadDelta(Collection<URL> urls, Path base, String baseSha, Path target) {
+        String expectedDigest = null;
+        for (final URL u : urls) {
+            if (!isHttp(u)) {
+                continue;
+            }
+            final Path deltaFile = target.resolveSibling(target.getFileName() + ".delta");
+            try {
+                final HttpURLConnection conn = (HttpURLConnection) openConnection(new URL(u.toExternalForm() + ".delta"));
+                conn.setRequestProperty("StaminaBootstrap-Base", baseSha);
+                final String targetSha;
+                try {
+                    if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                        logService.log(LogService.LOG_DEBUG, "No bootstrap package delta available: " + u);
+                        continue;
+                    }
+                    logService.log(LogService.LOG_INFO, "Downloading bootstrap package delta ("
+                            + conn.getContentLengthLong() + " bytes) from: " + u);
+                    try (final InputStream in = conn.getInputStream()) {
+                        targetSha = BootstrapPackageDelta.apply(in, base, baseSha, deltaFile);
+                    }
+                } finally {
+                    conn.disconnect();
+                }
+
+                if (expectedDigest == null) {
+                    expectedDigest = publishedDigest(urls);
+                }
+                if (expectedDigest != null && !expectedDigest.equalsIgnoreCase(targetSha)) {
+                    logService.log(LogService.LOG_WARNING, "Bootstrap package delta digest mismatch: expected "
+                            + expectedDigest + ", got " + targetSha);
+                    continue;
+                }
+                Files.move(deltaFile, target, StandardCopyOption.REPLACE_EXISTING);
+                return new BootstrapPackageMetadata().sha256(targetSha);
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to apply bootstrap package delta: " + u, e);
+            } finally {
+                try {
+                    Files.deleteIfExists(deltaFile);
+                } catch (IOException ignore) {
+                }
+            }
+        }
+        return null;
+    }
+
+    private BootstrapPackageMetadata downloadPartial(Collection<URL> urls, Collection<URL> peerUrls,
+                                                     Path partialFile, Path journalFile) throws IOException {
+        // Look for endpoints supporting byte ranges.
+        final List<URL> rangeUrls = new ArrayList<>(urls.size());
+        RemotePackage remote = null;
+        ServerBusyException busy = null;
+        for (final URL u : urls) {
+            if (!isHttp(u)) {
+                continue;
+            }
+            try {
+                final RemotePackage p = probeRangeSupport(u);
+                if (p == null) {
+                    logService.log(LogService.LOG_DEBUG, "No byte range support: " + u);
+                } else if (remote != null && remote.length != p.length) {
+                    logService.log(LogService.LOG_WARNING,
+                            "Ignoring bootstrap package with a different size: " + u);
+                } else {
+                    if (remote == null) {
+                        remote = p;
+                    }
+                    rangeUrls.add(u);
+                }
+            } catch (ServerBusyException e) {
+                logService.log(LogService.LOG_DEBUG, "Bootstrap package endpoint is busy: " + u);
+                busy = e;
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to reach bootstrap package: " + u, e);
+            }
+        }
+        if (remote == null && busy != null) {
+            // The package may still be built for this launcher: its digest is not known yet.
+            throw busy;
+        }
+
+        String expectedDigest = remote == null ? null : remote.digest;
+        if (expectedDigest == null) {
+            expectedDigest = fetchPublishedDigest(urls);
+        }
+        if (expectedDigest == null) {
+            logService.log(LogService.LOG_WARNING,
+                    "No digest published for bootstrap package: integrity cannot be verified");
+        } else {
+            // Peers are only trusted if the downloaded package can be verified.
+            for (final URL u : peerUrls) {
+                try {
+                    final RemotePackage p = probeRangeSupport(u);
+                    if (p == null || (p.digest != null && !expectedDigest.equalsIgnoreCase(p.digest))
+                            || (remote != null && remote.length != p.length)) {
+                        logService.log(LogService.LOG_DEBUG, "Ignoring bootstrap peer: " + u);
+                        continue;
+                    }
+                    if (remote == null) {
+                        remote = p;
+                    }
+                    rangeUrls.add(u);
+                } catch (IOException e) {
+                    logService.log(LogService.LOG_DEBUG, "Failed to reach bootstrap peer: " + u, e);
+                }
+            }
+        }
+
+        final BootstrapPackageMetadata metadata;
+        if (remote != null) {
+            DownloadJournal journal = DownloadJournal.load(journalFile);
+            if (journal != null && journal.matches(remote.length, remote.validator, CHUNK_SIZE)
+                    && Files.exists(partialFile)) {
+                logService.log(LogService.LOG_INFO, "Resuming bootstrap package download: "
+                        + journal.remainingBytes() + " bytes remaining");
+            } else {
+                Files.deleteIfExists(partialFile);
+                journal = new DownloadJournal(journalFile, remote.length, remote.validator, CHUNK_SIZE);
+                journal.store();
+            }
+            downloadChunks(rangeUrls, journal, partialFile);
+            metadata = new BootstrapPackageMetadata()
+                    .sha256(sha256(partialFile))
+                    .etag(remote.etag)
+                    .lastModified(remote.lastModified);
+        } else {
+            Files.deleteIfExists(journalFile);
+            metadata = downloadStream(urls, partialFile);
+        }
+
+        if (expectedDigest != null && !expectedDigest.equalsIgnoreCase(metadata.sha256())) {
+            throw new DigestMismatchException("Bootstrap package digest mismatch: expected "
+                    + expectedDigest + ", got " + metadata.sha256());
+        }
+        return metadata;
+    }
+
+    private BootstrapPackageMetadata downloadStream(Collection<URL> urls, Path partialFile) throws IOException {
+        IOException lastError = null;
+        for (final URL u : urls) {
+            logService.log(LogService.LOG_INFO, "Using bootstrap package: " + u);
+            final MessageDigest md = newSha256();
+            final URLConnection conn = openConnection(u);
+            if (conn instanceof HttpURLConnection) {
+                try {
+                    checkServerBusy((HttpURLConnection) conn);
+                } catch (ServerBusyException e) {
+                    logService.log(LogService.LOG_DEBUG, "Bootstrap package endpoint is busy: " + u);
+                    lastError = e;
+                    continue;
+                } catch (IOException e) {
+                    logService.log(LogService.LOG_WARNING, "Failed to download bootstrap package: " + u, e);
+                    lastError = e;
+                    continue;
+                }
+            }
+            try (final InputStream in = new DigestInputStream(conn.getInputStream(), md)) {
+                Files.copy(in, partialFile, StandardCopyOption.REPLACE_EXISTING);
+                // We were able to use this URL: we can stop here.
+                return new BootstrapPackageMetadata()
+                        .sha256(toHex(md.digest()))
+                        .etag(conn.getHeaderField("ETag"))
+                        .lastModified(conn.getHeaderField("Last-Modified"));
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to download bootstrap package: " + u, e);
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    private void downloadChunks(List<URL> urls, DownloadJournal journal, Path partialFile) throws IOException {
+        final AtomicLong remainingBytes = new AtomicLong(journal.remainingBytes());
+        logService.log(LogService.LOG_INFO,
+                "Downloading bootstrap package (" + remainingBytes.get() + " bytes) from: " + urls);
+
+        final Queue<Integer> chunks = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < journal.chunkCount(); ++i) {
+            if (journal.chunkRemaining(i) != 0) {
+                chunks.add(i);
+            }
+        }
+        final AtomicReference<IOException> lastError = new AtomicReference<>();
+
+        final int connectionsPerUrl =
+                Math.max(1, Math.min(CONNECTIONS_PER_URL, MAX_CONNECTIONS / urls.size()));
+        final CountDownLatch workersDone = new CountDownLatch(urls.size() * connectionsPerUrl);
+        try (final FileChannel out = FileChannel.open(partialFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final List<Thread> workers = new ArrayList<>(urls.size() * connectionsPerUrl);
+            for (final URL u : urls) {
+                final AtomicLong failures = new AtomicLong();
+                // Time when this endpoint was first found busy, from System.nanoTime().
+                final AtomicLong busySince = new AtomicLong();
+                for (int i = 0; i < connectionsPerUrl; ++i) {
+                    final Runnable task = () -> {
+                        try {
+                            for (Integer chunk; remainingBytes.get() != 0
+                                    && failures.get() < MAX_FAILURES_PER_URL; ) {
+                                chunk = chunks.poll();
+                                if (chunk == null) {
+                                    // Other workers are still busy: a chunk may come back.
+                                    Thread.sleep(100);
+                                    continue;
+                                }
+                                try {
+                                    fetchChunk(u, chunk, journal, out, remainingBytes);
+                                    journal.store();
+                                } catch (ServerBusyException e) {
+                                    // Come back later, unless this endpoint has been busy for too long.
+                                    lastError.set(e);
+                                    chunks.add(chunk);
+                                    final long delay = e.jitteredDelay();
+                                    busySince.compareAndSet(0, System.nanoTime());
+                                    if ((System.nanoTime() - busySince.get()) / 1000000 > MAX_BUSY_WAIT) {
+                                        failures.set(MAX_FAILURES_PER_URL);
+                                    } else {
+                                        logService.log(LogService.LOG_DEBUG, "Bootstrap package endpoint is busy: "
+                                                + u + " (retrying in " + delay + " ms)");
+                                        Thread.sleep(delay);
+                                    }
+                                } catch (IOException e) {
+                                    failures.incrementAndGet();
+                                    lastError.set(e);
+                                    logService.log(LogService.LOG_DEBUG,
+                                            "Failed to download chunk at offset "
+                                                    + journal.chunkOffset(chunk) + " from " + u, e);
+                                    chunks.add(chunk);
+                                }
+                            }
+                        } catch (InterruptedException ignore) {
+                        } finally {
+                            workersDone.countDown();
+                        }
+                    };
+                    final Thread worker = new Thread(task, "Stamina Bootstrap Downloader");
+                    worker.setDaemon(true);
+                    workers.add(worker);
+                }
+            }
+            for (final Thread worker : workers) {
+                worker.start();
+            }
+            try {
+                workersDone.await();
+            } catch (InterruptedException e) {
+                for (final Thread worker : workers) {
+                    worker.interrupt();
+                }
+                throw new IOException("Bootstrap package download interrupted", e);
+            }
+            out.force(false);
+        } finally {
+            journal.store();
+        }
+
+        if (remainingBytes.get() != 0) {
+            final IOException e = lastError.get();
+            throw e != null ? e : new IOException("Incomplete bootstrap package download");
+        }
+    }
+
+    private void fetchChunk(URL u, int chunk, DownloadJournal journal,
+                            FileChannel out, AtomicLong remainingBytes) throws IOException {
+        final long start = journal.chunkOffset(chunk);
+        final long end = start + journal.chunkRemaining(chunk) - 1;
+        final HttpURLConnection conn = (HttpURLConnection) openConnection(u);
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        checkServerBusy(conn);
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            conn.disconnect();
+            throw new IOException("Unexpected HTTP response code: " + conn.getResponseCode());
+        }
+        final String contentRange = conn.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes " + start + "-")) {
+            conn.disconnect();
+            throw new IOException("Unexpected content range: " + contentRange);
+        }
+
+        final ByteBuffer buf = ByteBuffer.allocate(1024 * 64);
+        try (final InputStream in = conn.getInputStream()) {
+            for (long remaining; (remaining = journal.chunkRemaining(chunk)) != 0; ) {
+                final int bytesRead = in.read(buf.array(), 0, (int) Math.min(buf.capacity(), remaining));
+                if (bytesRead == -1) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                final long position = journal.chunkOffset(chunk);
+                buf.limit(bytesRead).position(0);
+                while (buf.hasRemaining()) {
+                    out.write(buf, position + buf.position());
+                }
+                // Only record progress once data is written:
+                // on failure, the remaining part of this chunk is downloaded again.
+                journal.advance(chunk, bytesRead);
+                remainingBytes.addAndGet(-bytesRead);
+                buf.clear();
+            }
+        }
+    }
+
+    /**
+     * Check if an endpoint supports byte ranges.
+     *
+     * @return bootstrap package metadata, or <code>null</code> if byte ranges are not supported
+     */
+    private RemotePackage probeRangeSupport(URL u) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) openConnection(u);
+        conn.setRequestProperty("Range", "bytes=0-0");
+        try {
+            checkServerBusy(conn);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                return null;
+            }
+            final String contentRange = conn.getHeaderField("Content-Range");
+            if (contentRange == null) {
+                return null;
+            }
+            final int i = contentRange.lastIndexOf('/');
+            if (i == -1 || "*".equals(contentRange.substring(i + 1))) {
+                return null;
+            }
+            final RemotePackage p = new RemotePackage();
+            p.length = Long.parseLong(contentRange.substring(i + 1).trim());
+            p.etag = conn.getHeaderField("ETag");
+            p.lastModified = conn.getHeaderField("Last-Modified");
+            p.validator = p.etag != null ? p.etag : p.lastModified;
+            p.digest = parseDigestHeader(conn.getHeaderField("Digest"));
+            return p;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Get bootstrap package digest published next to the package
+     * (<code>bootstrap.pkg.sha256</code>).
+     *
+     * @return hex-encoded digest, <code>null</code> if none is available
+     */
+    private String fetchPublishedDigest(Collection<URL> urls) {
+        for (final URL u : urls) {
+            try {
+                final URL digestUrl = new URL(u.toExternalForm() + ".sha256");
+                try (final BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(openConnection(digestUrl).getInputStream(), "UTF-8"))) {
+                    final String line = reader.readLine();
+                    if (line != null) {
+                        final String digest = line.trim().split("\\s+")[0];
+                        if (digest.length() == 64) {
+                            logService.log(LogService.LOG_DEBUG, "Got bootstrap package digest: " + digest);
+                            return digest;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logService.log(LogService.LOG_DEBUG, "No bootstrap package digest found for: " + u);
+            }
+        }
+        return null;
+    }
+
+    private static String parseDigestHeader(String header) {
+        if (header == null) {
+            return null;
+        }
+        for (final String value : header.split(",")) {
+            final int i = value.indexOf('=');
+            if (i != -1 && "SHA-256".equalsIgnoreCase(value.substring(0, i).trim())) {
+                try {
+                    return toHex(Base64.getDecoder().decode(value.substring(i + 1).trim()));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if an endpoint asked to try again later.
+     * The delay is never shorter than {@link #RETRY_DELAY}, even if the endpoint
+     * asked to try again immediately or sent a date in the past.
+     *
+     * @throws ServerBusyException if the endpoint is busy
+     */
+    private static void checkServerBusy(HttpURLConnection conn) throws IOException {
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_UNAVAILABLE) {
+            return;
+        }
+        long delay = RETRY_DELAY;
+        final String retryAfter = conn.getHeaderField("Retry-After");
+        if (retryAfter != null) {
+            try {
+                delay = Long.parseLong(retryAfter.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // Retry-After may also be an HTTP date.
+                final long date = conn.getHeaderFieldDate("Retry-After", 0);
+                if (date != 0) {
+                    delay = date - System.currentTimeMillis();
+                }
+            }
+        }
+        conn.disconnect();
+        throw new ServerBusyException("Bootstrap package endpoint is busy: " + conn.getURL(),
+                Math.max(RETRY_DELAY, Math.min(delay, MAX_RETRY_AFTER)));
+    }
+
+    private URLConnection openConnection(URL u) throws IOException {
+        final URLConnection conn = u.openConnection();
+        conn.setConnectTimeout(1000 * 10);
+        conn.setReadTimeout(1000 * 30);
+        if (isHttp(u)) {
+            conn.setRequestProperty("User-Agent", userAgent);
+            conn.setRequestProperty("StaminaBootstrap-Id", launcherId);
+        }
+        return conn;
+    }
+
+    private static boolean isHttp(URL u) {
+        return "http".equals(u.getProtocol()) || "https".equals(u.getProtocol());
+    }
+
+    /**
+     * Compute SHA-256 digest of a file.
+     *
+     * @param file file to read
+     * @return hex-encoded digest
+     * @throws IOException if file could not be read
+     */
+    static String sha256(Path file) throws IOException {
+        final MessageDigest md = newSha256();
+        final byte[] buf = new byte[1024 * 64];
+        try (final InputStream in = Files.newInputStream(file)) {
+            for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                md.update(buf, 0, bytesRead);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unexpected error", e);
+        }
+    }
+
+    static String toHex(byte[] data) {
+        final StringBuilder buf = new StringBuilder(data.length * 2);
+        for (final byte b : data) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Bootstrap package metadata, as published by an endpoint.
+     */
+    private static class RemotePackage {
+        long length;
+        String etag;
+        String lastModified;
+        String validator;
+        String digest;
+    }
+
+    /**
+     * Exception raised when a downloaded bootstrap package is corrupted.
+     */
+    private static class DigestMismatchException extends IOException {
+        DigestMismatchException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Exception raised when an endpoint asks to try again later.
+     */
+    private static class ServerBusyException extends IOException {
+        private final long delay;
+
+        ServerBusyException(final String message, final long delay) {
+            super(message);
+            this.delay = delay;
+        }
+
+        /**
+         * Get the delay before trying again, with up to 50% of random jitter.
+         *
+         * @return delay in milliseconds
+         */
+        long jitteredDelay() {
+            return delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Metadata about a downloaded bootstrap package.
+ * <p>
+ * These values are used to check whether a cached bootstrap package
+ * is still up-to-date.
+ *
+ * @author Stamina Framework developers
+ */
+class BootstrapPackageMetadata {
+    private String sha256;
+    private String etag;
+    private String lastModified;
+    private String url;
+
+    /**
+     * Get bootstrap package SHA-256 digest.
+     *
+     * @return hex-encoded digest
+     */
+    public String sha256() {
+        return sha256;
+    }
+
+    public BootstrapPackageMetadata sha256(String sha256) {
+        this.sha256 = sha256;
+        return this;
+    }
+
+    /**
+     * Get entity tag sent by the server when the package was downloaded.
+     *
+     * @return entity tag, <code>null</code> if none
+     */
+    public String etag() {
+        return etag;
+    }
+
+    public BootstrapPackageMetadata etag(String etag) {
+        this.etag = etag;
+        return this;
+    }
+
+    /**
+     * Get modification date sent by the server when the package was downloaded.
+     *
+     * @return HTTP date, <code>null</code> if none
+     */
+    public String lastModified() {
+        return lastModified;
+    }
+
+    public BootstrapPackageMetadata lastModified(String lastModified) {
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    /**
+     * Get URL this package was downloaded from.
+     *
+     * @return package URL, <code>null</code> if unknown
+     */
+    public String url() {
+        return url;
+    }
+
+    public BootstrapPackageMetadata url(String url) {
+        this.url = url;
+        return this;
+    }
+
+    /**
+     * Load bootstrap package metadata.
+     *
+     * @param file metadata file
+     * @return metadata instance, <code>null</code> if there is no metadata
+     */
+    public static BootstrapPackageMetadata load(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        final Properties props = new Properties();
+        try (final InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        return new BootstrapPackageMetadata()
+                .sha256(props.getProperty("sha256"))
+                .etag(props.getProperty("etag"))
+                .lastModified(props.getProperty("last-modified"))
+                .url(props.getProperty("url"));
+    }
+
+    /**
+     * Write bootstrap package metadata.
+     *
+     * @param file metadata file
+     * @throws IOException if metadata could not be written
+     */
+    public void store(Path file) throws IOException {
+        final Properties props = new Properties();
+        if (sha256 != null) {
+            props.setProperty("sha256", sha256);
+        }
+        if (etag != null) {
+            props.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            props.setProperty("last-modified", lastModified);
+        }
+        if (url != null) {
+            props.setProperty("url", url);
+        }
+        try (final OutputStream out = Files.newOutputStream(file)) {
+            props.store(out, "Bootstrap package metadata");
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import com.eclipsesource.json.Json;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded HTTP endpoint sharing a verified bootstrap package with other launchers.
+ * <p>
+ * The package is served with byte range support, so that launchers may fetch
+ * chunks from several peers at the same time.
+ * Peers are announced on their own UDP port, next to the network discovery port, so that
+ * launchers without peer support never mistake a peer advert for an admin instance.
+ * Launchers only use a peer if its package digest matches the digest published
+ * by the bootstrap admin instance.
+ *
+ * @author Stamina Framework developers
+ */
+class BootstrapPackagePeerServer {
+    private static final int PEER_DISCOVERY_UDP_PORT = 17711;
+    private static final int MAX_CONNECTIONS = 4;
+    private static final long ADVERT_PERIOD = 2000;
+    private final LogService logService;
+    private final Path bootstrapPackage;
+    private final String sha256;
+    private final int port;
+    private HttpServer server;
+    private ExecutorService executor;
+    private Thread advertiser;
+
+    public BootstrapPackagePeerServer(final LogService logService, final Path bootstrapPackage,
+                                      final String sha256, final int port) {
+        this.logService = logService;
+        this.bootstrapPackage = bootstrapPackage;
+        this.sha256 = sha256;
+        this.port = port;
+    }
+
+    /**
+     * Start serving bootstrap package to other launchers.
+     *
+     * @throws IOException if the HTTP endpoint could not be started
+     */
+    public void start() throws IOException {
+        // Limit the number of peers downloading from this launcher at the same time.
+        executor = Executors.newFixedThreadPool(MAX_CONNECTIONS, r -> {
+            final Thread t = new Thread(r, "Stamina Bootstrap Peer Server");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/bootstrap.pkg", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        final int serverPort = server.getAddress().getPort();
+        logService.log(LogService.LOG_INFO, "Sharing bootstrap package with other launchers on port " + serverPort);
+
+        final byte[] payload = Json.object()
+                .add("version", 1)
+                .add("peer-port", serverPort)
+                .add("bootstrap-package-sha256", sha256)
+                .toString().getBytes("UTF-8");
+        final Runnable task = () -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try (final DatagramSocket so = new DatagramSocket()) {
+                    so.setBroadcast(true);
+                    so.send(new DatagramPacket(payload, 0, payload.length,
+                            InetAddress.getByName("255.255.255.255"), PEER_DISCOVERY_UDP_PORT));
+                } catch (IOException e) {
+                    logService.log(LogService.LOG_DEBUG, "Error while publishing bootstrap peer advert", e);
+                }
+                try {
+                    Thread.sleep(ADVERT_PERIOD);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        };
+        advertiser = new Thread(task, "Stamina Bootstrap Peer Advertiser");
+        advertiser.setPriority(Thread.MIN_PRIORITY);
+        advertiser.setDaemon(true);
+        advertiser.start();
+    }
+
+    /**
+     * Stop serving bootstrap package.
+     */
+    public void stop() {
+        if (advertiser != null) {
+            advertiser.interrupt();
+            advertiser = null;
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            try (final FileChannel ch = FileChannel.open(bootstrapPackage, StandardOpenOption.READ)) {
+                final long length = ch.size();
+                long start = 0;
+                long end = length - 1;
+                boolean partial = false;
+                final String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range != null && range.startsWith("bytes=") && range.indexOf(',') == -1) {
+                    try {
+                        final String spec = range.substring("bytes=".length()).trim();
+                        final int i = spec.indexOf('-');
+                        if (i == 0) {
+                            start = Math.max(0, length - Long.parseLong(spec.substring(1)));
+                        } else {
+                            start = Long.parseLong(spec.substring(0, i));
+                            if (i < spec.length() - 1) {
+                                end = Math.min(end, Long.parseLong(spec.substring(i + 1)));
+                            }
+                        }
+                        partial = true;
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+                if (partial && (start > end || start >= length)) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", "application/vnd.stamina.package");
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().set("ETag", "\"" + sha256 + "\"");
+                exchange.getResponseHeaders().set("Digest", "SHA-256="
+                        + Base64.getEncoder().encodeToString(fromHex(sha256)));
+                if (partial) {
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + start + "-" + end + "/" + length);
+                }
+                final long contentLength = end - start + 1;
+                if ("HEAD".equals(method)) {
+                    exchange.sendResponseHeaders(partial ? 206 : 200, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(partial ? 206 : 200, contentLength);
+                try (final OutputStream out = exchange.getResponseBody()) {
+                    final WritableByteChannel outChannel = Channels.newChannel(out);
+                    for (long pos = start; pos <= end; ) {
+                        final long transferred = ch.transferTo(pos, end - pos + 1, outChannel);
+                        if (transferred <= 0) {
+                            break;
+                        }
+                        pos += transferred;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logService.log(LogService.LOG_DEBUG,
+                    "Error while sending bootstrap package to peer: " + exchange.getRemoteAddress(), e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        final byte[] raw = new BigInteger(hex, 16).toByteArray();
+        final byte[] data = new byte[hex.length() / 2];
+        final int len = Math.min(raw.length, data.length);
+        System.arraycopy(raw, raw.length - len, data, data.length - len, len);
+        return data;
+    }
+}
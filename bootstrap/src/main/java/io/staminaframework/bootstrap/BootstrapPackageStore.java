@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Host-wide content-addressed store for bootstrap packages.
+ * <p>
+ * Packages are stored once per host, keyed by their SHA-256 digest.
+ * Each launcher cache links to the stored copy: a package is only downloaded
+ * and stored once, no matter how many launchers are running on the same host.
+ * <p>
+ * Every stored package keeps track of the files linking to it.
+ * Packages which are no longer referenced are evicted, least recently used first,
+ * when the store grows beyond its maximum size.
+ * <p>
+ * Store updates are protected by a file lock, since several launcher
+ * processes may share the same store.
+ *
+ * @author Stamina Framework developers
+ */
+class BootstrapPackageStore {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String OBJECT_SUFFIX = ".pkg";
+    private static final String REFS_SUFFIX = ".refs";
+    private final LogService logService;
+    private final Path storeDir;
+    private final long maxSize;
+
+    public BootstrapPackageStore(final LogService logService, final Path storeDir, final long maxSize) {
+        this.logService = logService;
+        this.storeDir = storeDir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Link a file to a stored package.
+     *
+     * @param sha256 package digest (hex-encoded)
+     * @param target file to link to the stored package
+     * @return <code>true</code> if the package was found in this store
+     * @throws IOException if the store could not be accessed
+     */
+    public boolean link(String sha256, Path target) throws IOException {
+        final Path object = objectFile(sha256);
+        try (final FileChannel lockChannel = openLock(); final FileLock ignore = lockChannel.lock()) {
+            if (!Files.exists(object)) {
+                return false;
+            }
+            logService.log(LogService.LOG_DEBUG, "Using stored bootstrap package: " + object);
+            linkObject(object, target);
+            addRef(sha256, target);
+            Files.setLastModifiedTime(object, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        }
+    }
+
+    /**
+     * Add a package to this store.
+     * The package file is then replaced with a link to the stored package.
+     *
+     * @param file   package file
+     * @param sha256 package digest (hex-encoded)
+     * @throws IOException if the package could not be stored
+     */
+    public void add(Path file, String sha256) throws IOException {
+        final Path object = objectFile(sha256);
+        try (final FileChannel lockChannel = openLock(); final FileLock ignore = lockChannel.lock()) {
+            if (Files.exists(object)) {
+                // Same content already stored: share it.
+                linkObject(object, file);
+            } else {
+                logService.log(LogService.LOG_DEBUG, "Storing bootstrap package: " + object);
+                final Path tmpObject = object.resolveSibling(object.getFileName() + ".tmp");
+                Files.copy(file, tmpObject, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmpObject, object, StandardCopyOption.REPLACE_EXISTING);
+                linkObject(object, file);
+            }
+            addRef(sha256, file);
+            Files.setLastModifiedTime(object, FileTime.fromMillis(System.currentTimeMillis()));
+            evict();
+        }
+    }
+
+    /**
+     * Evict unreferenced packages, least recently used first,
+     * until this store fits into its maximum size.
+     */
+    private void evict() throws IOException {
+        final List<Path> objects = new ArrayList<>(4);
+        long totalSize = 0;
+        try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(storeDir, "*" + OBJECT_SUFFIX)) {
+            for (final Path object : dirStream) {
+                objects.add(object);
+                totalSize += Files.size(object);
+            }
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        objects.sort(Comparator.comparing(BootstrapPackageStore::lastAccessTime));
+        for (final Path object : objects) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            final String fileName = object.getFileName().toString();
+            final String sha256 = fileName.substring(0, fileName.length() - OBJECT_SUFFIX.length());
+            if (!liveRefs(sha256).isEmpty()) {
+                continue;
+            }
+            logService.log(LogService.LOG_DEBUG, "Evicting stored bootstrap package: " + object);
+            final long size = Files.size(object);
+            Files.delete(object);
+            Files.deleteIfExists(refsFile(sha256));
+            totalSize -= size;
+        }
+    }
+
+    private void linkObject(Path object, Path target) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(object, target)) {
+            return;
+        }
+        final Path tmpTarget = target.resolveSibling(target.getFileName() + ".link");
+        Files.deleteIfExists(tmpTarget);
+        try {
+            Files.createLink(tmpTarget, object);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Store and target may be located on different file systems.
+            logService.log(LogService.LOG_DEBUG,
+                    "Cannot link to stored bootstrap package: copying " + object);
+            Files.copy(object, tmpTarget);
+        }
+        Files.move(tmpTarget, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void addRef(String sha256, Path target) throws IOException {
+        final Set<String> refs = liveRefs(sha256);
+        refs.add(target.toAbsolutePath().toString());
+        Files.write(refsFile(sha256), refs, UTF8);
+    }
+
+    /**
+     * Get files still linking to a stored package.
+     * A reference is dropped as soon as the linked file is deleted or replaced.
+     */
+    private Set<String> liveRefs(String sha256) throws IOException {
+        final Path object = objectFile(sha256);
+        final Path refsFile = refsFile(sha256);
+        final Set<String> refs = new LinkedHashSet<>(4);
+        if (!Files.exists(refsFile)) {
+            return refs;
+        }
+        for (final String ref : Files.readAllLines(refsFile, UTF8)) {
+            if (ref.length() == 0) {
+                continue;
+            }
+            final Path refFile = storeDir.getFileSystem().getPath(ref);
+            if (Files.exists(refFile) && (Files.isSameFile(refFile, object)
+                    || Files.size(refFile) == Files.size(object))) {
+                // A copied package is still a live reference.
+                refs.add(ref);
+            }
+        }
+        return refs;
+    }
+
+    private FileChannel openLock() throws IOException {
+        Files.createDirectories(storeDir);
+        return FileChannel.open(storeDir.resolve(".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private Path objectFile(String sha256) {
+        return storeDir.resolve(sha256.toLowerCase() + OBJECT_SUFFIX);
+    }
+
+    private Path refsFile(String sha256) {
+        return storeDir.resolve(sha256.toLowerCase() + REFS_SUFFIX);
+    }
+
+    private static FileTime lastAccessTime(Path object) {
+        try {
+            return Files.getLastModifiedTime(object);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -18,9 +18,19 @@ package io.staminaframework.bootstrap;
 
 import org.osgi.service.provisioning.ProvisioningService;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -28,23 +38,47 @@ import java.util.zip.ZipInputStream;
 
 /**
  * {@link ProvisioningService} implementation using a bootstrap package.
+ * <p>
+ * The bootstrap package is opened once, and its entries are indexed.
+ * Entry values are byte arrays, read from the bootstrap package when requested.
+ * <p>
+ * Agents declaring {@link #ENTRY_URLS} using {@link #addInformation(Dictionary)}
+ * get {@link URL} instances instead: entry content is streamed
+ * from the bootstrap package when the URL is opened, without loading
+ * the whole entry in memory. Uncompressed entries may also be read
+ * as a {@link ByteBuffer} mapped from the bootstrap package.
  *
  * @author Stamina Framework developers
  */
-class BootstrapProvisioningService implements ProvisioningService {
+class BootstrapProvisioningService implements ProvisioningService, Closeable {
+    /**
+     * Information key set to <code>true</code> by agents supporting {@link URL} entry values.
+     */
+    public static final String ENTRY_URLS = "stamina.bootstrap.entry.urls.txt";
     private final Path bootstrapPackage;
-    private final Set<String> entries = new HashSet<>(4);
+    private final ZipFile pkg;
+    private final Map<String, URL> entries = new HashMap<>(8);
     private final Map<String, String> properties;
+    private final URLStreamHandler entryHandler = new EntryHandler();
     private String agentBundle;
+    private FileChannel pkgChannel;
+    private Map<String, Long> localHeaderOffsets;
+    private boolean zip64;
+    private volatile boolean entryUrls;
 
     public BootstrapProvisioningService(final Path bootstrapPackage, final Map<String, String> properties) throws IOException {
         this.bootstrapPackage = bootstrapPackage;
         this.properties = properties;
 
-        // Index bootstrap package entries.
-        try (final ZipFile pkg = new ZipFile(bootstrapPackage.toFile())) {
+        // Index bootstrap package entries:
+        // the package is kept open until this service is closed.
+        pkg = new ZipFile(bootstrapPackage.toFile());
+        try {
             for (final Enumeration<? extends ZipEntry> zipEntries = pkg.entries(); zipEntries.hasMoreElements(); ) {
                 final ZipEntry ze = zipEntries.nextElement();
+                if (ze.isDirectory()) {
+                    continue;
+                }
                 if (PROVISIONING_START_BUNDLE.equals(ze.getName())) {
                     final byte[] rawAgentBundle = new byte[(int) ze.getSize()];
                     try (final InputStream in = pkg.getInputStream(ze)) {
@@ -55,10 +89,153 @@ class BootstrapProvisioningService implements ProvisioningService {
                     }
                     agentBundle = new String(rawAgentBundle, "UTF-8");
                 }
-                entries.add(ze.getName());
+                entries.put(ze.getName(), new URL("bootstrap", null, -1, "/" + ze.getName(), entryHandler));
+            }
+        } catch (IOException e) {
+            pkg.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get an entry from the bootstrap package as an {@link URL}.
+     *
+     * @param name entry name
+     * @return entry URL, <code>null</code> if no such entry exists
+     */
+    URL getEntryUrl(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Close the bootstrap package.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            pkg.close();
+        } finally {
+            synchronized (this) {
+                if (pkgChannel != null) {
+                    pkgChannel.close();
+                    pkgChannel = null;
+                }
+            }
+        }
+    }
+
+    private byte[] readEntry(String name) {
+        final ZipEntry ze = pkg.getEntry(name);
+        if (ze == null) {
+            return null;
+        }
+        try (final InputStream in = pkg.getInputStream(ze)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(ze.getSize(), 32));
+            final byte[] buf = new byte[8192];
+            for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                out.write(buf, 0, bytesRead);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read bootstrap package entry: " + name, e);
+        }
+    }
+
+    /**
+     * Map an uncompressed entry from the bootstrap package.
+     *
+     * @return mapped entry, <code>null</code> if this entry cannot be mapped
+     */
+    private synchronized ByteBuffer mapEntry(ZipEntry ze) throws IOException {
+        if (zip64 || ze.getSize() > Integer.MAX_VALUE) {
+            return null;
+        }
+        if (pkgChannel == null) {
+            pkgChannel = FileChannel.open(bootstrapPackage, StandardOpenOption.READ);
+        }
+        if (localHeaderOffsets == null) {
+            localHeaderOffsets = readLocalHeaderOffsets(pkgChannel);
+            if (localHeaderOffsets == null) {
+                // ZIP64 archive: entries are read using ZipFile.
+                zip64 = true;
+                return null;
+            }
+        }
+        final Long localHeaderOffset = localHeaderOffsets.get(ze.getName());
+        if (localHeaderOffset == null) {
+            throw new IOException("Bootstrap package entry not found in central directory: " + ze.getName());
+        }
+        final ByteBuffer localHeader = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(pkgChannel, localHeader, localHeaderOffset);
+        if (localHeader.getInt(0) != 0x04034b50) {
+            throw new IOException("Invalid bootstrap package entry: " + ze.getName());
+        }
+        final long dataOffset = localHeaderOffset + 30
+                + (localHeader.getShort(26) & 0xffff) + (localHeader.getShort(28) & 0xffff);
+        return pkgChannel.map(FileChannel.MapMode.READ_ONLY, dataOffset, ze.getSize());
+    }
+
+    /**
+     * Read local header offsets from the central directory.
+     *
+     * @return local header offsets, <code>null</code> if this is a ZIP64 archive
+     */
+    private static Map<String, Long> readLocalHeaderOffsets(FileChannel ch) throws IOException {
+        // Locate the end of central directory record.
+        final long size = ch.size();
+        final int tailLength = (int) Math.min(size, 22 + 0xffff);
+        final ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(ch, tail, size - tailLength);
+        int eocd = -1;
+        for (int i = tailLength - 22; i >= 0; --i) {
+            if (tail.getInt(i) == 0x06054b50) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new IOException("Invalid bootstrap package: missing central directory");
+        }
+        final int entryCount = tail.getShort(eocd + 10) & 0xffff;
+        final long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        final long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if ((eocd >= 20 && tail.getInt(eocd - 20) == 0x07064b50)
+                || entryCount == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+            // ZIP64 end of central directory locator.
+            return null;
+        }
+
+        final ByteBuffer cd = ByteBuffer.allocate((int) cdSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(ch, cd, cdOffset);
+        final Map<String, Long> offsets = new HashMap<>(entryCount * 2);
+        for (int i = 0, pos = 0; i < entryCount; ++i) {
+            if (cd.getInt(pos) != 0x02014b50) {
+                throw new IOException("Invalid bootstrap package: corrupted central directory");
             }
+            final int nameLen = cd.getShort(pos + 28) & 0xffff;
+            final int extraLen = cd.getShort(pos + 30) & 0xffff;
+            final int commentLen = cd.getShort(pos + 32) & 0xffff;
+            final long localHeaderOffset = cd.getInt(pos + 42) & 0xffffffffL;
+            if (localHeaderOffset == 0xffffffffL) {
+                // Offset is stored in a ZIP64 extra field.
+                return null;
+            }
+            final byte[] name = new byte[nameLen];
+            ((ByteBuffer) cd.duplicate().position(pos + 46)).get(name);
+            offsets.put(new String(name, "UTF-8"), localHeaderOffset);
+            pos += 46 + nameLen + extraLen + commentLen;
         }
+        return offsets;
+    }
 
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            final int bytesRead = ch.read(buf, position);
+            if (bytesRead == -1) {
+                throw new IOException("Unexpected end of bootstrap package");
+            }
+            position += bytesRead;
+        }
     }
 
     @Override
@@ -77,7 +254,7 @@ class BootstrapProvisioningService implements ProvisioningService {
             @Override
             public Enumeration keys() {
                 final Collection<Object> keys = new ArrayList<>(entries.size() + properties.size());
-                keys.addAll(entries);
+                keys.addAll(entries.keySet());
                 keys.addAll(properties.keySet());
                 return Collections.enumeration(keys);
             }
@@ -85,7 +262,7 @@ class BootstrapProvisioningService implements ProvisioningService {
             @Override
             public Enumeration elements() {
                 final Collection<Object> elements = new ArrayList<>(entries.size() + properties.size());
-                for (final String entry : entries) {
+                for (final String entry : entries.keySet()) {
                     elements.add(get(entry));
                 }
                 elements.addAll(properties.values());
@@ -100,23 +277,10 @@ class BootstrapProvisioningService implements ProvisioningService {
                 if (PROVISIONING_START_BUNDLE.equals(key)) {
                     return agentBundle;
                 }
-
-                // Lazily load entry content.
-                try (final ZipFile pkg = new ZipFile(bootstrapPackage.toFile())) {
-                    final ZipEntry ze = pkg.getEntry(key.toString());
-                    if (ze == null) {
-                        return null;
-                    }
-                    final byte[] content = new byte[(int) ze.getSize()];
-                    final InputStream in = pkg.getInputStream(ze);
-                    final byte[] buf = new byte[4096];
-                    for (int bytesRead, totalBytesRead = 0; (bytesRead = in.read(buf)) != -1; totalBytesRead += bytesRead) {
-                        System.arraycopy(buf, 0, content, totalBytesRead, bytesRead);
-                    }
-                    return content;
-                } catch (IOException e) {
-                    throw new RuntimeException("Error while reading bootstrap package entry: " + key, e);
+                if (entryUrls) {
+                    return entries.get(key.toString());
                 }
+                return entries.containsKey(key.toString()) ? readEntry(key.toString()) : null;
             }
 
             @Override
@@ -137,9 +301,57 @@ class BootstrapProvisioningService implements ProvisioningService {
 
     @Override
     public void addInformation(Dictionary info) {
+        if ("true".equals(info.get(ENTRY_URLS))) {
+            entryUrls = true;
+        }
     }
 
     @Override
     public void addInformation(ZipInputStream zis) throws IOException {
     }
+
+    /**
+     * URL handler streaming bootstrap package entries.
+     */
+    private class EntryHandler extends URLStreamHandler {
+        @Override
+        protected URLConnection openConnection(URL u) throws IOException {
+            final ZipEntry ze = pkg.getEntry(u.getPath().substring(1));
+            if (ze == null) {
+                throw new MalformedURLException("No such bootstrap package entry: " + u);
+            }
+            return new URLConnection(u) {
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return pkg.getInputStream(ze);
+                }
+
+                @Override
+                public Object getContent() throws IOException {
+                    if (ze.getMethod() == ZipEntry.STORED) {
+                        final ByteBuffer buf = mapEntry(ze);
+                        if (buf != null) {
+                            return buf;
+                        }
+                    }
+                    return getInputStream();
+                }
+
+                @Override
+                public long getContentLengthLong() {
+                    return ze.getSize();
+                }
+
+                @Override
+                public String getContentType() {
+                    return "application/octet-stream";
+                }
+            };
+        }
+    }
 }
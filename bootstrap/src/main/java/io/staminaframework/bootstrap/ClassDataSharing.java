@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class data sharing (AppCDS) archive management.
+ * <p>
+ * Archives are stored in the cache directory. The runtime archive is bound
+ * to a bootstrap package: it is regenerated when the package changes.
+ * Archives are recorded when a JVM exits (<code>-XX:ArchiveClassesAtExit</code>),
+ * and are then used by later launches (<code>-XX:SharedArchiveFile</code>).
+ * Unsupported JVM options are ignored by older JVMs.
+ *
+ * @author Stamina Framework developers
+ */
+class ClassDataSharing {
+    /**
+     * Environment variable read by any JVM, including the one started by the runtime launcher script.
+     */
+    public static final String JVM_OPTIONS_ENV = "JAVA_TOOL_OPTIONS";
+    private static final String IGNORE_UNRECOGNIZED = "-XX:+IgnoreUnrecognizedVMOptions";
+    private final LogService logService;
+    private final Path cdsDir;
+
+    public ClassDataSharing(final LogService logService, final Path cacheDir) {
+        this.logService = logService;
+        this.cdsDir = cacheDir.resolve("cds");
+    }
+
+    /**
+     * Get JVM options for the runtime process.
+     * <p>
+     * Classes are recorded in training mode, or when the archive is outdated
+     * because the bootstrap package changed.
+     *
+     * @param packageSha256 digest of the bootstrap package the runtime comes from
+     * @param train         <code>true</code> to record a new archive
+     * @return JVM options, <code>null</code> if class data sharing is not used
+     * @throws IOException if archives could not be accessed
+     */
+    public String runtimeJvmOptions(String packageSha256, boolean train) throws IOException {
+        if (packageSha256 == null) {
+            return null;
+        }
+        final Path archive = cdsDir.resolve("runtime-" + packageSha256.substring(0, 16) + ".jsa");
+        if (archive.toAbsolutePath().toString().matches(".*\\s.*")) {
+            // JVM options set with JAVA_TOOL_OPTIONS are split on spaces.
+            logService.log(LogService.LOG_WARNING,
+                    "Class data sharing is disabled: cache path contains spaces (" + cdsDir + ")");
+            return null;
+        }
+        Files.createDirectories(cdsDir);
+
+        boolean outdated = false;
+        try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(cdsDir, "runtime-*.jsa")) {
+            for (final Path oldArchive : dirStream) {
+                if (!oldArchive.equals(archive)) {
+                    logService.log(LogService.LOG_DEBUG, "Deleting outdated class data archive: " + oldArchive);
+                    Files.delete(oldArchive);
+                    outdated = true;
+                }
+            }
+        }
+
+        if (!train && Files.exists(archive)) {
+            logService.log(LogService.LOG_DEBUG, "Using runtime class data archive: " + archive);
+            return IGNORE_UNRECOGNIZED + " -XX:SharedArchiveFile=" + archive;
+        }
+        if (train || outdated) {
+            logService.log(LogService.LOG_INFO,
+                    "Recording runtime classes: class data archive is generated when runtime exits");
+            Files.deleteIfExists(archive);
+            return IGNORE_UNRECOGNIZED + " -XX:ArchiveClassesAtExit=" + archive;
+        }
+        return null;
+    }
+
+    /**
+     * Record classes loaded by the launcher.
+     * <p>
+     * A new launcher JVM is started in the background, using a temporary cache:
+     * this JVM goes through the whole bootstrap sequence using a local bootstrap package,
+     * and exits before the runtime is started.
+     *
+     * @param bootstrapPackage local bootstrap package
+     */
+    public void trainLauncher(Path bootstrapPackage) {
+        final Path archive = cdsDir.resolve("launcher.jsa");
+        final Path launcherJar;
+        try {
+            launcherJar = Paths.get(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException | RuntimeException e) {
+            logService.log(LogService.LOG_WARNING, "Unable to locate launcher: skipping launcher training", e);
+            return;
+        }
+
+        final Runnable task = () -> {
+            Path trainingCache = null;
+            try {
+                Files.createDirectories(cdsDir);
+                Files.deleteIfExists(archive);
+                trainingCache = Files.createTempDirectory("stamina-bootstrap-training-");
+
+                final List<String> cmd = new ArrayList<>(12);
+                cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                cmd.add(IGNORE_UNRECOGNIZED);
+                cmd.add("-XX:ArchiveClassesAtExit=" + archive);
+                cmd.add("-cp");
+                cmd.add(launcherJar.toString());
+                cmd.add(Main.class.getName());
+                cmd.add("--cache");
+                cmd.add(trainingCache.toString());
+                cmd.add("--from");
+                cmd.add(bootstrapPackage.toUri().toString());
+                cmd.add("--cds-dump");
+                logService.log(LogService.LOG_DEBUG, "Recording launcher classes using command: " + cmd);
+
+                final Process proc = new ProcessBuilder(cmd)
+                        .redirectErrorStream(true)
+                        .redirectOutput(cdsDir.resolve("launcher-training.log").toFile())
+                        .start();
+                final int exitCode = proc.waitFor();
+                if (exitCode == 0 && Files.exists(archive)) {
+                    logService.log(LogService.LOG_INFO,
+                            "Launcher class data archive generated: start launcher with -XX:SharedArchiveFile="
+                                    + archive);
+                } else {
+                    logService.log(LogService.LOG_WARNING,
+                            "Failed to generate launcher class data archive: see "
+                                    + cdsDir.resolve("launcher-training.log"));
+                }
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to generate launcher class data archive", e);
+            } catch (InterruptedException ignore) {
+            } finally {
+                if (trainingCache != null) {
+                    try {
+                        Main.deleteDir(trainingCache);
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        };
+        final Thread trainingThread = new Thread(task, "Stamina Bootstrap Launcher Training");
+        trainingThread.setPriority(Thread.MIN_PRIORITY);
+        trainingThread.setDaemon(true);
+        trainingThread.start();
+    }
+
+    /**
+     * Add JVM options to a process environment.
+     *
+     * @param pb         process to start
+     * @param jvmOptions JVM options to add (may be <code>null</code>)
+     */
+    public static void applyJvmOptions(ProcessBuilder pb, String jvmOptions) {
+        if (jvmOptions == null) {
+            return;
+        }
+        final String currentOptions = pb.environment().get(JVM_OPTIONS_ENV);
+        pb.environment().put(JVM_OPTIONS_ENV,
+                currentOptions == null ? jvmOptions : currentOptions + " " + jvmOptions);
+    }
+}
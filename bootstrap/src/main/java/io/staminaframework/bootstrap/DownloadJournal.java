@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sidecar file recording download progress of a partial bootstrap package.
+ * <p>
+ * The journal stores how many bytes were written for each chunk,
+ * so that an interrupted download can be resumed using byte ranges.
+ *
+ * @author Stamina Framework developers
+ */
+class DownloadJournal {
+    private final Path file;
+    private final long length;
+    private final String validator;
+    private final long chunkSize;
+    private final AtomicLongArray chunkProgress;
+
+    public DownloadJournal(final Path file, final long length, final String validator, final long chunkSize) {
+        this.file = file;
+        this.length = length;
+        this.validator = validator == null ? "" : validator;
+        this.chunkSize = chunkSize;
+        this.chunkProgress = new AtomicLongArray((int) ((length + chunkSize - 1) / chunkSize));
+    }
+
+    /**
+     * Load an existing journal.
+     *
+     * @param file journal file
+     * @return journal instance, <code>null</code> if there is no valid journal
+     */
+    public static DownloadJournal load(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        final Properties props = new Properties();
+        try (final InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+            final DownloadJournal journal = new DownloadJournal(file,
+                    Long.parseLong(props.getProperty("length")),
+                    props.getProperty("validator"),
+                    Long.parseLong(props.getProperty("chunk.size")));
+            for (int i = 0; i < journal.chunkProgress.length(); ++i) {
+                journal.chunkProgress.set(i, Long.parseLong(props.getProperty("chunk." + i, "0")));
+            }
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if this journal describes the same remote content.
+     */
+    public boolean matches(long length, String validator, long chunkSize) {
+        return this.length == length && this.chunkSize == chunkSize
+                && this.validator.equals(validator == null ? "" : validator);
+    }
+
+    public int chunkCount() {
+        return chunkProgress.length();
+    }
+
+    public long chunkOffset(int index) {
+        return index * chunkSize + chunkProgress.get(index);
+    }
+
+    public long chunkRemaining(int index) {
+        return Math.min(chunkSize, length - index * chunkSize) - chunkProgress.get(index);
+    }
+
+    public void advance(int index, long bytes) {
+        chunkProgress.addAndGet(index, bytes);
+    }
+
+    public long remainingBytes() {
+        long remaining = 0;
+        for (int i = 0; i < chunkProgress.length(); ++i) {
+            remaining += chunkRemaining(i);
+        }
+        return remaining;
+    }
+
+    /**
+     * Write journal to disk.
+     */
+    public synchronized void store() throws IOException {
+        final Properties props = new Properties();
+        props.setProperty("length", String.valueOf(length));
+        props.setProperty("validator", validator);
+        props.setProperty("chunk.size", String.valueOf(chunkSize));
+        for (int i = 0; i < chunkProgress.length(); ++i) {
+            final long progress = chunkProgress.get(i);
+            if (progress != 0) {
+                props.setProperty("chunk." + i, String.valueOf(progress));
+            }
+        }
+        final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (final OutputStream out = Files.newOutputStream(tmpFile)) {
+            props.store(out, "Bootstrap package download journal");
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -26,7 +26,6 @@ import picocli.CommandLine;
 
 import java.io.*;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
@@ -40,6 +39,7 @@ import java.util.*;
  */
 public class Main {
     private static final String DEFAULT_BOOTSTRAP_PACKAGE = "http://repo.staminaframework.io/releases/bootstrap.pkg";
+    private static final long DEFAULT_PACKAGE_STORE_MAX_SIZE = 1024L * 1024 * 1024;
     private static Framework fwk;
 
     @CommandLine.Command(name = "io.staminaframework.bootstrap",
@@ -55,8 +55,14 @@ public class Main {
         public boolean showHelp;
         @CommandLine.Option(names = {"-c", "--clean"}, description = "Start platform from scratch")
         public boolean clean;
+        @CommandLine.Option(names = {"-u", "--update"}, description = "Update platform if a new bootstrap package is available")
+        public boolean update;
         @CommandLine.Option(names = {"-v", "--verbose"}, description = "Enable verbose output")
         public boolean debug;
+        @CommandLine.Option(names = {"--train"}, description = "Record class data archives to speed up next starts")
+        public boolean train;
+        @CommandLine.Option(names = {"--cds-dump"}, hidden = true)
+        public boolean cdsDump;
         @CommandLine.Parameters(description = "Runtime arguments", paramLabel = "-- <arguments>")
         public String[] arguments;
     }
@@ -78,6 +84,7 @@ public class Main {
         final ConsoleLogService logger = ConsoleLogService.INSTANCE;
         logger.setDebug(opts.debug);
         logger.log(LogService.LOG_INFO, "Initializing");
+        final BootTimings bootTimings = new BootTimings();
 
         // Generate an unique launcher id.
         // This id may be used by a Bootstrap Admin instance to return
@@ -95,8 +102,8 @@ public class Main {
             return;
         }
         final Path confFile = bootstrapDir.resolve("launcher.properties");
+        final Properties launcherProps = new Properties();
         if (Files.exists(confFile)) {
-            final Properties launcherProps = new Properties();
             try (final InputStream in = Files.newInputStream(confFile)) {
                 launcherProps.load(in);
             } catch (IOException e) {
@@ -108,7 +115,6 @@ public class Main {
         if (launcherId == null || launcherId.length() == 0) {
             launcherId = UUID.randomUUID().toString();
             try (final OutputStream out = Files.newOutputStream(confFile)) {
-                final Properties launcherProps = new Properties();
                 launcherProps.setProperty("launcher.uuid", launcherId);
                 launcherProps.store(out, "Bootstrap configuration");
             } catch (IOException e) {
@@ -117,6 +123,18 @@ public class Main {
             }
         }
 
+        // Bootstrap packages are shared by all launchers running on this host.
+        long packageStoreMaxSize = DEFAULT_PACKAGE_STORE_MAX_SIZE;
+        try {
+            packageStoreMaxSize = Long.parseLong(launcherProps.getProperty("store.max.size",
+                    String.valueOf(DEFAULT_PACKAGE_STORE_MAX_SIZE)));
+        } catch (NumberFormatException e) {
+            logger.log(LogService.LOG_WARNING,
+                    "Invalid bootstrap package store size: " + launcherProps.getProperty("store.max.size"));
+        }
+        final BootstrapPackageStore packageStore =
+                new BootstrapPackageStore(logger, bootstrapDir.resolve("store"), packageStoreMaxSize);
+
         final Path homeDir = FileSystems.getDefault().getPath(System.getProperty("user.dir"));
         final Path cacheDir;
         try {
@@ -139,11 +157,24 @@ public class Main {
             }
         }
 
+        final ClassDataSharing cds = new ClassDataSharing(logger, cacheDir);
+
+        // Start an installed runtime right away, without an OSGi framework.
+        // Training goes through the whole bootstrap sequence.
+        if (!opts.update && !opts.train && !opts.cdsDump) {
+            final RuntimeLaunchManifest launchManifest = RuntimeLaunchManifest.load(cacheDir);
+            if (launchManifest != null) {
+                launchRuntime(logger, cds, launchManifest, opts.arguments);
+                return;
+            }
+        }
+
         final Map<String, String> fwkConf = new HashMap<>(3);
         fwkConf.put(Constants.FRAMEWORK_STORAGE, cacheDir.toString());
         fwkConf.put(Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA,
                 "org.osgi.service.log;version=1.3, " +
-                        "org.osgi.service.provisioning;version=1.2");
+                        "org.osgi.service.provisioning;version=1.2, " +
+                        "sun.misc");
         fwkConf.put(FelixConstants.LOG_LEVEL_PROP, "0");
 
         final Map<String, String> provisioningProperties = new HashMap<>(2);
@@ -196,80 +227,150 @@ public class Main {
 
         // Download bootstrap package to local cache.
         final Path localBootstrapPackage = ctx.getDataFile("bootstrap.pkg").toPath();
-        if (!Files.exists(localBootstrapPackage)) {
+        final Path localBootstrapPackageMetadata = ctx.getDataFile("bootstrap.pkg.properties").toPath();
+        final boolean bootstrapPackageExists = Files.exists(localBootstrapPackage);
+        BootstrapPackageMetadata bootstrapPackageMetadata =
+                bootstrapPackageExists ? BootstrapPackageMetadata.load(localBootstrapPackageMetadata) : null;
+        boolean bootstrapPackageUpdated = false;
+        if (!bootstrapPackageExists || opts.update) {
             try {
                 final Set<URL> urls = new HashSet<>(2);
+                final Map<URL, String> peers = new HashMap<>(4);
                 if (opts.from == null) {
                     urls.add(new URL(DEFAULT_BOOTSTRAP_PACKAGE));
                 }
 
                 if (opts.from != null) {
                     if ("bootstrap:network".equals(opts.from)) {
+                        final long discoveryStart = System.nanoTime();
                         while (urls.isEmpty()) {
                             final BootstrapAdminNetworkDiscoverer discoverer = new BootstrapAdminNetworkDiscoverer(logger, null);
                             logger.log(LogService.LOG_INFO,
                                     "Looking for network bootstrap package");
                             final Set<URL> foundUrls = discoverer.discover(1000 * 10);
                             urls.addAll(foundUrls);
+                            peers.putAll(discoverer.peers());
 
                             if (urls.isEmpty()) {
                                 logger.log(LogService.LOG_WARNING, "No bootstrap package found");
+                                if (bootstrapPackageExists) {
+                                    // Keep using current bootstrap package.
+                                    break;
+                                }
                             }
                         }
+                        bootTimings.record("discovery", discoveryStart);
                     } else {
                         urls.add(new URL(opts.from));
                     }
                 }
 
-                // Try to download bootstrap package with any of these URLs.
-                for (final URL u : urls) {
-                    logger.log(LogService.LOG_INFO, "Using bootstrap package: " + u);
-                    final URLConnection conn = u.openConnection();
-                    if ("http".equals(u.getProtocol()) || "https".equals(u.getProtocol())) {
-                        conn.setRequestProperty("User-Agent", httpUserAgent);
-                        conn.setRequestProperty("StaminaBootstrap-Id", launcherId);
-                    }
-                    try (final InputStream in = conn.getInputStream()) {
-                        Files.copy(in, localBootstrapPackage);
-                        // We were able to use this URL: we can stop here.
-                        break;
+                final long downloadStart = System.nanoTime();
+                final BootstrapPackageDownloader downloader =
+                        new BootstrapPackageDownloader(logger, httpUserAgent, launcherId);
+                if (!bootstrapPackageExists) {
+                    bootstrapPackageMetadata = fetchBootstrapPackage(logger, downloader, packageStore,
+                            urls, peers, localBootstrapPackage, null);
+                    bootstrapPackageMetadata.url(firstHttpUrl(urls));
+                    bootstrapPackageMetadata.store(localBootstrapPackageMetadata);
+                } else if (!urls.isEmpty()) {
+                    logger.log(LogService.LOG_INFO, "Checking for bootstrap package update");
+                    if (bootstrapPackageMetadata == null || downloader.isModified(urls, bootstrapPackageMetadata)) {
+                        logger.log(LogService.LOG_INFO, "Updating bootstrap package");
+                        bootstrapPackageMetadata = fetchBootstrapPackage(logger, downloader, packageStore,
+                                urls, peers, localBootstrapPackage, bootstrapPackageMetadata);
+                        bootstrapPackageMetadata.url(firstHttpUrl(urls));
+                        bootstrapPackageMetadata.store(localBootstrapPackageMetadata);
+                        bootstrapPackageUpdated = true;
+                    } else {
+                        logger.log(LogService.LOG_INFO, "Bootstrap package is up-to-date");
                     }
                 }
+                bootTimings.record("download", downloadStart);
             } catch (IOException e) {
+                // Partially downloaded content is kept: download will resume on next start.
                 logger.log(LogService.LOG_ERROR, "Error while downloading bootstrap package", e);
-                try {
-                    Files.delete(localBootstrapPackage);
-                } catch (IOException ignore) {
+                if (!bootstrapPackageExists) {
+                    System.exit(1);
                 }
-                System.exit(1);
+            }
+        }
+        if (bootstrapPackageMetadata == null) {
+            // This bootstrap package was downloaded by a previous launcher version.
+            try {
+                bootstrapPackageMetadata = new BootstrapPackageMetadata()
+                        .sha256(BootstrapPackageDownloader.sha256(localBootstrapPackage));
+                bootstrapPackageMetadata.store(localBootstrapPackageMetadata);
+            } catch (IOException e) {
+                logger.log(LogService.LOG_WARNING, "Failed to compute bootstrap package digest", e);
+            }
+        }
+        if (bootstrapPackageMetadata != null && bootstrapPackageMetadata.sha256() != null) {
+            // Let the agent know which bootstrap package the runtime comes from.
+            provisioningProperties.put("stamina.bootstrap.package.sha256.txt", bootstrapPackageMetadata.sha256());
+            try {
+                final String runtimeJvmOptions = cds.runtimeJvmOptions(bootstrapPackageMetadata.sha256(), opts.train);
+                if (runtimeJvmOptions != null) {
+                    provisioningProperties.put("stamina.bootstrap.runtime.jvm.options.txt", runtimeJvmOptions);
+                }
+            } catch (IOException e) {
+                logger.log(LogService.LOG_WARNING, "Failed to read class data archives", e);
             }
         }
 
+        if ("bootstrap:network".equals(opts.from) && bootstrapPackageMetadata != null
+                && bootstrapPackageMetadata.sha256() != null && !opts.cdsDump
+                && !"false".equals(launcherProps.getProperty("peer.enabled"))) {
+            // Share this bootstrap package with other launchers on the network.
+            try {
+                final int peerPort = Integer.parseInt(launcherProps.getProperty("peer.port", "0"));
+                final BootstrapPackagePeerServer peerServer = new BootstrapPackagePeerServer(logger,
+                        localBootstrapPackage, bootstrapPackageMetadata.sha256(), peerPort);
+                peerServer.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(peerServer::stop, "Stamina Bootstrap Peer Shutdown"));
+            } catch (IOException | NumberFormatException e) {
+                logger.log(LogService.LOG_WARNING, "Failed to share bootstrap package with other launchers", e);
+            }
+        }
+
+        BootstrapProvisioningService ps = null;
         try {
             logger.log(LogService.LOG_INFO, "Reading bootstrap package");
-            final ProvisioningService ps = new BootstrapProvisioningService(localBootstrapPackage, provisioningProperties);
+            final long indexStart = System.nanoTime();
+            ps = new BootstrapProvisioningService(localBootstrapPackage, provisioningProperties);
             ctx.registerService(ProvisioningService.class, ps, null);
+            bootTimings.record("index", indexStart);
 
-            final boolean installAgent = ctx.getBundle("bootstrap:agent") == null;
-            if (installAgent) {
-                logger.log(LogService.LOG_INFO, "Installing bootstrap agent");
-
+            final Bundle installedAgent = ctx.getBundle("bootstrap:agent");
+            if (installedAgent == null || bootstrapPackageUpdated) {
+                final long agentInstallStart = System.nanoTime();
                 final String agentKey = (String) ps.getInformation().get(ProvisioningService.PROVISIONING_START_BUNDLE);
                 if (agentKey == null) {
                     throw new IOException("Unable to locate agent in bootstrap package");
                 }
 
-                final byte[] agentContent = (byte[]) ps.getInformation().get(agentKey);
+                final URL agentContent = ps.getEntryUrl(agentKey);
                 if (agentContent == null) {
                     throw new IOException("No content found for agent in bootstrap package");
                 }
-                final Bundle agent = ctx.installBundle("bootstrap:agent", new ByteArrayInputStream(agentContent));
-                agent.start();
+                if (installedAgent == null) {
+                    logger.log(LogService.LOG_INFO, "Installing bootstrap agent");
+                    final Bundle agent = ctx.installBundle("bootstrap:agent", agentContent.openStream());
+                    agent.start();
+                } else {
+                    logger.log(LogService.LOG_INFO, "Updating bootstrap agent");
+                    installedAgent.update(agentContent.openStream());
+                }
+                bootTimings.record("agent-install", agentInstallStart);
             }
         } catch (IOException e) {
             logger.log(LogService.LOG_ERROR, "Error while reading bootstrap package", e);
             try {
+                if (ps != null) {
+                    ps.close();
+                }
                 Files.delete(localBootstrapPackage);
+                Files.deleteIfExists(localBootstrapPackageMetadata);
             } catch (IOException ignore) {
             }
             System.exit(1);
@@ -278,6 +379,16 @@ public class Main {
             System.exit(1);
         }
 
+        if (opts.cdsDump) {
+            // Launcher classes are recorded when this JVM exits:
+            // the runtime is not started.
+            logger.log(LogService.LOG_INFO, "Launcher training done");
+            System.exit(0);
+        }
+        if (opts.train) {
+            cds.trainLauncher(localBootstrapPackage);
+        }
+
         final FrameworkListener fwkListener = event -> {
             if (event.getType() == FrameworkEvent.ERROR) {
                 logger.log(LogService.LOG_ERROR, "Fatal error", event.getThrowable());
@@ -286,6 +397,15 @@ public class Main {
         };
         ctx.addFrameworkListener(fwkListener);
 
+        // Boot timings are reported by the agent to the Bootstrap Admin instance.
+        provisioningProperties.put("stamina.bootstrap.id.txt", launcherId);
+        provisioningProperties.put("stamina.bootstrap.timings.txt", bootTimings.toString());
+        if (bootstrapPackageMetadata != null && bootstrapPackageMetadata.url() != null) {
+            provisioningProperties.put("stamina.bootstrap.url.txt", bootstrapPackageMetadata.url());
+        }
+        // The agent is started in this JVM: it may use the same time source.
+        provisioningProperties.put("stamina.bootstrap.framework.start.txt", String.valueOf(System.nanoTime()));
+
         try {
             fwk.start();
         } catch (BundleException e) {
@@ -300,6 +420,95 @@ public class Main {
         }
     }
 
+    private static BootstrapPackageMetadata fetchBootstrapPackage(LogService logger,
+                                                                  BootstrapPackageDownloader downloader,
+                                                                  BootstrapPackageStore packageStore,
+                                                                  Set<URL> urls, Map<URL, String> peers,
+                                                                  Path localBootstrapPackage,
+                                                                  BootstrapPackageMetadata currentMetadata) throws IOException {
+        // Reuse a package downloaded by another launcher on this host.
+        final String publishedDigest = downloader.publishedDigest(urls);
+        if (publishedDigest != null) {
+            try {
+                if (packageStore.link(publishedDigest, localBootstrapPackage)) {
+                    logger.log(LogService.LOG_INFO, "Using bootstrap package from local store");
+                    return new BootstrapPackageMetadata().sha256(publishedDigest);
+                }
+            } catch (IOException e) {
+                logger.log(LogService.LOG_WARNING, "Failed to read bootstrap package store", e);
+            }
+        }
+
+        // Only download changes from the local package, if possible.
+        BootstrapPackageMetadata metadata = null;
+        if (currentMetadata != null && currentMetadata.sha256() != null) {
+            metadata = downloader.downloadDelta(urls, localBootstrapPackage,
+                    currentMetadata.sha256(), localBootstrapPackage);
+        }
+
+        // Download bootstrap package using all of these URLs.
+        // The package is only written once its integrity is verified.
+        // Peers sharing the package published by the bootstrap admin are used as mirrors.
+        if (metadata == null) {
+            final List<URL> peerUrls = new ArrayList<>(peers.size());
+            if (publishedDigest != null) {
+                for (final Map.Entry<URL, String> e : peers.entrySet()) {
+                    if (publishedDigest.equalsIgnoreCase(e.getValue())) {
+                        peerUrls.add(e.getKey());
+                    }
+                }
+            }
+            if (!peerUrls.isEmpty()) {
+                logger.log(LogService.LOG_INFO, "Downloading bootstrap package from peers: " + peerUrls);
+            }
+            metadata = downloader.download(urls, peerUrls, localBootstrapPackage);
+        }
+        try {
+            packageStore.add(localBootstrapPackage, metadata.sha256());
+        } catch (IOException e) {
+            logger.log(LogService.LOG_WARNING, "Failed to add bootstrap package to local store", e);
+        }
+        return metadata;
+    }
+
+    private static void launchRuntime(LogService logger, ClassDataSharing cds,
+                                      RuntimeLaunchManifest launchManifest, String[] arguments) {
+        logger.log(LogService.LOG_INFO, "Using installed runtime: " + launchManifest.runtimeDir());
+
+        String jvmOptions = null;
+        try {
+            jvmOptions = cds.runtimeJvmOptions(launchManifest.packageSha256(), false);
+        } catch (IOException e) {
+            logger.log(LogService.LOG_WARNING, "Failed to read class data archives", e);
+        }
+
+        final List<String> runtimeCmd = new ArrayList<>(4);
+        runtimeCmd.add(launchManifest.launcher().toString());
+        if (arguments != null) {
+            Collections.addAll(runtimeCmd, arguments);
+        }
+        final RuntimeSupervisor supervisor = new RuntimeSupervisor(logger, launchManifest.runtimeDir(),
+                runtimeCmd, jvmOptions);
+        Runtime.getRuntime().addShutdownHook(new Thread(supervisor::stop, "Stamina Bootstrap Shutdown Hook"));
+        try {
+            supervisor.run();
+        } catch (IOException e) {
+            logger.log(LogService.LOG_ERROR, "Error while starting runtime", e);
+            System.exit(1);
+        } catch (InterruptedException e) {
+            logger.log(LogService.LOG_INFO, "Shutting down");
+        }
+    }
+
+    private static String firstHttpUrl(Set<URL> urls) {
+        for (final URL u : urls) {
+            if ("http".equals(u.getProtocol()) || "https".equals(u.getProtocol())) {
+                return u.toExternalForm();
+            }
+        }
+        return null;
+    }
+
     private static FrameworkFactory newFrameworkFactory() {
         final ServiceLoader<FrameworkFactory> fwkFactoryLoader =
                 ServiceLoader.load(FrameworkFactory.class);
@@ -314,7 +523,7 @@ public class Main {
         return fwkFactory;
     }
 
-    private static void deleteDir(Path dir) throws IOException {
+    static void deleteDir(Path dir) throws IOException {
         Files.walk(dir, FileVisitOption.FOLLOW_LINKS)
                 .sorted(Comparator.reverseOrder())
                 .map(Path::toFile)
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Manifest describing an installed runtime.
+ * <p>
+ * This file is written by the bootstrap agent to the cache directory
+ * once a runtime is installed: the launcher uses it to start the runtime
+ * directly, without starting an OSGi framework.
+ *
+ * @author Stamina Framework developers
+ */
+class RuntimeLaunchManifest {
+    /**
+     * Manifest file name, relative to the cache directory.
+     */
+    public static final String FILE_NAME = "runtime.launch";
+    private final Path runtimeDir;
+    private final Path launcher;
+    private final String packageSha256;
+
+    private RuntimeLaunchManifest(final Path runtimeDir, final Path launcher, final String packageSha256) {
+        this.runtimeDir = runtimeDir;
+        this.launcher = launcher;
+        this.packageSha256 = packageSha256;
+    }
+
+    /**
+     * Load the runtime manifest from a cache directory.
+     *
+     * @param cacheDir cache directory
+     * @return manifest instance, <code>null</code> if there is no usable runtime
+     */
+    public static RuntimeLaunchManifest load(Path cacheDir) {
+        final Path file = cacheDir.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        final Properties props = new Properties();
+        try (final InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        final String runtimeDir = props.getProperty("runtime.dir");
+        final String launcher = props.getProperty("runtime.launcher");
+        if (runtimeDir == null || launcher == null) {
+            return null;
+        }
+        final RuntimeLaunchManifest manifest = new RuntimeLaunchManifest(
+                cacheDir.getFileSystem().getPath(runtimeDir),
+                cacheDir.getFileSystem().getPath(launcher),
+                props.getProperty("package.sha256"));
+        if (!Files.isDirectory(manifest.runtimeDir) || !Files.isRegularFile(manifest.launcher)) {
+            return null;
+        }
+        return manifest;
+    }
+
+    public Path runtimeDir() {
+        return runtimeDir;
+    }
+
+    public Path launcher() {
+        return launcher;
+    }
+
+    /**
+     * Get digest of the bootstrap package this runtime was installed from.
+     *
+     * @return hex-encoded digest, <code>null</code> if unknown
+     */
+    public String packageSha256() {
+        return packageSha256;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.bootstrap;
+
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Runtime process supervisor, used when the launcher starts
+ * an installed runtime without the bootstrap agent.
+ *
+ * @author Stamina Framework developers
+ */
+class RuntimeSupervisor {
+    /**
+     * Return code used by runtime when process restart is required.
+     */
+    private static final int RESTART_EXIT_CODE = 100;
+    private final LogService logService;
+    private final Path runtimeDir;
+    private final List<String> runtimeCmd;
+    private final String jvmOptions;
+    private volatile Process proc;
+    private volatile boolean running;
+
+    public RuntimeSupervisor(final LogService logService, final Path runtimeDir, final List<String> runtimeCmd,
+                             final String jvmOptions) {
+        this.logService = logService;
+        this.runtimeDir = runtimeDir;
+        this.runtimeCmd = runtimeCmd;
+        this.jvmOptions = jvmOptions;
+    }
+
+    /**
+     * Start runtime process, and wait for its termination.
+     * The runtime process is restarted when requested.
+     *
+     * @return runtime process exit code
+     * @throws IOException          if runtime process could not be started
+     * @throws InterruptedException if the current thread was interrupted
+     */
+    public int run() throws IOException, InterruptedException {
+        running = true;
+        int exitCode = 0;
+        while (running) {
+            logService.log(LogService.LOG_INFO, "Starting runtime");
+            logService.log(LogService.LOG_DEBUG, "Using command: " + runtimeCmd);
+            final ProcessBuilder pb = new ProcessBuilder(runtimeCmd)
+                    .directory(runtimeDir.toFile())
+                    .inheritIO();
+            ClassDataSharing.applyJvmOptions(pb, jvmOptions);
+            proc = pb.start();
+            exitCode = proc.waitFor();
+            if (running && exitCode == RESTART_EXIT_CODE) {
+                logService.log(LogService.LOG_INFO, "Restarting runtime");
+                // Wait some time before we actually restart process.
+                Thread.sleep(1000);
+            } else {
+                running = false;
+            }
+        }
+        proc = null;
+        logService.log(LogService.LOG_INFO, "Runtime exit");
+        return exitCode;
+    }
+
+    /**
+     * Stop runtime process.
+     */
+    public void stop() {
+        running = false;
+        final Process p = proc;
+        if (p != null) {
+            p.destroy();
+        }
+    }
+}